@@ -1,6 +1,8 @@
 package org.flexiblepower.simulation.context;
 
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.flexiblepower.context.FlexiblePowerContext;
 import org.flexiblepower.scheduling.AbstractScheduler;
@@ -52,13 +54,14 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
     @Override
     public void run() {
         while (running.get()) {
-            synchronized (jobs) {
+            lock.lock();
+            try {
                 if (simulationClock.isRunning() || simulationClock.isStopping()) {
                     long now = simulationClock.getCurrentTimeMillis();
                     logger.trace("Simulation step {}", now);
                     long waitTime = getNextJobTime() - now;
                     if (waitTime <= 0) {
-                        Job<?> job = jobs.remove();
+                        Job<?> job = jobs.poll(now);
                         currentTime = Math.max(currentTime, job.getTimeOfNextRun());
                         logger.trace("Executing  {}", job);
                         job.run();
@@ -75,7 +78,7 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
                         try {
                             if (sleepTime > 0) {
                                 isWaiting = true;
-                                jobs.wait(sleepTime);
+                                jobsChanged.await(sleepTime, TimeUnit.MILLISECONDS);
                             }
                         } catch (final InterruptedException ex) {
                         }
@@ -84,11 +87,13 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
                 } else {
                     // Wait for simulation start
                     try {
-                        jobs.wait();
+                        jobsChanged.await();
                         currentTime = simulationClock.getSimulationStartTime();
                     } catch (InterruptedException e) {
                     }
                 }
+            } finally {
+                lock.unlock();
             }
         }
     }
@@ -102,14 +107,11 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
 
     @Override
     public void startSimulation(Date startTime, Date stopTime, double speedFactor) {
-        synchronized (jobs) {
+        lock.lock();
+        try {
             logger.trace("Starting simulation @ {} until {} with factor {}", startTime, stopTime, speedFactor);
-            Job<?>[] oldJobs = jobs.toArray(new Job[jobs.size()]);
-            jobs.clear();
-
-            for (Job<?> job : oldJobs) {
-                job.reschedule(startTime.getTime());
-                jobs.add(job);
+            for (Job<?> job : jobs.getJobs()) {
+                jobs.reschedule(job, startTime.getTime());
             }
 
             if (stopTime == null) {
@@ -118,16 +120,21 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
                 simulationClock.start(startTime.getTime(), stopTime.getTime(), speedFactor);
             }
 
-            jobs.notifyAll();
+            jobsChanged.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public void stopSimulation() {
-        synchronized (jobs) {
+        lock.lock();
+        try {
             logger.trace("Signaling the end of the simulation @ {}", simulationClock.getCurrentTimeMillis());
             simulationClock.stop();
-            jobs.notifyAll();
+            jobsChanged.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -144,10 +151,13 @@ public class SimulationContext extends AbstractScheduler implements Simulation {
 
     @Override
     public void unpause() {
-        synchronized (jobs) {
+        lock.lock();
+        try {
             logger.trace("Unpause @ {}", simulationClock.getCurrentTimeMillis());
             simulationClock.unpause();
-            jobs.notifyAll();
+            jobsChanged.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
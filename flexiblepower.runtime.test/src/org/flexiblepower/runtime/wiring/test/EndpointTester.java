@@ -6,6 +6,8 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
@@ -721,4 +723,63 @@ public class EndpointTester extends TestCase {
         encodedMessageListener.check();
         decodedMessageListener.check();
     }
+
+    @Port(name = "sequence", sends = Integer.class, accepts = Integer.class)
+    static class SequenceEndpoint implements Endpoint {
+        private final int count;
+        private final CountDownLatch received = new CountDownLatch(1);
+        private volatile int expected;
+        private volatile Integer outOfOrder;
+
+        public SequenceEndpoint(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            for (int ix = 0; ix < count; ix++) {
+                connection.sendMessage(ix);
+            }
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                    if (!message.equals(expected) && outOfOrder == null) {
+                        outOfOrder = (Integer) message;
+                    }
+                    expected++;
+                    if (expected == count) {
+                        received.countDown();
+                    }
+                }
+
+                @Override
+                public void disconnected() {
+                }
+            };
+        }
+
+        public void checkReceived() throws InterruptedException {
+            assertTrue("We did not receive all the messages", received.await(5, TimeUnit.SECONDS));
+            assertNull("Message " + outOfOrder + " was received out of order", outOfOrder);
+        }
+    }
+
+    public void testMessageOrder() throws Exception {
+        // Many more messages than fit in a single batch of the mailbox
+        SequenceEndpoint left = new SequenceEndpoint(10000);
+        SequenceEndpoint right = new SequenceEndpoint(10000);
+        ConnectionManager connectionManager = setupEndpoints(left, right);
+
+        Iterator<? extends ManagedEndpoint> iterator = connectionManager.getEndpoints().values().iterator();
+        EndpointPort leftPort = checkNotNull("\"sequence\" port of the first SequenceEndpoint",
+                                            iterator.next().getPort("sequence"));
+        EndpointPort rightPort = checkNotNull("\"sequence\" port of the second SequenceEndpoint",
+                                             iterator.next().getPort("sequence"));
+        PotentialConnection connection = leftPort.getPotentialConnection(rightPort);
+        connection.connect();
+
+        left.checkReceived();
+        right.checkReceived();
+        connection.disconnect();
+    }
 }
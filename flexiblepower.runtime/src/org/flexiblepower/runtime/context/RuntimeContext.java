@@ -3,47 +3,201 @@ package org.flexiblepower.runtime.context;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Dictionary;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-
-import javax.measure.Measurable;
-import javax.measure.Measure;
-import javax.measure.quantity.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.flexiblepower.context.FlexiblePowerContext;
 import org.flexiblepower.scheduling.AbstractScheduler;
+import org.flexiblepower.scheduling.HeapJobStore;
+import org.flexiblepower.scheduling.SchedulerPool;
+import org.flexiblepower.scheduling.TimingWheelJobStore;
+import org.flexiblepower.scheduling.VirtualThreads;
 import org.flexiblepower.time.TimeService;
 import org.osgi.framework.Bundle;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.ServiceScope;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 
 @Component(scope = ServiceScope.BUNDLE,
+           configurationPolicy = ConfigurationPolicy.OPTIONAL,
            service = { FlexiblePowerContext.class,
                        ScheduledExecutorService.class,
                        TimeService.class })
+@Designate(ocd = RuntimeContext.Config.class)
 public class RuntimeContext extends AbstractScheduler implements ScheduledExecutorService, TimeService {
+    private static final String KEY_JOB_STORE = "jobStore";
+    private static final String JOB_STORE_WHEEL = "wheel";
+    private static final String JOB_STORE_HEAP = "heap";
+    private static final String KEY_EXECUTION_MODE = "executionMode";
+    private static final String EXECUTION_MODE_THREAD = "thread";
+    private static final String EXECUTION_MODE_SHARED = "shared";
+    private static final String EXECUTION_MODE_VIRTUAL = "virtual";
+    private static final String KEY_TIMER_SLACK = "timerSlack";
+    private static final String KEY_CLOCK = "clock";
+    private static final String CLOCK_WALL = "wall";
+    private static final String CLOCK_MONOTONIC = "monotonic";
+    private static final String KEY_RESOURCE_ACCOUNTING = "resourceAccounting";
+
+    @ObjectClassDefinition(name = "Runtime Context Configuration",
+                           description = "The RuntimeContext is the scheduler that is given to each bundle. "
+                                         + "Changes are only used by the contexts that are created after the change.")
+    public @interface Config {
+        @AttributeDefinition(name = KEY_JOB_STORE,
+                             description = "The structure that keeps the scheduled jobs",
+                             options = { @Option(label = "Hierarchical timing wheel", value = JOB_STORE_WHEEL),
+                                         @Option(label = "Binary heap", value = JOB_STORE_HEAP) })
+        String jobStore() default JOB_STORE_WHEEL;
+
+        @AttributeDefinition(name = KEY_EXECUTION_MODE,
+                             description = "How the jobs of each bundle are executed. With a shared pool each bundle is "
+                                           + "a lane that still executes one job at a time, but a job that blocks on "
+                                           + "another bundle also blocks one of the shared threads.",
+                             options = { @Option(label = "A thread per bundle", value = EXECUTION_MODE_THREAD),
+                                         @Option(label = "A shared pool sized to the number of cores",
+                                                 value = EXECUTION_MODE_SHARED),
+                                         @Option(label = "A virtual thread per bundle (Java 21 and higher)",
+                                                 value = EXECUTION_MODE_VIRTUAL) })
+        String executionMode() default EXECUTION_MODE_THREAD;
+
+        @AttributeDefinition(name = KEY_TIMER_SLACK,
+                             description = "The number of milliseconds that a scheduled job may be delayed, such that "
+                                           + "jobs that are due around the same time are executed in a single wakeup. "
+                                           + "For each job this is limited to a quarter of its delay or period.")
+        long timerSlack() default 0;
+
+        @AttributeDefinition(name = KEY_CLOCK,
+                             description = "The clock on which the jobs are planned. The monotonic clock is not "
+                                           + "affected by changes of the system time and supports delays below a "
+                                           + "millisecond. The current time that is reported is always the system "
+                                           + "time.",
+                             options = { @Option(label = "System time in milliseconds", value = CLOCK_WALL),
+                                         @Option(label = "Monotonic clock in nanoseconds", value = CLOCK_MONOTONIC) })
+        String clock() default CLOCK_WALL;
+
+        @AttributeDefinition(name = KEY_RESOURCE_ACCOUNTING,
+                             description = "Measure the CPU time and the allocated bytes of each job, which are shown "
+                                           + "per bundle and per job source on the Runtime Scheduling page. This "
+                                           + "costs a few system calls per job.")
+        boolean resourceAccounting() default false;
+    }
+
     private Bundle bundle;
+    private SchedulerPool pool;
+    private boolean virtual;
+
+    /**
+     * Creates a new {@link RuntimeContext} that keeps its jobs in a {@link TimingWheelJobStore}.
+     */
+    public RuntimeContext() {
+        super(new TimingWheelJobStore());
+    }
 
     @Activate
     public void activate(ComponentContext context) {
         bundle = context.getUsingBundle();
-        start(bundle.getSymbolicName());
+        configure(context.getProperties());
+        if (pool != null) {
+            start(bundle.getSymbolicName(), pool);
+        } else if (virtual) {
+            start(bundle.getSymbolicName(), VirtualThreads.getThreadFactory());
+        } else {
+            start(bundle.getSymbolicName());
+        }
         logger.info("Created RuntimeContext for bundle: {}", bundle.getSymbolicName());
     }
 
+    private void configure(Dictionary<String, Object> properties) {
+        if (properties == null) {
+            return;
+        }
+
+        boolean monotonic = false;
+        Object clock = properties.get(KEY_CLOCK);
+        if (clock != null) {
+            if (CLOCK_MONOTONIC.equals(clock.toString())) {
+                monotonic = true;
+            } else if (!CLOCK_WALL.equals(clock.toString())) {
+                logger.warn("Unknown clock [{}], using the system time", clock);
+            }
+        }
+
+        Object jobStore = properties.get(KEY_JOB_STORE);
+        if (jobStore != null && JOB_STORE_HEAP.equals(jobStore.toString())) {
+            setJobStore(new HeapJobStore());
+        } else {
+            if (jobStore != null && !JOB_STORE_WHEEL.equals(jobStore.toString())) {
+                logger.warn("Unknown job store [{}], using the timing wheel", jobStore);
+            }
+            if (monotonic) {
+                setJobStore(new TimingWheelJobStore(TimingWheelJobStore.NANOSECOND_RESOLUTION_SHIFT));
+            }
+        }
+        setMonotonicClock(monotonic);
+
+        Object executionMode = properties.get(KEY_EXECUTION_MODE);
+        if (executionMode != null) {
+            if (EXECUTION_MODE_SHARED.equals(executionMode.toString())) {
+                pool = SchedulerPool.acquire();
+            } else if (EXECUTION_MODE_VIRTUAL.equals(executionMode.toString())) {
+                virtual = VirtualThreads.isAvailable();
+                if (!virtual) {
+                    logger.warn("Virtual threads are not supported by this JVM, using a thread per bundle");
+                }
+            } else if (!EXECUTION_MODE_THREAD.equals(executionMode.toString())) {
+                logger.warn("Unknown execution mode [{}], using a thread per bundle", executionMode);
+            }
+        }
+
+        Object timerSlack = properties.get(KEY_TIMER_SLACK);
+        if (timerSlack != null) {
+            try {
+                setTimerSlack(Math.max(0, Long.parseLong(timerSlack.toString().trim())));
+            } catch (NumberFormatException ex) {
+                logger.warn("Invalid timer slack [{}], using no slack", timerSlack);
+            }
+        }
+
+        Object resourceAccounting = properties.get(KEY_RESOURCE_ACCOUNTING);
+        if (resourceAccounting != null) {
+            setResourceAccounting(Boolean.parseBoolean(resourceAccounting.toString().trim()));
+        }
+    }
+
+    /**
+     * Keeps this context running with the configuration it was activated with. The contexts that are created after
+     * the change are activated with the new configuration.
+     */
+    @Modified
+    public void modified() {
+        logger.debug("The configuration changed, the RuntimeContext for bundle {} keeps its settings",
+                     bundle.getSymbolicName());
+    }
+
     @Deactivate
     public void deactivate() {
         logger.info("Stopping RuntimeContext for bundle: {}", bundle.getSymbolicName());
         stop();
+        if (pool != null) {
+            pool.release();
+            pool = null;
+        }
         logger.debug("Stopped RuntimeContext for bundle: {}", bundle.getSymbolicName());
     }
 
@@ -85,27 +239,77 @@ public class RuntimeContext extends AbstractScheduler implements ScheduledExecut
 
     @Override
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
-        List<Future<T>> list = new ArrayList<Future<T>>(tasks.size());
-        for (Callable<T> task : tasks) {
-            list.add(submit(task));
-        }
-        return list;
+        return doInvokeAll(tasks, false, 0);
     }
 
     @Override
     public <T>
            List<Future<T>>
            invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
-        List<Future<T>> list = new ArrayList<Future<T>>(tasks.size());
-        for (Callable<T> task : tasks) {
-            list.add(schedule(task, timeout, unit));
+        return doInvokeAll(tasks, true, unit.toNanos(timeout));
+    }
+
+    /**
+     * Submits all the tasks at once and waits until they are done or the time is up, after which the unfinished tasks
+     * are cancelled. When called from a job of this context, the tasks are executed right away on the calling thread,
+     * because they would otherwise wait for the calling job to finish.
+     */
+    private <T> List<Future<T>> doInvokeAll(Collection<? extends Callable<T>> tasks,
+                                            boolean timed,
+                                            long nanos) throws InterruptedException {
+        long deadline = System.nanoTime() + nanos;
+        List<Future<T>> futures;
+        if (isExecutionThread()) {
+            futures = new ArrayList<Future<T>>(tasks.size());
+            for (Callable<T> task : tasks) {
+                FutureTask<T> future = new FutureTask<T>(task);
+                futures.add(future);
+                if (!timed || deadline - System.nanoTime() > 0) {
+                    future.run();
+                }
+            }
+        } else {
+            futures = submitAll(tasks);
+        }
+
+        boolean done = false;
+        try {
+            for (Future<T> future : futures) {
+                if (!future.isDone()) {
+                    try {
+                        if (timed) {
+                            future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        } else {
+                            future.get();
+                        }
+                    } catch (ExecutionException ex) {
+                        // Reported through the future itself
+                    } catch (CancellationException ex) {
+                        // Reported through the future itself
+                    } catch (TimeoutException ex) {
+                        return futures;
+                    }
+                }
+            }
+            done = true;
+            return futures;
+        } finally {
+            if (!done) {
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
+            }
         }
-        return list;
     }
 
     @Override
     public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
-        throw new UnsupportedOperationException("The RuntimeContext does not support this functionality");
+        try {
+            return doInvokeAny(tasks, false, 0);
+        } catch (TimeoutException ex) {
+            // Can not happen without a timeout
+            throw new ExecutionException(ex);
+        }
     }
 
     @Override
@@ -114,38 +318,88 @@ public class RuntimeContext extends AbstractScheduler implements ScheduledExecut
            invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException,
                                                                                            ExecutionException,
                                                                                            TimeoutException {
-        throw new UnsupportedOperationException("The RuntimeContext does not support this functionality");
+        return doInvokeAny(tasks, true, unit.toNanos(timeout));
     }
 
-    @Override
-    public void execute(Runnable command) {
-        submit(command);
-    }
+    /**
+     * Submits all the tasks at once and returns the result of the first one that completes successfully, after which
+     * the others are cancelled. The jobs of this context are executed one at a time in the order in which they are
+     * submitted, so this is the result of the first task in the collection that does not fail. The tasks after the
+     * winner are skipped on the scheduler itself, such that they do not run before the caller has cancelled them.
+     */
+    private <T> T doInvokeAny(Collection<? extends Callable<T>> tasks,
+                              boolean timed,
+                              long nanos) throws InterruptedException, ExecutionException, TimeoutException {
+        if (tasks.isEmpty()) {
+            throw new IllegalArgumentException("No tasks given");
+        }
+        long deadline = System.nanoTime() + nanos;
+        ExecutionException failure = null;
 
-    private static Measurable<Duration> measure(long delay, TimeUnit unit) {
-        return Measure.valueOf(unit.convert(delay, TimeUnit.MILLISECONDS), MS);
-    }
+        if (isExecutionThread()) {
+            // The submitted tasks would wait for the calling job to finish, so execute them right here
+            for (Callable<T> task : tasks) {
+                if (timed && deadline - System.nanoTime() <= 0) {
+                    throw new TimeoutException();
+                }
+                try {
+                    return task.call();
+                } catch (Exception ex) {
+                    failure = new ExecutionException(ex);
+                }
+            }
+            throw failure;
+        }
 
-    @Override
-    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
-        return schedule(command, measure(delay, unit));
-    }
+        final AtomicBoolean succeeded = new AtomicBoolean();
+        List<Callable<T>> candidates = new ArrayList<Callable<T>>(tasks.size());
+        for (final Callable<T> task : tasks) {
+            candidates.add(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    if (succeeded.get()) {
+                        return null;
+                    }
+                    T result = task.call();
+                    succeeded.set(true);
+                    return result;
+                }
 
-    @Override
-    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
-        return schedule(callable, measure(delay, unit));
-    }
+                @Override
+                public String toString() {
+                    return task.toString();
+                }
+            });
+        }
 
-    @Override
-    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
-        return scheduleAtFixedRate(command, measure(initialDelay, unit), measure(period, unit));
+        List<Future<T>> futures = submitAll(candidates);
+        try {
+            for (Future<T> future : futures) {
+                try {
+                    if (timed) {
+                        return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    } else {
+                        return future.get();
+                    }
+                } catch (ExecutionException ex) {
+                    failure = ex;
+                }
+            }
+            throw failure;
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
     }
 
     @Override
-    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
-        return scheduleWithFixedDelay(command, measure(initialDelay, unit), measure(delay, unit));
+    public void execute(Runnable command) {
+        submit(command);
     }
 
+    // The schedule methods with a TimeUnit are inherited from the AbstractScheduler
+
     // Time service methods
 
     @Override
@@ -1,12 +1,19 @@
 package org.flexiblepower.runtime.messaging;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
 
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
 import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.scheduling.JobPriority;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public interface Command extends Runnable {
+    /**
+     * @return The priority with which this command should be executed on the scheduler of the endpoint
+     */
+    JobPriority getPriority();
 
     public class HandleMessage implements Command {
         private static final Logger logger = LoggerFactory.getLogger(Command.HandleMessage.class);
@@ -24,6 +31,10 @@ public interface Command extends Runnable {
 
         @Override
         public void run() {
+            handle(message, handler);
+        }
+
+        static void handle(Object message, MessageHandler handler) {
             try {
                 logger.trace("Handling message {}", message);
                 handler.handleMessage(message);
@@ -32,21 +43,67 @@ public interface Command extends Runnable {
             }
         }
 
+        public Object getMessage() {
+            return message;
+        }
+
+        @Override
+        public JobPriority getPriority() {
+            return MessagePriorities.getPriority(message);
+        }
+
         @Override
         public String toString() {
             return "Handle message: " + message.toString();
         }
     }
 
+    public class Connect implements Command {
+        private static final Logger logger = LoggerFactory.getLogger(Command.Connect.class);
+
+        private final Endpoint endpoint;
+        private final Connection connection;
+        private final CompletableFuture<MessageHandler> result;
+
+        public Connect(Endpoint endpoint, Connection connection, CompletableFuture<MessageHandler> result) {
+            this.endpoint = endpoint;
+            this.connection = connection;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            MessageHandler handler = null;
+            try {
+                logger.trace("Connecting");
+                handler = endpoint.onConnect(connection);
+            } catch (RuntimeException ex) {
+                logger.error("Error while connecting: " + ex.getMessage(), ex);
+            } finally {
+                result.complete(handler);
+            }
+        }
+
+        @Override
+        public JobPriority getPriority() {
+            return JobPriority.MESSAGE;
+        }
+
+        @Override
+        public String toString() {
+            return "Connect command";
+        }
+    }
+
     public class Disconnect implements Command {
         private static final Logger logger = LoggerFactory.getLogger(Command.Disconnect.class);
 
         private final MessageHandler handler;
-        private final CountDownLatch latch;
+        private final CompletableFuture<Void> result;
 
-        public Disconnect(MessageHandler handler, CountDownLatch latch) {
+        public Disconnect(MessageHandler handler, CompletableFuture<Void> result) {
             this.handler = handler;
-            this.latch = latch;
+            this.result = result;
         }
 
         @Override
@@ -57,10 +114,16 @@ public interface Command extends Runnable {
             } catch (RuntimeException ex) {
                 logger.error("Error while disconnecting: " + ex.getMessage(), ex);
             } finally {
-                latch.countDown();
+                result.complete(null);
             }
         }
 
+        @Override
+        public JobPriority getPriority() {
+            // Stay behind the messages that have already been received
+            return JobPriority.MESSAGE;
+        }
+
         @Override
         public String toString() {
             return "Disconnect command";
@@ -0,0 +1,145 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.flexiblepower.ral.messages.ResourceMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Determines which messages on a connection only matter in their latest version. Of those messages, at most one per
+ * key waits in the queue of the connection: a newer message with the same key replaces the waiting one in place. The
+ * key is the class of the message, plus the resource identifier for a {@link ResourceMessage}.
+ *
+ * <p>
+ * The resource abstraction layer is an optional import of this bundle. When it is not available, the key is only the
+ * class of the message.
+ */
+final class Conflation {
+    private static final Logger logger = LoggerFactory.getLogger(Conflation.class);
+
+    private static final boolean RAL_AVAILABLE = isRalAvailable();
+
+    /**
+     * Conflates none of the messages.
+     */
+    static final Conflation NONE = new Conflation(false, Collections.<String> emptySet());
+
+    /**
+     * Conflates all the messages.
+     */
+    static final Conflation ALL = new Conflation(true, Collections.<String> emptySet());
+
+    private static boolean isRalAvailable() {
+        try {
+            ResourceMessage.class.getName();
+            return true;
+        } catch (LinkageError ex) {
+            logger.info("The resource abstraction layer is not available, messages are conflated by class only");
+            return false;
+        }
+    }
+
+    private final boolean allMessages;
+    private final Set<String> classNames;
+    // Whether the messages of a class are conflated, filled when the class is first sent and cleared when an endpoint
+    // is removed, such that the classes of removed bundles are not kept
+    private final ConcurrentMap<Class<?>, Boolean> conflatedClasses;
+
+    /**
+     * @param allMessages
+     *            <code>true</code> when all the messages are conflated
+     * @param classNames
+     *            The names of the classes and interfaces of which the messages, including those of subclasses, are
+     *            conflated
+     */
+    Conflation(boolean allMessages, Set<String> classNames) {
+        this.allMessages = allMessages;
+        this.classNames = classNames;
+        conflatedClasses = new ConcurrentHashMap<Class<?>, Boolean>();
+    }
+
+    /**
+     * @return <code>true</code> when any message could be conflated
+     */
+    boolean isEnabled() {
+        return allMessages || !classNames.isEmpty();
+    }
+
+    /**
+     * @param message
+     *            The message that is sent
+     * @return The key under which the message replaces an older one, or <code>null</code> when the message is not
+     *         conflated
+     */
+    Object getKey(Object message) {
+        Class<?> clazz = message.getClass();
+        if (!allMessages && !isConflated(clazz)) {
+            return null;
+        }
+        if (RAL_AVAILABLE && message instanceof ResourceMessage) {
+            return new Key(clazz, ((ResourceMessage) message).getResourceId());
+        }
+        return clazz;
+    }
+
+    /**
+     * Forgets which classes are conflated, they are checked again when they are sent next.
+     */
+    void clearCache() {
+        conflatedClasses.clear();
+    }
+
+    private boolean isConflated(Class<?> clazz) {
+        Boolean conflated = conflatedClasses.get(clazz);
+        if (conflated == null) {
+            conflated = matches(clazz);
+            conflatedClasses.put(clazz, conflated);
+        }
+        return conflated;
+    }
+
+    private boolean matches(Class<?> clazz) {
+        for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+            if (classNames.contains(current.getName())) {
+                return true;
+            }
+            for (Class<?> iface : current.getInterfaces()) {
+                if (matches(iface)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static final class Key {
+        private final Class<?> clazz;
+        private final String resourceId;
+
+        Key(Class<?> clazz, String resourceId) {
+            this.clazz = clazz;
+            this.resourceId = resourceId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * clazz.hashCode() + Objects.hashCode(resourceId);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return clazz == other.clazz && Objects.equals(resourceId, other.resourceId);
+        }
+    }
+}
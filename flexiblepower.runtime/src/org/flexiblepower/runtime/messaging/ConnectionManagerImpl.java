@@ -2,17 +2,28 @@ package org.flexiblepower.runtime.messaging;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import org.flexiblepower.context.FlexiblePowerContext;
 import org.flexiblepower.messaging.Cardinality;
@@ -33,6 +44,7 @@ import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,7 +52,19 @@ import org.slf4j.LoggerFactory;
 @Designate(ocd = ConnectionManagerImpl.Config.class)
 public class ConnectionManagerImpl implements ConnectionManager {
     private static final String KEY_ACTIVE_CONNECTIONS = "active.connections";
+    private static final String KEY_STORE_DELAY = "active.connections.store.delay";
+    private static final long DEFAULT_STORE_DELAY = 1000;
     private static final String KEY_AUTOCONNECT = "autoconnect";
+    private static final String KEY_MAILBOX_BATCH_SIZE = "mailbox.batch.size";
+    private static final int DEFAULT_MAILBOX_BATCH_SIZE = 64;
+    private static final String KEY_LISTENER_CAPACITY = "message.listener.capacity";
+    private static final String KEY_CONNECTION_CAPACITY = "connection.capacity";
+    private static final String KEY_OVERFLOW_POLICY = "connection.overflow.policy";
+    private static final String KEY_BLOCK_TIMEOUT = "connection.block.timeout";
+    private static final long DEFAULT_BLOCK_TIMEOUT = 1000;
+    private static final String KEY_PORT_CAPACITIES = "connection.port.capacities";
+    private static final String KEY_CONFLATED_PORTS = "connection.conflated.ports";
+    private static final String KEY_CONFLATED_CLASSES = "connection.conflated.classes";
     private static final Logger logger = LoggerFactory.getLogger(ConnectionManagerImpl.class);
 
     @ObjectClassDefinition(name = "Connection Manager Configuration",
@@ -53,26 +77,110 @@ public class ConnectionManagerImpl implements ConnectionManager {
                              required = false)
         String[] activeConnections() default {};
 
+        @AttributeDefinition(name = KEY_STORE_DELAY,
+                             description = "The number of milliseconds without connection changes before the active "
+                                           + "connections are stored, such that many changes cost a single update. "
+                                           + "With 0 every change is stored right away.")
+        long storeDelay() default DEFAULT_STORE_DELAY;
+
         @AttributeDefinition(name = KEY_AUTOCONNECT,
                              description = "When this is set to true, every new Endpoint will trigger an autoconnect call")
         boolean autoconnect() default false;
+
+        @AttributeDefinition(name = KEY_MAILBOX_BATCH_SIZE,
+                             description = "The maximum number of messages that an endpoint handles in a single job, "
+                                           + "before the other jobs of its context get a turn")
+        int mailboxBatchSize() default DEFAULT_MAILBOX_BATCH_SIZE;
+
+        @AttributeDefinition(name = KEY_LISTENER_CAPACITY,
+                             description = "The number of messages that can wait for each message listener, before "
+                                           + "new messages for that listener are dropped. Changes are used by the "
+                                           + "listeners that are added after the change.")
+        int messageListenerCapacity() default MessageListenerContainer.DEFAULT_BUFFER_CAPACITY;
+
+        @AttributeDefinition(name = KEY_CONNECTION_CAPACITY,
+                             description = "The maximum number of undelivered messages per connection and direction, "
+                                           + "or 0 for no limit. Emergency messages are never limited. Changes are "
+                                           + "used by the connections that are made after the change.")
+        int connectionCapacity() default 0;
+
+        @AttributeDefinition(name = KEY_OVERFLOW_POLICY,
+                             description = "What happens with a message that is sent over a full connection",
+                             options = { @Option(label = "Block the sender", value = "BLOCK"),
+                                         @Option(label = "Drop the oldest message", value = "DROP_OLDEST"),
+                                         @Option(label = "Drop the new message", value = "DROP_NEWEST"),
+                                         @Option(label = "Drop the new message and fail the sender", value = "FAIL") })
+        String overflowPolicy() default "DROP_OLDEST";
+
+        @AttributeDefinition(name = KEY_BLOCK_TIMEOUT,
+                             description = "The maximum number of milliseconds that a sender waits for room on a full "
+                                           + "connection with the BLOCK policy, after which the message is dropped")
+        long blockTimeout() default DEFAULT_BLOCK_TIMEOUT;
+
+        @AttributeDefinition(name = KEY_PORT_CAPACITIES,
+                             description = "The capacity of the connections to specific ports, which overrides the "
+                                           + "capacity above (e.g. endpoint:port=100 or endpoint:port=100,BLOCK)",
+                             required = false)
+        String[] portCapacities() default {};
+
+        @AttributeDefinition(name = KEY_CONFLATED_PORTS,
+                             description = "The ports that only need the latest message of each type (e.g. "
+                                           + "endpoint:port). An undelivered message is replaced by a newer one of "
+                                           + "the same class and resource.",
+                             required = false)
+        String[] conflatedPorts() default {};
+
+        @AttributeDefinition(name = KEY_CONFLATED_CLASSES,
+                             description = "The message classes or interfaces of which only the latest message is "
+                                           + "needed (e.g. org.flexiblepower.ral.ResourceState)",
+                             required = false)
+        String[] conflatedClasses() default {};
     }
 
     private final Map<String, Object> otherProperties;
     private final SortedMap<String, EndpointWrapper> endpointWrappers;
     private final MessageListenerContainer messageListenerContainer;
+    // The ports of the endpointWrappers, guarded by this
+    private final PortIndex portIndex;
+    // The ports that might be autoconnected since the last autoconnect, because their matches or connections changed
+    private final Set<EndpointPortImpl> changedPorts;
+    // The connections that are being made
+    private final Set<CompletableFuture<Void>> pendingConnects;
 
     private final Set<String> activeConnections;
 
     private boolean autoconnect;
+    private volatile long storeDelay;
+    private volatile int mailboxBatchSize;
+    private volatile int connectionCapacity;
+    private volatile OverflowPolicy overflowPolicy;
+    private volatile long blockTimeout;
+    // The capacity and overflow policy per receiving port, replaced as a whole
+    private volatile Map<String, Integer> portCapacities;
+    private volatile Map<String, OverflowPolicy> portOverflowPolicies;
+    // The receiving ports of which all messages are conflated and the conflation of the others, replaced as a whole
+    private volatile Set<String> conflatedPorts;
+    private volatile Conflation conflation;
 
     public ConnectionManagerImpl() {
         endpointWrappers = new TreeMap<String, EndpointWrapper>();
         otherProperties = new HashMap<String, Object>();
         messageListenerContainer = new MessageListenerContainer();
+        portIndex = new PortIndex();
+        changedPorts = Collections.newSetFromMap(new ConcurrentHashMap<EndpointPortImpl, Boolean>());
+        pendingConnects = Collections.newSetFromMap(new ConcurrentHashMap<CompletableFuture<Void>, Boolean>());
 
         activeConnections = new TreeSet<String>();
         autoconnect = false;
+        storeDelay = DEFAULT_STORE_DELAY;
+        mailboxBatchSize = DEFAULT_MAILBOX_BATCH_SIZE;
+        connectionCapacity = 0;
+        overflowPolicy = OverflowPolicy.DROP_OLDEST;
+        blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+        portCapacities = Collections.emptyMap();
+        portOverflowPolicies = Collections.emptyMap();
+        conflatedPorts = Collections.emptySet();
+        conflation = Conflation.NONE;
     }
 
     // This reference is only needed to make sure that the EndpointWrapper
@@ -126,15 +234,29 @@ public class ConnectionManagerImpl implements ConnectionManager {
             }
 
             parseAutoConnect(properties);
+            parseStoreDelay(properties);
+            parseMailboxBatchSize(properties);
+            parseListenerCapacity(properties);
+            parseCapacities(properties);
+            parseConflation(properties);
         }
         logger.debug("These connections are configured at boottime: {}", activeConnections);
 
+        storeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ConnectionManager store thread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
         for (EndpointWrapper leftWrapper : endpointWrappers.values()) {
             for (EndpointPortImpl leftPort : leftWrapper.getPorts().values()) {
                 for (PotentialConnectionImpl connection : leftPort.getPotentialConnections().values()) {
                     if (connection.isConnectable() && activeConnections.contains(connection.toString())) {
                         logger.info("Auto-starting connection on {}", connection);
-                        connection.connect();
+                        connectAsync(connection);
                     }
                 }
             }
@@ -152,18 +274,284 @@ public class ConnectionManagerImpl implements ConnectionManager {
         }
     }
 
+    private void parseStoreDelay(Dictionary<String, Object> properties) {
+        Object storeDelay = properties.get(KEY_STORE_DELAY);
+        if (storeDelay != null) {
+            try {
+                this.storeDelay = Math.max(0, Long.parseLong(storeDelay.toString().trim()));
+            } catch (NumberFormatException ex) {
+                logger.warn("Invalid store delay [{}], using {}", storeDelay, this.storeDelay);
+            }
+        }
+    }
+
+    private void parseMailboxBatchSize(Dictionary<String, Object> properties) {
+        Object batchSize = properties.get(KEY_MAILBOX_BATCH_SIZE);
+        if (batchSize != null) {
+            try {
+                mailboxBatchSize = Math.max(1, Integer.parseInt(batchSize.toString().trim()));
+            } catch (NumberFormatException ex) {
+                logger.warn("Invalid mailbox batch size [{}], using {}", batchSize, mailboxBatchSize);
+            }
+        }
+    }
+
+    private void parseListenerCapacity(Dictionary<String, Object> properties) {
+        Object capacity = properties.get(KEY_LISTENER_CAPACITY);
+        if (capacity != null) {
+            try {
+                messageListenerContainer.setBufferCapacity(Math.max(1, Integer.parseInt(capacity.toString().trim())));
+            } catch (NumberFormatException ex) {
+                logger.warn("Invalid message listener capacity [{}], ignoring", capacity);
+            }
+        }
+    }
+
+    private void parseCapacities(Dictionary<String, Object> properties) {
+        Object capacity = properties.get(KEY_CONNECTION_CAPACITY);
+        if (capacity != null) {
+            try {
+                connectionCapacity = Math.max(0, Integer.parseInt(capacity.toString().trim()));
+            } catch (NumberFormatException ex) {
+                logger.warn("Invalid connection capacity [{}], using {}", capacity, connectionCapacity);
+            }
+        }
+
+        Object policy = properties.get(KEY_OVERFLOW_POLICY);
+        if (policy != null) {
+            overflowPolicy = parseOverflowPolicy(policy.toString(), overflowPolicy);
+        }
+
+        Object timeout = properties.get(KEY_BLOCK_TIMEOUT);
+        if (timeout != null) {
+            try {
+                blockTimeout = Math.max(0, Long.parseLong(timeout.toString().trim()));
+            } catch (NumberFormatException ex) {
+                logger.warn("Invalid block timeout [{}], using {}", timeout, blockTimeout);
+            }
+        }
+
+        Object ports = properties.get(KEY_PORT_CAPACITIES);
+        if (ports != null) {
+            List<String> entries = toList(ports);
+            Map<String, Integer> capacities = new HashMap<String, Integer>();
+            Map<String, OverflowPolicy> policies = new HashMap<String, OverflowPolicy>();
+            for (String entry : entries) {
+                int ix = entry.lastIndexOf('=');
+                if (ix <= 0) {
+                    logger.warn("Invalid port capacity [{}], expected endpoint:port=capacity", entry);
+                    continue;
+                }
+                String port = entry.substring(0, ix).trim();
+                String value = entry.substring(ix + 1);
+                int comma = value.indexOf(',');
+                try {
+                    capacities.put(port, Math.max(0, Integer.parseInt((comma < 0 ? value
+                                                                                 : value.substring(0, comma)).trim())));
+                } catch (NumberFormatException ex) {
+                    logger.warn("Invalid port capacity [{}], expected endpoint:port=capacity", entry);
+                    continue;
+                }
+                if (comma >= 0) {
+                    policies.put(port, parseOverflowPolicy(value.substring(comma + 1), overflowPolicy));
+                }
+            }
+            portCapacities = capacities;
+            portOverflowPolicies = policies;
+        }
+    }
+
+    private void parseConflation(Dictionary<String, Object> properties) {
+        Object ports = properties.get(KEY_CONFLATED_PORTS);
+        if (ports != null) {
+            Set<String> conflatedPorts = new HashSet<String>();
+            for (String port : toList(ports)) {
+                if (!port.trim().isEmpty()) {
+                    conflatedPorts.add(port.trim());
+                }
+            }
+            this.conflatedPorts = conflatedPorts;
+        }
+
+        Object classes = properties.get(KEY_CONFLATED_CLASSES);
+        if (classes != null) {
+            Set<String> classNames = new HashSet<String>();
+            for (String className : toList(classes)) {
+                if (!className.trim().isEmpty()) {
+                    classNames.add(className.trim());
+                }
+            }
+            conflation = classNames.isEmpty() ? Conflation.NONE : new Conflation(false, classNames);
+        }
+    }
+
+    private static List<String> toList(Object value) {
+        List<String> entries = new ArrayList<String>();
+        if (value instanceof String[]) {
+            Collections.addAll(entries, (String[]) value);
+        } else if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                entries.add(item.toString());
+            }
+        } else {
+            entries.add(value.toString());
+        }
+        return entries;
+    }
+
+    private static OverflowPolicy parseOverflowPolicy(String policy, OverflowPolicy defaultPolicy) {
+        try {
+            return OverflowPolicy.valueOf(policy.trim());
+        } catch (IllegalArgumentException ex) {
+            logger.warn("Unknown overflow policy [{}], using {}", policy, defaultPolicy);
+            return defaultPolicy;
+        }
+    }
+
+    /**
+     * @param port
+     *            The port that receives the messages
+     * @return The maximum number of undelivered messages for a new connection to the port, or 0 for no limit
+     */
+    int getCapacity(EndpointPortImpl port) {
+        Integer capacity = portCapacities.get(port.toString());
+        return capacity == null ? connectionCapacity : capacity;
+    }
+
+    /**
+     * @param port
+     *            The port that receives the messages
+     * @return What happens with the messages that are sent to the port when a connection is full
+     */
+    OverflowPolicy getOverflowPolicy(EndpointPortImpl port) {
+        OverflowPolicy policy = portOverflowPolicies.get(port.toString());
+        return policy == null ? overflowPolicy : policy;
+    }
+
+    /**
+     * @return The maximum number of milliseconds that a sender waits for room on a full connection with the
+     *         {@link OverflowPolicy#BLOCK} policy
+     */
+    long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * @param port
+     *            The port that receives the messages
+     * @return Which messages to the port are replaced by newer ones while they have not been delivered yet
+     */
+    Conflation getConflation(EndpointPortImpl port) {
+        return conflatedPorts.contains(port.toString()) ? Conflation.ALL : conflation;
+    }
+
+    /**
+     * @return The maximum number of messages that an endpoint handles in a single job
+     */
+    int getMailboxBatchSize() {
+        return mailboxBatchSize;
+    }
+
     @Modified
     public void modified(Map<String, Object> properties) {
-        // Only the autoConnect change will be parsed, other changes will be ignored
-        parseAutoConnect(new Hashtable<String, Object>(properties));
+        // Only the autoConnect, store delay, mailbox, listener, capacity and conflation changes will be parsed, other
+        // changes will be ignored
+        Dictionary<String, Object> dictionary = new Hashtable<String, Object>(properties);
+        parseAutoConnect(dictionary);
+        parseStoreDelay(dictionary);
+        parseMailboxBatchSize(dictionary);
+        parseListenerCapacity(dictionary);
+        parseCapacities(dictionary);
+        parseConflation(dictionary);
     }
 
     @Deactivate
     public synchronized void deactivate() {
+        if (storeScheduled) {
+            // Don't lose the last changes
+            storeScheduled = false;
+            writeConnections();
+        }
+        if (storeExecutor != null) {
+            storeExecutor.shutdownNow();
+            storeExecutor = null;
+        }
         configuration = null;
         messageListenerContainer.close();
     }
 
+    /**
+     * Connects all the given connections that are connectable, in parallel. Like any other change, the new active
+     * connections are stored once no more changes have been made for the store delay.
+     *
+     * @param connections
+     *            The connections that should be connected
+     * @return A future that completes when all the connections have been attempted
+     */
+    public CompletableFuture<Void> connectAll(Collection<? extends PotentialConnection> connections) {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        synchronized (this) {
+            for (PotentialConnection connection : connections) {
+                if (connection.isConnectable()) {
+                    futures.add(connectAsync((PotentialConnectionImpl) connection));
+                }
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+
+    /**
+     * Starts making the connection and keeps track of it until it is done.
+     */
+    private CompletableFuture<Void> connectAsync(final PotentialConnectionImpl connection) {
+        final CompletableFuture<Void> future = connection.connectAsync();
+        if (pendingConnects.add(future)) {
+            future.whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void ignored, Throwable error) {
+                    pendingConnects.remove(future);
+                    if (error != null) {
+                        logger.warn("Could not connect {}: {}", connection, error.getMessage());
+                    }
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * @return A future that completes when all the connections that are being made now have been attempted
+     */
+    public CompletableFuture<Void> whenConnected() {
+        return CompletableFuture.allOf(pendingConnects.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Disconnects all the given connections that are connected at once, and stores the active connections once
+     * afterwards.
+     *
+     * @param connections
+     *            The connections that should be disconnected
+     * @return A future that completes when the endpoints have handled all the disconnects
+     */
+    public CompletableFuture<Void> disconnectAll(Collection<? extends PotentialConnection> connections) {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        synchronized (this) {
+            waitWithStoring = true;
+            try {
+                for (PotentialConnection connection : connections) {
+                    if (connection.isConnected()) {
+                        futures.add(((PotentialConnectionImpl) connection).disconnectAsync());
+                    }
+                }
+            } finally {
+                waitWithStoring = false;
+                storeConnections();
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+
     /**
      * Adds the key to the active connections and updates the configuration accordingly. This won't update when the
      * {@link #updateConnections()} method is running.
@@ -192,27 +580,66 @@ public class ConnectionManagerImpl implements ConnectionManager {
 
     private boolean waitWithStoring = false;
 
+    // Executes the delayed stores between the activate and deactivate, guarded by this
+    private ScheduledExecutorService storeExecutor;
+    // Guarded by this
+    private boolean storeScheduled;
+    private long lastChange;
+
+    private final Runnable storeTask = new Runnable() {
+        @Override
+        public void run() {
+            storeDelayedConnections();
+        }
+    };
+
     /**
-     * Stores the active connections in the configuration of this component
+     * Stores the active connections in the configuration of this component, once no more changes have been made for
+     * the store delay
      */
     private void storeConnections() {
-        if (!waitWithStoring) {
-            // If the configuration is null, it means that the updates are done while the activate and deactivate
-            // methods
-            // are not active. This is probably due to the fact that it is booting up or is shutting down. Then we don't
-            // need to update the configuration.
-            if (configuration != null) {
-                Dictionary<String, Object> properties = new Hashtable<String, Object>(otherProperties);
-                if (!activeConnections.isEmpty()) {
-                    properties.put(KEY_ACTIVE_CONNECTIONS, new ArrayList<String>(activeConnections));
+        // If the configuration is null, it means that the updates are done while the activate and deactivate methods
+        // are not active. This is probably due to the fact that it is booting up or is shutting down. Then we don't
+        // need to update the configuration.
+        if (!waitWithStoring && configuration != null) {
+            long storeDelay = this.storeDelay;
+            if (storeDelay == 0) {
+                writeConnections();
+            } else {
+                lastChange = System.nanoTime();
+                if (!storeScheduled) {
+                    storeScheduled = true;
+                    storeExecutor.schedule(storeTask, storeDelay, TimeUnit.MILLISECONDS);
                 }
+            }
+        }
+    }
 
-                if (!properties.isEmpty()) {
-                    try {
-                        configuration.update(properties);
-                    } catch (IOException e) {
-                        logger.warn("Could not store the new active connections: " + e.getMessage(), e);
-                    }
+    private synchronized void storeDelayedConnections() {
+        if (storeScheduled && storeExecutor != null) {
+            long remaining = lastChange + TimeUnit.MILLISECONDS.toNanos(storeDelay) - System.nanoTime();
+            if (remaining > 0) {
+                // There have been changes since this was scheduled, wait until it is quiet
+                storeExecutor.schedule(storeTask, remaining, TimeUnit.NANOSECONDS);
+            } else {
+                storeScheduled = false;
+                writeConnections();
+            }
+        }
+    }
+
+    private void writeConnections() {
+        if (configuration != null) {
+            Dictionary<String, Object> properties = new Hashtable<String, Object>(otherProperties);
+            if (!activeConnections.isEmpty()) {
+                properties.put(KEY_ACTIVE_CONNECTIONS, new ArrayList<String>(activeConnections));
+            }
+
+            if (!properties.isEmpty()) {
+                try {
+                    configuration.update(properties);
+                } catch (IOException e) {
+                    logger.warn("Could not store the new active connections: " + e.getMessage(), e);
                 }
             }
         }
@@ -227,12 +654,12 @@ public class ConnectionManagerImpl implements ConnectionManager {
             String key = getKey(endpoint, properties);
             if (key != null) {
                 EndpointWrapper wrapper = new EndpointWrapper(key, endpoint, this);
-                endpointWrappers.put(key, wrapper);
+                unindex(endpointWrappers.put(key, wrapper));
                 detectPossibleConnections(wrapper);
                 logger.debug("Added endpoint on key [{}]", key);
 
                 if (autoconnect) {
-                    autoConnect();
+                    autoConnectChangedPorts();
                 }
             }
         } catch (IllegalArgumentException ex) {
@@ -240,12 +667,27 @@ public class ConnectionManagerImpl implements ConnectionManager {
         }
     }
 
-    public synchronized void removeEndpoint(Endpoint endpoint, Map<String, ?> properties) {
+    public void removeEndpoint(Endpoint endpoint, Map<String, ?> properties) {
         String key = getKey(endpoint, properties);
         if (key != null) {
-            EndpointWrapper endpointWrapper = endpointWrappers.remove(key);
-            if (endpointWrapper != null && endpointWrapper.getEndpoint() == endpoint) {
-                endpointWrapper.close();
+            EndpointWrapper closing = null;
+            CompletableFuture<Void> disconnected = null;
+            synchronized (this) {
+                EndpointWrapper endpointWrapper = endpointWrappers.remove(key);
+                unindex(endpointWrapper);
+                if (endpointWrapper != null && endpointWrapper.getEndpoint() == endpoint) {
+                    closing = endpointWrapper;
+                    disconnected = endpointWrapper.closeConnections();
+                }
+                if (endpointWrapper != null) {
+                    changedPorts.removeAll(endpointWrapper.getPorts().values());
+                    conflation.clearCache();
+                }
+            }
+
+            // Wait for the disconnects without holding the lock, such that a busy endpoint doesn't hold up the others
+            if (closing != null) {
+                closing.release(disconnected);
                 logger.debug("Removed endpoint on key [{}]", key);
             }
         }
@@ -260,47 +702,32 @@ public class ConnectionManagerImpl implements ConnectionManager {
         return key;
     }
 
-    private void detectPossibleConnections(EndpointWrapper leftWrapper) {
-        for (EndpointPortImpl left : leftWrapper.getPorts().values()) {
-            for (EndpointWrapper rightWrapper : endpointWrappers.values()) {
-                if (leftWrapper != rightWrapper) {
-                    for (EndpointPortImpl right : rightWrapper.getPorts().values()) {
-                        if (isSubset(left.getPort().sends(), right.getPort().accepts()) && isSubset(right.getPort()
-                                                                                                         .sends(),
-                                                                                                    left.getPort()
-                                                                                                        .accepts())) {
-                            PotentialConnectionImpl connection = new PotentialConnectionImpl(left, right);
-                            logger.info("Found matching ports: {} <--> {}", left, right);
-                            left.addMatch(connection);
-                            right.addMatch(connection);
-
-                            String key = connection.toString();
-                            if (activeConnections.contains(key)) {
-                                logger.info("Auto-starting connection on {}", connection);
-                                connection.connect();
-                            }
-                        }
-                    }
-                }
+    private void unindex(EndpointWrapper wrapper) {
+        if (wrapper != null) {
+            for (EndpointPortImpl port : wrapper.getPorts().values()) {
+                portIndex.remove(port);
             }
         }
     }
 
-    private static boolean isSubset(Class<?>[] sends, Class<?>[] accepts) {
-        boolean correct = true;
-        for (Class<?> send : sends) {
-            correct = false;
-            for (Class<?> accept : accepts) {
-                if (accept.isAssignableFrom(send)) {
-                    correct = true;
-                    break;
+    private void detectPossibleConnections(EndpointWrapper leftWrapper) {
+        for (EndpointPortImpl left : leftWrapper.getPorts().values()) {
+            for (EndpointPortImpl right : portIndex.getMatches(left)) {
+                PotentialConnectionImpl connection = new PotentialConnectionImpl(left, right);
+                logger.info("Found matching ports: {} <--> {}", left, right);
+                left.addMatch(connection);
+                right.addMatch(connection);
+
+                String key = connection.toString();
+                if (activeConnections.contains(key)) {
+                    logger.info("Auto-starting connection on {}", connection);
+                    connectAsync(connection);
                 }
             }
-            if (!correct) {
-                break;
-            }
         }
-        return correct;
+        for (EndpointPortImpl port : leftWrapper.getPorts().values()) {
+            portIndex.add(port);
+        }
     }
 
     @Reference(name = "messageListener",
@@ -340,31 +767,83 @@ public class ConnectionManagerImpl implements ConnectionManager {
         return endpointWrappers.toString();
     }
 
+    /**
+     * Marks a port of which the potential connections have changed, or of which a connection has been disconnected.
+     * Only those ports can be autoconnected by the next {@link #autoConnectChangedPorts()}, the other ports have
+     * already been considered by an earlier autoconnect.
+     *
+     * @param port
+     *            The port that has changed
+     */
+    void portChanged(EndpointPortImpl port) {
+        changedPorts.add(port);
+    }
+
+    /**
+     * Autoconnects all the ports and waits until the connections have been made. The connections are made in
+     * parallel, without holding the lock of the connection manager.
+     */
     @Override
-    public synchronized void autoConnect() {
+    public void autoConnect() {
+        List<CompletableFuture<Void>> connects;
+        synchronized (this) {
+            changedPorts.clear();
+            List<EndpointPortImpl> ports = new ArrayList<EndpointPortImpl>();
+            for (EndpointWrapper ew : endpointWrappers.values()) {
+                ports.addAll(ew.getPorts().values());
+            }
+            connects = autoConnect(ports);
+        }
+
+        for (CompletableFuture<Void> connect : connects) {
+            try {
+                connect.join();
+            } catch (CompletionException ex) {
+                // Already logged
+            }
+        }
+    }
+
+    /**
+     * Does the same as {@link #autoConnect()}, but only for the ports that have changed since the last autoconnect.
+     */
+    private void autoConnectChangedPorts() {
+        List<EndpointPortImpl> ports = new ArrayList<EndpointPortImpl>();
+        for (Iterator<EndpointPortImpl> it = changedPorts.iterator(); it.hasNext();) {
+            EndpointPortImpl port = it.next();
+            it.remove();
+            // Skip the ports of endpoints that have been removed or replaced
+            if (endpointWrappers.get(port.getEndpoint().getPid()) == port.getEndpoint()) {
+                ports.add(port);
+            }
+        }
+        Collections.sort(ports, PortIndex.BY_NAME);
+        autoConnect(ports);
+    }
+
+    private List<CompletableFuture<Void>> autoConnect(List<EndpointPortImpl> ports) {
+        List<CompletableFuture<Void>> connects = new ArrayList<CompletableFuture<Void>>();
         waitWithStoring = true;
 
-        for (EndpointWrapper ew : endpointWrappers.values()) {
-            for (EndpointPortImpl port : ew.getPorts().values()) {
-                // Try each port detected in the system. We can only auto-connect ports that have single cardinality
-                if (port.getCardinality() == Cardinality.SINGLE) {
-                    SortedMap<String, PotentialConnectionImpl> potentialConnections = port.getPotentialConnections();
-                    // If there is only 1 potential connection to be made, it can be connected
-                    if (potentialConnections.size() == 1) {
-                        PotentialConnectionImpl connection = potentialConnections.get(potentialConnections.firstKey());
-                        synchronized (connection) {
-                            // But only if it not connected already
-                            if (!connection.isConnected()) {
-                                EndpointPortImpl otherEnd = connection.getOtherEnd(port);
-                                // Or if the other is has a single cardinality and has other potential connections that
-                                // it can make
-                                if ((otherEnd.getCardinality() == Cardinality.SINGLE
-                                     && otherEnd.getPotentialConnections()
-                                                .size() == 1)
-                                    || otherEnd.getCardinality() == Cardinality.MULTIPLE) {
-                                    connection.connect();
-                                    logger.debug("Autoconnected [" + port + "] to [" + otherEnd + "]");
-                                }
+        for (EndpointPortImpl port : ports) {
+            // Try each of the given ports. We can only auto-connect ports that have single cardinality
+            if (port.getCardinality() == Cardinality.SINGLE) {
+                SortedMap<String, PotentialConnectionImpl> potentialConnections = port.getPotentialConnections();
+                // If there is only 1 potential connection to be made, it can be connected
+                if (potentialConnections.size() == 1) {
+                    PotentialConnectionImpl connection = potentialConnections.get(potentialConnections.firstKey());
+                    synchronized (connection) {
+                        // But only if it not connected already
+                        if (!connection.isConnected()) {
+                            EndpointPortImpl otherEnd = connection.getOtherEnd(port);
+                            // Or if the other is has a single cardinality and has other potential connections that
+                            // it can make
+                            if ((otherEnd.getCardinality() == Cardinality.SINGLE
+                                 && otherEnd.getPotentialConnections()
+                                            .size() == 1)
+                                || otherEnd.getCardinality() == Cardinality.MULTIPLE) {
+                                connects.add(connectAsync(connection));
+                                logger.debug("Autoconnecting [" + port + "] to [" + otherEnd + "]");
                             }
                         }
                     }
@@ -374,6 +853,7 @@ public class ConnectionManagerImpl implements ConnectionManager {
 
         waitWithStoring = false;
         storeConnections();
+        return connects;
     }
 
     public MessageListenerContainer getMessageListenerContainer() {
@@ -3,6 +3,7 @@ package org.flexiblepower.runtime.messaging;
 import java.util.Collections;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 import org.flexiblepower.messaging.Cardinality;
 import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
@@ -57,10 +58,12 @@ public class EndpointPortImpl implements EndpointPort {
 
     protected void addMatch(PotentialConnectionImpl match) {
         potentialConnections.put(getKey(match), match);
+        endpoint.getConnectionManager().portChanged(this);
     }
 
     protected void removeMatch(PotentialConnectionImpl match) {
         potentialConnections.remove(getKey(match));
+        endpoint.getConnectionManager().portChanged(this);
     }
 
     private String getKey(PotentialConnectionImpl match) {
@@ -81,12 +84,36 @@ public class EndpointPortImpl implements EndpointPort {
         return false;
     }
 
+    /**
+     * @return true when one of the connections of this port is connected or is being connected
+     */
+    boolean isInUse() {
+        for (PotentialConnectionImpl match : potentialConnections.values()) {
+            if (match.isConnected() || match.isConnecting()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void close() {
+        closeAsync().join();
+    }
+
+    /**
+     * Closes all the connections of this port at once and removes them, see
+     * {@link PotentialConnectionImpl#closeAsync()}.
+     *
+     * @return A future that completes when the endpoints have handled all the disconnects
+     */
+    CompletableFuture<Void> closeAsync() {
         PotentialConnectionImpl[] conns = getPotentialConnections().values().toArray(new PotentialConnectionImpl[0]);
-        for (PotentialConnectionImpl connection : conns) {
-            connection.close();
-            removeMatch(connection);
-            connection.getOtherEnd(this).removeMatch(connection);
+        CompletableFuture<?>[] closed = new CompletableFuture<?>[conns.length];
+        for (int ix = 0; ix < conns.length; ix++) {
+            closed[ix] = conns[ix].closeAsync();
+            removeMatch(conns[ix]);
+            conns[ix].getOtherEnd(this).removeMatch(conns[ix]);
         }
+        return CompletableFuture.allOf(closed);
     }
 }
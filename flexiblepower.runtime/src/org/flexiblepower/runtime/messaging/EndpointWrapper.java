@@ -1,15 +1,25 @@
 package org.flexiblepower.runtime.messaging;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.messaging.Connection;
 import org.flexiblepower.messaging.ConnectionManager.ManagedEndpoint;
 import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
 import org.flexiblepower.messaging.Port;
 import org.flexiblepower.messaging.Ports;
 import org.flexiblepower.runtime.context.RuntimeContext;
+import org.flexiblepower.scheduling.AbstractScheduler;
+import org.flexiblepower.scheduling.JobPriority;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkUtil;
@@ -19,11 +29,15 @@ import org.slf4j.LoggerFactory;
 
 /**
  * The {@link EndpointWrapper} wraps the {@link Endpoint} object and makes sure that each message is handled on a
- * separate thread.
+ * separate thread. The messages are collected in a {@link Mailbox} per priority, which is executed in batches by the
+ * context of the endpoint.
  */
 public class EndpointWrapper implements ManagedEndpoint, Closeable {
     private static final Logger logger = LoggerFactory.getLogger(EndpointWrapper.class);
 
+    // The number of seconds that a closing endpoint waits for its disconnects, before its context is released
+    static final long DISCONNECT_TIMEOUT = 30;
+
     private final String pid;
     private final Endpoint endpoint;
     private final ConnectionManagerImpl connectionManager;
@@ -34,6 +48,9 @@ public class EndpointWrapper implements ManagedEndpoint, Closeable {
 
     private final SortedMap<String, EndpointPortImpl> ports;
 
+    // One mailbox per priority, indexed by the ordinal
+    private final Mailbox[] mailboxes;
+
     /**
      * @param pid
      *            The persistent identifier of the {@link Endpoint} that uniquely identifies it.
@@ -47,6 +64,10 @@ public class EndpointWrapper implements ManagedEndpoint, Closeable {
         this.endpoint = endpoint;
         this.connectionManager = connectionManager;
         ports = new TreeMap<String, EndpointPortImpl>();
+        mailboxes = new Mailbox[JobPriority.values().length];
+        for (JobPriority priority : JobPriority.values()) {
+            mailboxes[priority.ordinal()] = new Mailbox(this, priority);
+        }
         parsePorts(endpoint.getClass());
         checkPorts();
 
@@ -158,14 +179,85 @@ public class EndpointWrapper implements ManagedEndpoint, Closeable {
         return ports;
     }
 
+    /**
+     * Calls {@link Endpoint#onConnect(Connection)} on the context of this endpoint. When the current thread already
+     * executes that context, it is called right away.
+     *
+     * @param connection
+     *            The connection that is being made
+     * @return The {@link MessageHandler} that the endpoint returned, or <code>null</code> when it failed
+     */
+    CompletableFuture<MessageHandler> connect(Connection connection) {
+        CompletableFuture<MessageHandler> result = new CompletableFuture<MessageHandler>();
+        Command command = new Command.Connect(endpoint, connection, result);
+        if (isContextThread()) {
+            command.run();
+        } else {
+            addCommand(command);
+        }
+        return result;
+    }
+
     void addCommand(Command command) {
-        endpointContext.submit(command);
+        mailboxes[command.getPriority().ordinal()].add(command);
+    }
+
+    /**
+     * @return true when the current thread is executing the jobs of the context of this endpoint
+     */
+    boolean isContextThread() {
+        return endpointContext instanceof AbstractScheduler
+               && ((AbstractScheduler) endpointContext).isExecutionThread();
+    }
+
+    /**
+     * Submits the job of a {@link Mailbox} to the context of the endpoint.
+     */
+    void submit(Mailbox mailbox) {
+        if (endpointContext instanceof AbstractScheduler) {
+            ((AbstractScheduler) endpointContext).submitWithPriority(mailbox, mailbox.getPriority());
+        } else {
+            endpointContext.submit(mailbox);
+        }
+    }
+
+    /**
+     * Closes the connections of all the ports at once. The endpoints handle the disconnects on their own contexts, so
+     * the context of this endpoint should only be released afterwards, see {@link #release(CompletableFuture)}.
+     *
+     * @return A future that completes when the endpoints have handled all the disconnects
+     */
+    CompletableFuture<Void> closeConnections() {
+        List<CompletableFuture<Void>> closed = new ArrayList<CompletableFuture<Void>>();
+        for (EndpointPortImpl port : ports.values()) {
+            closed.add(port.closeAsync());
+        }
+        return CompletableFuture.allOf(closed.toArray(new CompletableFuture<?>[closed.size()]));
     }
 
     @Override
     public void close() {
-        for (EndpointPortImpl port : ports.values()) {
-            port.close();
+        release(closeConnections());
+    }
+
+    /**
+     * Releases the context of this endpoint, after waiting at most {@link #DISCONNECT_TIMEOUT} seconds for the
+     * disconnects to be handled.
+     *
+     * @param disconnected
+     *            The future that was returned by {@link #closeConnections()}
+     */
+    void release(CompletableFuture<Void> disconnected) {
+        try {
+            disconnected.get(DISCONNECT_TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            logger.warn("The disconnects of endpoint [{}] were not handled within {} seconds, closing it anyway",
+                        pid,
+                        DISCONNECT_TIMEOUT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            logger.warn("Error while disconnecting endpoint [" + pid + "]: " + ex.getMessage(), ex);
         }
 
         if (serviceReference != null) {
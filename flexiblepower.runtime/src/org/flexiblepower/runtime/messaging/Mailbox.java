@@ -0,0 +1,110 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.flexiblepower.scheduling.JobPriority;
+
+/**
+ * The {@link Mailbox} collects the {@link Command}s of a single priority for an {@link EndpointWrapper}. Instead of a
+ * job per command, a single job is submitted to the context of the endpoint when the first command arrives. That job
+ * executes the commands in the order in which they were added, up to the batch size of the {@link EndpointWrapper},
+ * after which it submits itself again such that the other jobs of the endpoint also get their turn.
+ *
+ * <p>
+ * Adding a command does not take a lock: the commands are pushed on a stack, which the job takes over as a whole and
+ * reverses. Only the first command after the mailbox has been emptied submits a job, and thus wakes up the scheduler.
+ */
+final class Mailbox implements Runnable {
+    private static final class Node {
+        final Command command;
+        Node next;
+
+        Node(Command command) {
+            this.command = command;
+        }
+    }
+
+    private final EndpointWrapper endpoint;
+    private final JobPriority priority;
+
+    // The commands that have been added but not taken yet, newest first
+    private final AtomicReference<Node> incoming;
+    // Whether a job has been submitted that will run the commands
+    private final AtomicBoolean scheduled;
+
+    // The commands that have been taken, oldest first, only touched by the job
+    private Node first;
+
+    Mailbox(EndpointWrapper endpoint, JobPriority priority) {
+        this.endpoint = endpoint;
+        this.priority = priority;
+        incoming = new AtomicReference<Node>();
+        scheduled = new AtomicBoolean(false);
+    }
+
+    JobPriority getPriority() {
+        return priority;
+    }
+
+    void add(Command command) {
+        Node node = new Node(command);
+        Node head;
+        do {
+            head = incoming.get();
+            node.next = head;
+        } while (!incoming.compareAndSet(head, node));
+
+        if (scheduled.compareAndSet(false, true)) {
+            endpoint.submit(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        int batchSize = endpoint.getConnectionManager().getMailboxBatchSize();
+        try {
+            for (int ix = 0; ix < batchSize; ix++) {
+                Command command = poll();
+                if (command == null) {
+                    break;
+                }
+                command.run();
+            }
+        } finally {
+            if (first != null || incoming.get() != null) {
+                endpoint.submit(this);
+            } else {
+                scheduled.set(false);
+                // A command that was added after the check has seen that the job was still scheduled
+                if (incoming.get() != null && scheduled.compareAndSet(false, true)) {
+                    endpoint.submit(this);
+                }
+            }
+        }
+    }
+
+    private Command poll() {
+        if (first == null) {
+            Node node = incoming.getAndSet(null);
+            while (node != null) {
+                Node next = node.next;
+                node.next = first;
+                first = node;
+                node = next;
+            }
+            if (first == null) {
+                return null;
+            }
+        }
+        Node node = first;
+        first = node.next;
+        node.next = null;
+        return node.command;
+    }
+
+    @Override
+    public String toString() {
+        return "Mailbox of " + endpoint.getPid() + " (" + priority + ")";
+    }
+}
@@ -1,12 +1,12 @@
 package org.flexiblepower.runtime.messaging;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
 import org.flexiblepower.messaging.Filter;
@@ -14,21 +14,37 @@ import org.flexiblepower.messaging.MessageListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MessageListenerContainer implements Runnable {
+/**
+ * Publishes the messages that are sent over the connections to the registered {@link MessageListener}s. Each listener
+ * has its own thread and a fixed size ring buffer, such that a slow listener does not delay the others. When the
+ * buffer of a listener is full, new messages for that listener are dropped and counted. Without listeners, publishing
+ * a message costs nothing more than a volatile read.
+ */
+public class MessageListenerContainer {
     private static final Logger logger = LoggerFactory.getLogger(MessageListenerContainer.class);
 
-    private final Map<MessageListener, List<Class<?>>> messageListeners;
-    private final BlockingQueue<Data> data;
-    private final Thread thread;
-    private volatile boolean running;
+    static final int DEFAULT_BUFFER_CAPACITY = 1024;
+
+    private static final ListenerBuffer[] NO_LISTENERS = new ListenerBuffer[0];
+
+    // Replaced as a whole when a listener is added or removed
+    private volatile Dispatch dispatch;
+    private volatile int bufferCapacity;
 
     public MessageListenerContainer() {
-        messageListeners = new ConcurrentHashMap<MessageListener, List<Class<?>>>();
-        data = new LinkedBlockingQueue<MessageListenerContainer.Data>();
-        running = true;
+        dispatch = new Dispatch(NO_LISTENERS);
+        bufferCapacity = DEFAULT_BUFFER_CAPACITY;
+    }
 
-        thread = new Thread(this, "MessageListeners Thread");
-        thread.start();
+    /**
+     * @param bufferCapacity
+     *            The number of messages that can wait for each listener that is added after this call
+     */
+    public void setBufferCapacity(int bufferCapacity) {
+        if (bufferCapacity < 1) {
+            throw new IllegalArgumentException("The buffer capacity should be at least 1");
+        }
+        this.bufferCapacity = bufferCapacity;
     }
 
     public synchronized void addMessageListener(MessageListener messageListener) {
@@ -40,80 +56,210 @@ public class MessageListenerContainer implements Runnable {
             }
         }
 
-        messageListeners.put(messageListener, filter);
+        ListenerBuffer buffer = new ListenerBuffer(messageListener, filter, bufferCapacity);
+        ListenerBuffer[] listeners = dispatch.listeners;
+        ListenerBuffer[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = buffer;
+        buffer.start();
+        dispatch = new Dispatch(newListeners);
     }
 
     public synchronized void removeMessageListener(MessageListener messageListener) {
-        messageListeners.remove(messageListener);
+        ListenerBuffer[] listeners = dispatch.listeners;
+        for (int ix = 0; ix < listeners.length; ix++) {
+            if (listeners[ix].messageListener == messageListener) {
+                ListenerBuffer[] newListeners = new ListenerBuffer[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, ix);
+                System.arraycopy(listeners, ix + 1, newListeners, ix, newListeners.length - ix);
+                dispatch = new Dispatch(newListeners);
+                listeners[ix].stop();
+                return;
+            }
+        }
     }
 
     public void publishMessage(EndpointPort from, EndpointPort to, Object message) {
-        data.add(new Data(from, to, message));
+        Dispatch dispatch = this.dispatch;
+        if (dispatch.listeners.length == 0) {
+            return;
+        }
+        for (ListenerBuffer buffer : dispatch.getListeners(message.getClass())) {
+            buffer.offer(from, to, message);
+        }
     }
 
-    private boolean matches(List<Class<?>> filter, Class<? extends Object> clazz) {
-        if (filter == null || filter.isEmpty()) {
-            // No effective filter, so it matches
-            return true;
-        }
-        for (Class<?> filterClass : filter) {
-            if (filterClass.isAssignableFrom(clazz)) {
-                return true;
-            }
+    /**
+     * @return The number of messages that have been dropped because the buffer of a listener was full, summed over the
+     *         current listeners
+     */
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (ListenerBuffer buffer : dispatch.listeners) {
+            dropped += buffer.getDroppedCount();
         }
-        return false;
+        return dropped;
     }
 
-    public void close() {
+    public synchronized void close() {
+        ListenerBuffer[] listeners = dispatch.listeners;
+        dispatch = new Dispatch(NO_LISTENERS);
+        for (ListenerBuffer buffer : listeners) {
+            buffer.stop();
+        }
         try {
-            running = false;
-            thread.interrupt();
-            thread.join();
+            for (ListenerBuffer buffer : listeners) {
+                buffer.join();
+            }
         } catch (InterruptedException ex) {
             // Ignore
         }
     }
 
-    @Override
-    public void run() {
-        while (running) {
-            try {
-                Data data = this.data.take();
-                for (Entry<MessageListener, List<Class<?>>> entry : messageListeners.entrySet()) {
-                    MessageListener messageListener = entry.getKey();
-                    List<Class<?>> filter = entry.getValue();
-                    if (matches(filter, data.getMessage().getClass())) {
-                        messageListener.handleMessage(data.getFrom(), data.getTo(), data.getMessage());
+    /**
+     * The listeners and the cache of which of them accept each message class. A stale lookup that races with a change
+     * of the listeners only ends up in the cache of the replaced {@link Dispatch}.
+     */
+    private static final class Dispatch {
+        final ListenerBuffer[] listeners;
+        private final ConcurrentMap<Class<?>, ListenerBuffer[]> cache;
+
+        Dispatch(ListenerBuffer[] listeners) {
+            this.listeners = listeners;
+            cache = new ConcurrentHashMap<Class<?>, ListenerBuffer[]>();
+        }
+
+        ListenerBuffer[] getListeners(Class<?> clazz) {
+            ListenerBuffer[] result = cache.get(clazz);
+            if (result == null) {
+                List<ListenerBuffer> matching = new ArrayList<ListenerBuffer>();
+                for (ListenerBuffer buffer : listeners) {
+                    if (buffer.matches(clazz)) {
+                        matching.add(buffer);
                     }
                 }
-            } catch (InterruptedException ex) {
-                // Ignore
-            } catch (Exception ex) {
-                logger.warn("Error while publishing message to a listener: " + ex.getMessage(), ex);
+                result = matching.toArray(new ListenerBuffer[matching.size()]);
+                cache.put(clazz, result);
             }
+            return result;
         }
     }
 
-    public static final class Data {
-        private final EndpointPort from, to;
-        private final Object message;
+    /**
+     * The ring buffer and thread of a single {@link MessageListener}. The slots are allocated once, such that
+     * publishing a message does not allocate anything.
+     */
+    private static final class ListenerBuffer implements Runnable {
+        final MessageListener messageListener;
+        private final List<Class<?>> filter;
+        private final Thread thread;
+        private volatile boolean running;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        // Guarded by the lock
+        private final EndpointPort[] froms, tos;
+        private final Object[] messages;
+        private int head, size;
+        private long dropped;
+
+        ListenerBuffer(MessageListener messageListener, List<Class<?>> filter, int capacity) {
+            this.messageListener = messageListener;
+            this.filter = filter;
+            froms = new EndpointPort[capacity];
+            tos = new EndpointPort[capacity];
+            messages = new Object[capacity];
+            running = true;
+            thread = new Thread(this, "MessageListeners Thread (" + messageListener.getClass().getName() + ")");
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            thread.interrupt();
+        }
+
+        void join() throws InterruptedException {
+            thread.join();
+        }
 
-        public Data(EndpointPort from, EndpointPort to, Object message) {
-            this.from = from;
-            this.to = to;
-            this.message = message;
+        boolean matches(Class<?> clazz) {
+            if (filter.isEmpty()) {
+                // No effective filter, so it matches
+                return true;
+            }
+            for (Class<?> filterClass : filter) {
+                if (filterClass.isAssignableFrom(clazz)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
-        public EndpointPort getFrom() {
-            return from;
+        void offer(EndpointPort from, EndpointPort to, Object message) {
+            lock.lock();
+            try {
+                int capacity = messages.length;
+                if (size == capacity) {
+                    if (dropped++ == 0) {
+                        logger.warn("The message listener {} can't keep up, dropping messages", messageListener);
+                    }
+                    return;
+                }
+                int tail = (head + size) % capacity;
+                froms[tail] = from;
+                tos[tail] = to;
+                messages[tail] = message;
+                if (size++ == 0) {
+                    notEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public EndpointPort getTo() {
-            return to;
+        long getDroppedCount() {
+            lock.lock();
+            try {
+                return dropped;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public Object getMessage() {
-            return message;
+        @Override
+        public void run() {
+            while (running) {
+                EndpointPort from, to;
+                Object message;
+                lock.lock();
+                try {
+                    while (size == 0) {
+                        notEmpty.await();
+                    }
+                    from = froms[head];
+                    to = tos[head];
+                    message = messages[head];
+                    froms[head] = null;
+                    tos[head] = null;
+                    messages[head] = null;
+                    head = (head + 1) % messages.length;
+                    size--;
+                } catch (InterruptedException ex) {
+                    // Checks whether it is still running
+                    continue;
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    messageListener.handleMessage(from, to, message);
+                } catch (Exception ex) {
+                    logger.warn("Error while publishing message to a listener: " + ex.getMessage(), ex);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,50 @@
+package org.flexiblepower.runtime.messaging;
+
+import org.flexiblepower.ral.messages.Allocation;
+import org.flexiblepower.ral.messages.AllocationRevoke;
+import org.flexiblepower.scheduling.JobPriority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Determines the {@link JobPriority} with which a message is handled by its receiving endpoint. Emergency
+ * {@link Allocation}s and {@link AllocationRevoke}s are handled before anything else, all other messages get the
+ * {@link JobPriority#MESSAGE} priority.
+ *
+ * <p>
+ * The resource abstraction layer is an optional import of this bundle. When it is not available, all the messages are
+ * handled as normal messages.
+ */
+final class MessagePriorities {
+    private static final Logger logger = LoggerFactory.getLogger(MessagePriorities.class);
+
+    private static final boolean RAL_AVAILABLE = isRalAvailable();
+
+    private MessagePriorities() {
+    }
+
+    private static boolean isRalAvailable() {
+        try {
+            Allocation.class.getName();
+            AllocationRevoke.class.getName();
+            return true;
+        } catch (LinkageError ex) {
+            logger.info("The resource abstraction layer is not available, all messages get the same priority");
+            return false;
+        }
+    }
+
+    static JobPriority getPriority(Object message) {
+        if (RAL_AVAILABLE && isEmergency(message)) {
+            return JobPriority.EMERGENCY;
+        }
+        return JobPriority.MESSAGE;
+    }
+
+    private static boolean isEmergency(Object message) {
+        if (message instanceof Allocation) {
+            return ((Allocation) message).isEmergencyAllocation();
+        }
+        return message instanceof AllocationRevoke;
+    }
+}
@@ -0,0 +1,26 @@
+package org.flexiblepower.runtime.messaging;
+
+/**
+ * Determines what happens when a message is sent over a connection that already holds as many undelivered messages as
+ * its capacity, see the configuration of the {@link ConnectionManagerImpl}.
+ */
+public enum OverflowPolicy {
+    /**
+     * The sender waits until the receiver has handled a message. When the sender is the receiving endpoint itself,
+     * waiting would never end, so then the message is accepted anyway. When there is still no room after the block
+     * timeout, or the sender is interrupted, the new message is dropped.
+     */
+    BLOCK,
+    /**
+     * The oldest undelivered message is dropped to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * The new message is dropped.
+     */
+    DROP_NEWEST,
+    /**
+     * The new message is dropped and the sender gets an {@link IllegalStateException}.
+     */
+    FAIL
+}
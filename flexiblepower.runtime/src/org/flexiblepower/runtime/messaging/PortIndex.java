@@ -0,0 +1,190 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.flexiblepower.messaging.Port;
+
+/**
+ * Finds the ports that match a port, without comparing it to every other port. Two ports match when each message type
+ * that one of them sends is accepted by the other. The ports are indexed by the message types that they accept and
+ * send, such that the candidates of a port come from lookups of its message types. Only those candidates get the full
+ * check.
+ *
+ * <p>
+ * This class is not thread-safe, the {@link ConnectionManagerImpl} guards it with its own lock.
+ */
+final class PortIndex {
+    static final Comparator<EndpointPortImpl> BY_NAME = new Comparator<EndpointPortImpl>() {
+        @Override
+        public int compare(EndpointPortImpl o1, EndpointPortImpl o2) {
+            return o1.toString().compareTo(o2.toString());
+        }
+    };
+
+    // The ports that accept each message type
+    private final Map<Class<?>, Set<EndpointPortImpl>> accepting = new HashMap<Class<?>, Set<EndpointPortImpl>>();
+    // The ports that send each message type
+    private final Map<Class<?>, Set<EndpointPortImpl>> sending = new HashMap<Class<?>, Set<EndpointPortImpl>>();
+    // The ports that don't send anything, which match any port that accepts what they accept
+    private final Set<EndpointPortImpl> silent = new HashSet<EndpointPortImpl>();
+    // The class itself, its superclasses and all its interfaces, only for the classes that indexed ports send
+    private final Map<Class<?>, Set<Class<?>>> supertypes = new HashMap<Class<?>, Set<Class<?>>>();
+    // The number of candidates that got the full check
+    private long comparisons;
+
+    void add(EndpointPortImpl port) {
+        Port definition = port.getPort();
+        for (Class<?> accept : definition.accepts()) {
+            add(accepting, accept, port);
+        }
+        for (Class<?> send : definition.sends()) {
+            add(sending, send, port);
+        }
+        if (definition.sends().length == 0) {
+            silent.add(port);
+        }
+    }
+
+    private static void add(Map<Class<?>, Set<EndpointPortImpl>> index, Class<?> clazz, EndpointPortImpl port) {
+        Set<EndpointPortImpl> ports = index.get(clazz);
+        if (ports == null) {
+            ports = new HashSet<EndpointPortImpl>();
+            index.put(clazz, ports);
+        }
+        ports.add(port);
+    }
+
+    void remove(EndpointPortImpl port) {
+        Port definition = port.getPort();
+        for (Class<?> accept : definition.accepts()) {
+            remove(accepting, accept, port);
+        }
+        for (Class<?> send : definition.sends()) {
+            remove(sending, send, port);
+            if (!sending.containsKey(send)) {
+                // Don't keep the classes of bundles that are gone
+                supertypes.remove(send);
+            }
+        }
+        silent.remove(port);
+    }
+
+    private static void remove(Map<Class<?>, Set<EndpointPortImpl>> index, Class<?> clazz, EndpointPortImpl port) {
+        Set<EndpointPortImpl> ports = index.get(clazz);
+        if (ports != null) {
+            ports.remove(port);
+            if (ports.isEmpty()) {
+                index.remove(clazz);
+            }
+        }
+    }
+
+    /**
+     * @param port
+     *            The port for which the matches are searched, which doesn't need to be in the index
+     * @return The ports of other endpoints in the index that match the port, ordered by their name
+     */
+    List<EndpointPortImpl> getMatches(EndpointPortImpl port) {
+        Port definition = port.getPort();
+        Set<EndpointPortImpl> candidates = new HashSet<EndpointPortImpl>();
+        if (definition.sends().length > 0) {
+            // A match has to accept (a supertype of) the first message type that the port sends
+            for (Class<?> supertype : getSupertypes(definition.sends()[0])) {
+                Set<EndpointPortImpl> ports = accepting.get(supertype);
+                if (ports != null) {
+                    candidates.addAll(ports);
+                }
+            }
+        } else {
+            // A match has to send nothing, or only what the port accepts. The number of distinct message types is
+            // small compared to the number of ports.
+            candidates.addAll(silent);
+            for (Entry<Class<?>, Set<EndpointPortImpl>> entry : sending.entrySet()) {
+                if (isAccepted(entry.getKey(), definition.accepts())) {
+                    candidates.addAll(entry.getValue());
+                }
+            }
+        }
+
+        List<EndpointPortImpl> matches = new ArrayList<EndpointPortImpl>();
+        comparisons += candidates.size();
+        for (EndpointPortImpl candidate : candidates) {
+            if (candidate.getEndpoint() != port.getEndpoint() && matches(port.getPort(), candidate.getPort())) {
+                matches.add(candidate);
+            }
+        }
+        Collections.sort(matches, BY_NAME);
+        return matches;
+    }
+
+    /**
+     * @return The number of candidates that have been compared to a port in {@link #getMatches(EndpointPortImpl)}
+     */
+    long getComparisons() {
+        return comparisons;
+    }
+
+    /**
+     * @return The classes of which the supertypes are cached
+     */
+    Set<Class<?>> getCachedTypes() {
+        return Collections.unmodifiableSet(supertypes.keySet());
+    }
+
+    private Set<Class<?>> getSupertypes(Class<?> clazz) {
+        Set<Class<?>> result = supertypes.get(clazz);
+        if (result == null) {
+            result = new LinkedHashSet<Class<?>>();
+            addSupertypes(clazz, result);
+            supertypes.put(clazz, result);
+        }
+        return result;
+    }
+
+    private static void addSupertypes(Class<?> clazz, Set<Class<?>> result) {
+        if (clazz != null && result.add(clazz)) {
+            addSupertypes(clazz.getSuperclass(), result);
+            for (Class<?> iface : clazz.getInterfaces()) {
+                addSupertypes(iface, result);
+            }
+        }
+        if (clazz != null && clazz.isInterface()) {
+            // Any interface type can be assigned to Object
+            result.add(Object.class);
+        }
+    }
+
+    /**
+     * @return true when each message type that the one port sends is accepted by the other and vice versa
+     */
+    static boolean matches(Port left, Port right) {
+        return isSubset(left.sends(), right.accepts()) && isSubset(right.sends(), left.accepts());
+    }
+
+    private static boolean isSubset(Class<?>[] sends, Class<?>[] accepts) {
+        for (Class<?> send : sends) {
+            if (!isAccepted(send, accepts)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAccepted(Class<?> send, Class<?>[] accepts) {
+        for (Class<?> accept : accepts) {
+            if (accept.isAssignableFrom(send)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,17 +1,30 @@
 package org.flexiblepower.runtime.messaging;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 import org.flexiblepower.messaging.Cardinality;
 import org.flexiblepower.messaging.Connection;
 import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
-import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.messaging.Endpoint;
 import org.flexiblepower.messaging.MessageHandler;
 import org.flexiblepower.messaging.Port;
+import org.flexiblepower.runtime.messaging.api.BoundedConnection;
+import org.flexiblepower.scheduling.JobPriority;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-final class PotentialConnectionImpl implements PotentialConnection {
+final class PotentialConnectionImpl implements BoundedConnection {
     private static final Logger logger = LoggerFactory.getLogger(PotentialConnectionImpl.class);
 
     private static final MessageHandler DUMP = new MessageHandler() {
@@ -25,20 +38,59 @@ final class PotentialConnectionImpl implements PotentialConnection {
         }
     };
 
+    /**
+     * One direction of a connection. Without a capacity or conflation, each message is added to the mailbox of the
+     * receiving endpoint right away. Otherwise the messages are kept in a queue of this connection, from which a single
+     * {@link Deliver} command at a time hands them to the receiver. With a capacity that queue is bounded. With
+     * conflation a message replaces the undelivered message with the same key in place, see {@link Conflation}. The
+     * messages that are sent while the receiver is still connecting are held back until its handler is known. With a
+     * queue they are held in that queue, such that its capacity and overflow policy also apply to them.
+     */
     private static final class HalfConnection implements Connection {
         private final MessageListenerContainer listeners;
         private final EndpointPortImpl fromPort, toPort;
         private final Port port;
         private final EndpointWrapper receivingEndpoint;
         volatile MessageHandler messageHandler;
-
-        public HalfConnection(EndpointPortImpl fromPort, EndpointPortImpl toPort) {
+        // Whether the messageHandler is known, before that the messages are kept in the queue or the pending list
+        private volatile boolean open;
+        // The messages that bypass the queue and have been sent before the connection was open, guarded by this
+        private List<Object> pending = new ArrayList<Object>();
+
+        private final int capacity;
+        private final OverflowPolicy overflowPolicy;
+        private final long blockTimeout;
+        private final AtomicLong overflows;
+        private final Conflation conflation;
+        // The undelivered messages, only used with a capacity or conflation
+        private final ReentrantLock queueLock = new ReentrantLock();
+        private final Condition notFull = queueLock.newCondition();
+        private final ArrayDeque<Object> queue;
+        // The conflated messages in the queue by their key, only used with conflation
+        private final Map<Object, Conflated> conflated;
+        // Guarded by the queueLock, delivering is also set while the connection is not open yet
+        private boolean delivering, overflowed;
+        private Command pendingDisconnect;
+        private final Deliver deliver = new Deliver();
+
+        public HalfConnection(EndpointPortImpl fromPort, EndpointPortImpl toPort, AtomicLong overflows) {
             listeners = fromPort.getEndpoint().getConnectionManager().getMessageListenerContainer();
             this.fromPort = fromPort;
             this.toPort = toPort;
             port = fromPort.getPort();
             receivingEndpoint = toPort.getEndpoint();
             messageHandler = null;
+
+            ConnectionManagerImpl connectionManager = receivingEndpoint.getConnectionManager();
+            capacity = connectionManager.getCapacity(toPort);
+            overflowPolicy = connectionManager.getOverflowPolicy(toPort);
+            blockTimeout = TimeUnit.MILLISECONDS.toNanos(connectionManager.getBlockTimeout());
+            this.overflows = overflows;
+            conflation = connectionManager.getConflation(toPort);
+            queue = capacity > 0 || conflation.isEnabled() ? new ArrayDeque<Object>() : null;
+            conflated = conflation.isEnabled() ? new HashMap<Object, Conflated>() : null;
+            // Nothing can be delivered from the queue until the message handler is known
+            delivering = queue != null;
         }
 
         synchronized void setMessageHandler(MessageHandler messageHandler) {
@@ -46,7 +98,26 @@ final class PotentialConnectionImpl implements PotentialConnection {
                 throw new IllegalStateException("The messageHandler should only be set once");
             }
             this.messageHandler = messageHandler;
-            notifyAll();
+            // Deliver the messages that were held back, before any message that is sent from now on
+            for (Object message : pending) {
+                receivingEndpoint.addCommand(new Command.HandleMessage(message, messageHandler));
+            }
+            pending = null;
+            open = true;
+
+            if (queue != null) {
+                boolean schedule;
+                queueLock.lock();
+                try {
+                    schedule = !queue.isEmpty();
+                    delivering = schedule;
+                } finally {
+                    queueLock.unlock();
+                }
+                if (schedule) {
+                    receivingEndpoint.addCommand(deliver);
+                }
+            }
         }
 
         @Override
@@ -58,31 +129,178 @@ final class PotentialConnectionImpl implements PotentialConnection {
 
             listeners.publishMessage(fromPort, toPort, message);
 
-            MessageHandler messageHandler = this.messageHandler;
-            if (messageHandler == null) {
-                messageHandler = new MessageHandler() {
-                    @Override
-                    public void handleMessage(Object message) {
-                        synchronized (HalfConnection.this) {
-                            while (HalfConnection.this.messageHandler == null) {
-                                try {
-                                    HalfConnection.this.wait(1000);
-                                } catch (InterruptedException e) {
-                                }
+            if (queue == null || MessagePriorities.getPriority(message) == JobPriority.EMERGENCY) {
+                if (!open) {
+                    synchronized (this) {
+                        if (!open) {
+                            pending.add(message);
+                            return;
+                        }
+                    }
+                }
+                receivingEndpoint.addCommand(new Command.HandleMessage(message, messageHandler));
+            } else {
+                enqueue(message);
+            }
+        }
+
+        private void enqueue(Object message) {
+            Object key = conflated == null ? null : conflation.getKey(message);
+            boolean schedule;
+            queueLock.lock();
+            try {
+                if (key != null) {
+                    Conflated waiting = conflated.get(key);
+                    if (waiting != null) {
+                        logger.trace("Replacing message {} by {}", waiting.message, message);
+                        waiting.message = message;
+                        return;
+                    }
+                }
+
+                long remaining = blockTimeout;
+                while (capacity > 0 && queue.size() >= capacity) {
+                    if (overflowPolicy == OverflowPolicy.BLOCK) {
+                        if (receivingEndpoint.isContextThread()) {
+                            // The receiver can not make room while it is sending itself
+                            break;
+                        }
+                        if (remaining > 0) {
+                            try {
+                                remaining = notFull.awaitNanos(remaining);
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                remaining = 0;
                             }
+                            continue;
+                        }
+                        // The receiver is stopped or stuck, so the message is dropped like any other overflow
+                        logger.warn("There was no room on the connection from [{}] to [{}] within {} ms, dropping {}",
+                                    fromPort,
+                                    toPort,
+                                    TimeUnit.NANOSECONDS.toMillis(blockTimeout),
+                                    message);
+                    }
 
-                            HalfConnection.this.messageHandler.handleMessage(message);
+                    overflows.incrementAndGet();
+                    if (!overflowed) {
+                        overflowed = true;
+                        logger.warn("The connection from [{}] to [{}] is full ({} messages), applying {}",
+                                    fromPort,
+                                    toPort,
+                                    capacity,
+                                    overflowPolicy);
+                    }
+                    if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                        logger.debug("Dropping message {}", poll());
+                    } else if (overflowPolicy == OverflowPolicy.DROP_NEWEST || overflowPolicy == OverflowPolicy.BLOCK) {
+                        logger.debug("Dropping message {}", message);
+                        return;
+                    } else {
+                        throw new IllegalStateException("The connection from [" + fromPort
+                                                        + "] to ["
+                                                        + toPort
+                                                        + "] is full");
+                    }
+                }
+                if (key != null) {
+                    Conflated entry = new Conflated(key, message);
+                    conflated.put(key, entry);
+                    queue.add(entry);
+                } else {
+                    queue.add(message);
+                }
+                schedule = !delivering;
+                delivering = true;
+            } finally {
+                queueLock.unlock();
+            }
+
+            if (schedule) {
+                receivingEndpoint.addCommand(deliver);
+            }
+        }
+
+        /**
+         * Takes the oldest message from the queue, while holding the queueLock.
+         *
+         * @return The oldest undelivered message, or <code>null</code> when the queue is empty
+         */
+        private Object poll() {
+            Object message = queue.poll();
+            if (message instanceof Conflated) {
+                Conflated entry = (Conflated) message;
+                conflated.remove(entry.key);
+                return entry.message;
+            }
+            return message;
+        }
+
+        /**
+         * Adds the disconnect command to the mailbox of the receiving endpoint, after the messages that are still in
+         * the queue of this connection.
+         */
+        void disconnect(Command disconnect) {
+            if (queue != null) {
+                queueLock.lock();
+                try {
+                    if (delivering) {
+                        pendingDisconnect = disconnect;
+                        return;
+                    }
+                } finally {
+                    queueLock.unlock();
+                }
+            }
+            receivingEndpoint.addCommand(disconnect);
+        }
+
+        /**
+         * Hands the queued messages to the receiver, up to the batch size of the mailbox. When more messages are
+         * waiting, it adds itself to the end of the mailbox, such that the other connections also get their turn.
+         */
+        private final class Deliver implements Command {
+            @Override
+            public void run() {
+                int batchSize = receivingEndpoint.getConnectionManager().getMailboxBatchSize();
+                MessageHandler messageHandler = HalfConnection.this.messageHandler;
+                for (int ix = 0; ix < batchSize; ix++) {
+                    Object message;
+                    Command disconnect = null;
+                    queueLock.lock();
+                    try {
+                        message = poll();
+                        if (message == null) {
+                            delivering = false;
+                            disconnect = pendingDisconnect;
+                            pendingDisconnect = null;
+                        } else {
+                            notFull.signal();
                         }
+                    } finally {
+                        queueLock.unlock();
                     }
 
-                    @Override
-                    public void disconnected() {
-                        throw new AssertionError("This method should never be called");
+                    if (message == null) {
+                        if (disconnect != null) {
+                            disconnect.run();
+                        }
+                        return;
                     }
-                };
+                    Command.HandleMessage.handle(message, messageHandler);
+                }
+                receivingEndpoint.addCommand(this);
             }
 
-            receivingEndpoint.addCommand(new Command.HandleMessage(message, messageHandler));
+            @Override
+            public JobPriority getPriority() {
+                return JobPriority.MESSAGE;
+            }
+
+            @Override
+            public String toString() {
+                return "Deliver messages from " + fromPort + " to " + toPort;
+            }
         }
 
         @Override
@@ -91,8 +309,30 @@ final class PotentialConnectionImpl implements PotentialConnection {
         }
     }
 
+    /**
+     * The place of a conflated message in the queue of a {@link HalfConnection}. The message is replaced when a newer
+     * one with the same key is sent before it is delivered.
+     */
+    private static final class Conflated {
+        final Object key;
+        // Guarded by the queueLock of the connection
+        Object message;
+
+        Conflated(Object key, Object message) {
+            this.key = key;
+            this.message = message;
+        }
+    }
+
     private final EndpointPortImpl left, right;
     private volatile MessageHandler leftMessageHandler, rightMessageHandler;
+    private volatile HalfConnection leftHalfConnection, rightHalfConnection;
+    // Guarded by this, set while the endpoints are connecting
+    private CompletableFuture<Void> connecting;
+    // Guarded by this, set when the connection is closed while it was connecting
+    private CompletableFuture<Void> closing;
+    // The number of messages that have been dropped or refused because the connection was full, in both directions
+    private final AtomicLong overflows = new AtomicLong();
 
     public PotentialConnectionImpl(EndpointPortImpl left, EndpointPortImpl right) {
         if (left.equals(right)) {
@@ -119,14 +359,14 @@ final class PotentialConnectionImpl implements PotentialConnection {
 
     @Override
     public synchronized boolean isConnectable() {
-        return (!isConnected() && getConnectableError() == null);
+        return (!isConnected() && connecting == null && getConnectableError() == null);
     }
 
     private String getConnectableError() {
-        if (left.getCardinality() == Cardinality.SINGLE && left.isConnected()) {
+        if (left.getCardinality() == Cardinality.SINGLE && left.isInUse()) {
             return "The port [" + left
                    + "] is already connected and doesn't support multiple connections";
-        } else if (right.getCardinality() == Cardinality.SINGLE && right.isConnected()) {
+        } else if (right.getCardinality() == Cardinality.SINGLE && right.isInUse()) {
             return "The port [" + right
                    + "] is already connected and doesn't support multiple connections";
         } else {
@@ -134,72 +374,193 @@ final class PotentialConnectionImpl implements PotentialConnection {
         }
     }
 
+    /**
+     * Connects the endpoints and waits until both have handled the {@link Endpoint#onConnect(Connection)}.
+     *
+     * @see #connectAsync()
+     */
     @Override
-    public synchronized void connect() {
-        if (!isConnected()) {
+    public void connect() {
+        try {
+            connectAsync().join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Starts connecting the endpoints. The {@link Endpoint#onConnect(Connection)} of each endpoint is called on its own
+     * context, such that both can connect at the same time and a slow endpoint doesn't hold up the caller. The messages
+     * that an endpoint sends before the other end has connected, are delivered once it has.
+     *
+     * @return A future that completes when the attempt to connect has finished. When one of the endpoints refused the
+     *         connection, it completes normally but {@link #isConnected()} is false. It fails with an
+     *         {@link IllegalStateException} when a port with a single cardinality is already connected.
+     */
+    public CompletableFuture<Void> connectAsync() {
+        final HalfConnection leftHalfConnection, rightHalfConnection;
+        final CompletableFuture<Void> result;
+        synchronized (this) {
+            if (connecting != null) {
+                return connecting;
+            } else if (isConnected()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
             String connectableError = getConnectableError();
             if (connectableError != null) {
-                throw new IllegalStateException(connectableError);
+                CompletableFuture<Void> failed = new CompletableFuture<Void>();
+                failed.completeExceptionally(new IllegalStateException(connectableError));
+                return failed;
             }
 
             logger.debug("Connecting port [{}] to port [{}]", left, right);
 
-            HalfConnection leftHalfConnection = new HalfConnection(left, right);
-            HalfConnection rightHalfConnection = new HalfConnection(right, left);
+            leftHalfConnection = new HalfConnection(left, right, overflows);
+            rightHalfConnection = new HalfConnection(right, left, overflows);
+            this.leftHalfConnection = leftHalfConnection;
+            this.rightHalfConnection = rightHalfConnection;
+            result = new CompletableFuture<Void>();
+            connecting = result;
+        }
 
-            leftMessageHandler = left.getEndpoint().getEndpoint().onConnect(leftHalfConnection);
-            rightMessageHandler = right.getEndpoint().getEndpoint().onConnect(rightHalfConnection);
+        final CompletableFuture<MessageHandler> leftConnect = left.getEndpoint().connect(leftHalfConnection);
+        final CompletableFuture<MessageHandler> rightConnect = right.getEndpoint().connect(rightHalfConnection);
+        // Finish on another thread, such that no endpoint context waits for the locks that are needed
+        CompletableFuture.allOf(leftConnect, rightConnect).whenCompleteAsync(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable error) {
+                try {
+                    finishConnect(leftConnect.getNow(null), rightConnect.getNow(null));
+                } finally {
+                    result.complete(null);
+                }
+            }
+        });
+        return result;
+    }
+
+    private void finishConnect(MessageHandler leftMessageHandler, MessageHandler rightMessageHandler) {
+        final CompletableFuture<Void> closing;
+        CompletableFuture<Void> closed = null;
+        boolean connected = leftMessageHandler != null && rightMessageHandler != null;
+        synchronized (this) {
+            connecting = null;
+            closing = this.closing;
+            this.closing = null;
+
+            if (connected) {
+                this.leftMessageHandler = leftMessageHandler;
+                this.rightMessageHandler = rightMessageHandler;
+                leftHalfConnection.setMessageHandler(rightMessageHandler);
+                rightHalfConnection.setMessageHandler(leftMessageHandler);
+                logger.debug("Connected port [{}] to port [{}]", left, right);
 
-            if (leftMessageHandler == null || rightMessageHandler == null) {
+                if (closing != null) {
+                    closed = closeAsync();
+                }
+            } else {
                 logger.warn("Could not connect port [{}] to port [{}], because the onConnect failed (returned null)",
-                         left,
-                         right);
+                            left,
+                            right);
 
                 // When one of the connects fails, we need to dump the messages that are received
                 leftHalfConnection.setMessageHandler(DUMP);
                 rightHalfConnection.setMessageHandler(DUMP);
-                disconnect();
-            } else {
-                leftHalfConnection.setMessageHandler(rightMessageHandler);
-                rightHalfConnection.setMessageHandler(leftMessageHandler);
+            }
+        }
 
-                left.getEndpoint().getConnectionManager().connectedPort(toString());
-                logger.debug("Connected port [{}] to port [{}]", left, right);
+        // The connection manager is only called without holding the lock of this connection
+        if (!connected) {
+            disconnectAsync();
+            if (closing != null) {
+                closing.complete(null);
             }
+        } else if (closed != null) {
+            closed.thenRun(new Runnable() {
+                @Override
+                public void run() {
+                    closing.complete(null);
+                }
+            });
+        } else {
+            left.getEndpoint().getConnectionManager().connectedPort(toString());
         }
     }
 
+    /**
+     * Disconnects the endpoints and waits until both have handled the disconnect. The connection is no longer stored as
+     * an active connection.
+     *
+     * @see #disconnectAsync()
+     */
     @Override
-    public synchronized void disconnect() {
-        close();
-        left.getEndpoint().getConnectionManager().disconnectedPort(toString());
+    public void disconnect() {
+        disconnectAsync().join();
     }
 
-    synchronized void close() {
-        if (isConnected()) {
-            logger.debug("Disconnecting port [{}] to port [{}]", left, right);
-            try {
-                CountDownLatch latch = new CountDownLatch(2);
-
-                if (leftMessageHandler != null) {
-                    left.getEndpoint().addCommand(new Command.Disconnect(leftMessageHandler, latch));
-                } else {
-                    latch.countDown();
-                }
+    /**
+     * Starts disconnecting the endpoints, see {@link #closeAsync()}. The connection is no longer stored as an active
+     * connection and both ports could be autoconnected again.
+     *
+     * @return A future that completes when both endpoints have handled the disconnect
+     */
+    public CompletableFuture<Void> disconnectAsync() {
+        CompletableFuture<Void> closed = closeAsync();
+        ConnectionManagerImpl connectionManager = left.getEndpoint().getConnectionManager();
+        connectionManager.disconnectedPort(toString());
+        // Both ends could be autoconnected again
+        connectionManager.portChanged(left);
+        connectionManager.portChanged(right);
+        return closed;
+    }
 
-                if (rightMessageHandler != null) {
-                    right.getEndpoint().addCommand(new Command.Disconnect(rightMessageHandler, latch));
-                } else {
-                    latch.countDown();
-                }
+    /**
+     * Closes the connection and waits until both endpoints have handled the disconnect, without holding the lock of
+     * this connection while waiting.
+     */
+    void close() {
+        closeAsync().join();
+    }
 
-                latch.await();
-            } catch (InterruptedException e) {
+    /**
+     * Closes the connection in two phases. First, while holding the lock of this connection, the message handlers are
+     * detached and a {@link Command.Disconnect} is added to each endpoint, after the messages that it still has to
+     * handle. Then each endpoint handles its disconnect on its own context, while nobody holds the lock. When the
+     * endpoints are still connecting, the connection is closed as soon as they are done.
+     *
+     * @return A future that completes when both endpoints have handled the disconnect
+     */
+    synchronized CompletableFuture<Void> closeAsync() {
+        if (connecting != null) {
+            if (closing == null) {
+                closing = new CompletableFuture<Void>();
             }
-
-            leftMessageHandler = null;
-            rightMessageHandler = null;
+            return closing;
+        } else if (!isConnected()) {
+            return CompletableFuture.completedFuture(null);
         }
+
+        logger.debug("Disconnecting port [{}] to port [{}]", left, right);
+        CompletableFuture<Void> leftDisconnected = new CompletableFuture<Void>();
+        CompletableFuture<Void> rightDisconnected = new CompletableFuture<Void>();
+        // The left endpoint receives its messages over the right half of the connection and vice versa
+        rightHalfConnection.disconnect(new Command.Disconnect(leftMessageHandler, leftDisconnected));
+        leftHalfConnection.disconnect(new Command.Disconnect(rightMessageHandler, rightDisconnected));
+
+        leftMessageHandler = null;
+        rightMessageHandler = null;
+        leftHalfConnection = null;
+        rightHalfConnection = null;
+        return CompletableFuture.allOf(leftDisconnected, rightDisconnected);
+    }
+
+    @Override
+    public long getOverflowCount() {
+        return overflows.get();
     }
 
     @Override
@@ -207,6 +568,13 @@ final class PotentialConnectionImpl implements PotentialConnection {
         return leftMessageHandler != null && rightMessageHandler != null;
     }
 
+    /**
+     * @return true while the endpoints are handling the {@link Endpoint#onConnect(Connection)}
+     */
+    synchronized boolean isConnecting() {
+        return connecting != null;
+    }
+
     @Override
     public String toString() {
         return left.toString() + "-" + right.toString();
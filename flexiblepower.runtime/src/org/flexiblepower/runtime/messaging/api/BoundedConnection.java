@@ -0,0 +1,15 @@
+package org.flexiblepower.runtime.messaging.api;
+
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+
+/**
+ * A {@link PotentialConnection} of the runtime, which can limit the number of undelivered messages that it holds. The
+ * capacity and what happens with the messages that don't fit are configured on the connection manager.
+ */
+public interface BoundedConnection extends PotentialConnection {
+    /**
+     * @return The number of messages that have been dropped or refused because this connection was full, since it was
+     *         first connected
+     */
+    long getOverflowCount();
+}
@@ -1,14 +1,20 @@
 package org.flexiblepower.scheduling;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.measure.Measurable;
 import javax.measure.quantity.Duration;
@@ -21,7 +27,31 @@ import org.slf4j.LoggerFactory;
 
 /**
  * The {@link AbstractScheduler} is a single-thread scheduler that implements most of the {@link FlexiblePowerContext}
- * methods, except the current time.
+ * methods, except the current time. It either runs on its own thread (see {@link #start(String)} and
+ * {@link #start(String, ThreadFactory)}) or as a lane on a shared {@link SchedulerPool} (see
+ * {@link #start(String, SchedulerPool)}). In both cases at most one job is executed at the same time.
+ *
+ * <p>
+ * Jobs that are due are moved from the {@link JobStore} to a ready lane per {@link JobPriority}, and the lane with the
+ * highest priority is served first. A lane that has been passed over {@link #STARVATION_LIMIT} times in a row gets the
+ * next turn, such that a flood of urgent jobs can delay the others, but never block them completely. Subclasses that
+ * run their own loop directly on the {@link #jobs} (like a simulation) execute the jobs in the order of time only.
+ *
+ * <p>
+ * By default the jobs are planned and executed in the time of {@link #currentTimeMillis()}. A scheduler that runs in
+ * real time can use a monotonic clock instead (see {@link #setMonotonicClock(boolean)}), which plans the jobs in
+ * nanoseconds from {@link System#nanoTime()}. Changes of the wall clock then no longer move the jobs and delays below a
+ * millisecond are honoured, while {@link #currentTimeMillis()} still reports the wall time.
+ *
+ * <p>
+ * Jobs that are submitted for immediate execution do not take the lock. They are pushed on a lock-free queue that the
+ * scheduler drains before it looks at the {@link JobStore}, and an idle execution thread is woken up with
+ * {@link LockSupport#unpark(Thread)}. Only the loops of this class drain that queue, so a subclass with its own loop
+ * receives all its jobs through the {@link #jobs}.
+ *
+ * <p>
+ * All the waiting is done through {@link java.util.concurrent.locks} instead of object monitors, such that the
+ * execution thread can be a virtual thread (see {@link VirtualThreads}) without pinning its carrier thread.
  */
 public abstract class AbstractScheduler implements FlexiblePowerContext, Runnable {
     static final SchedulerThreadMonitor THREAD_MONITOR = new SchedulerThreadMonitor();
@@ -31,6 +61,8 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
      */
     public static final Unit<Duration> MS = SI.MILLI(SI.SECOND);
 
+    private static final Unit<Duration> NS = SI.NANO(SI.SECOND);
+
     /**
      * The logger that will be used for all logging. Subclasses should reuse this.
      */
@@ -46,20 +78,124 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
     private final AtomicLong serialGenerator;
 
     /**
-     * The {@link PriorityQueue} of {@link Job}s that are scheduled.
+     * The lock that guards the {@link #jobs}.
+     */
+    protected final ReentrantLock lock;
+
+    /**
+     * The condition of the {@link #lock} that is signalled whenever the {@link #jobs} have changed. The execution thread
+     * waits on this condition when there is no job to execute.
+     */
+    protected final Condition jobsChanged;
+
+    /**
+     * The {@link JobStore} that contains the {@link Job}s that are scheduled. This should only be accessed while
+     * holding the {@link #lock}.
      */
-    protected final PriorityBlockingQueue<Job<?>> jobs;
+    protected volatile JobStore jobs;
+
+    /**
+     * The maximum number of jobs that a lane executes before it gives the thread of the pool back to other lanes.
+     */
+    private static final int MAX_JOBS_PER_TURN = 32;
+
+    /**
+     * The number of times that a job of a higher priority may be executed before a waiting job of a lower priority.
+     */
+    public static final int STARVATION_LIMIT = 16;
+
+    static final int NOT_IN_LANE = -1;
+
+    private static final JobPriority[] PRIORITIES = JobPriority.values();
 
     private volatile Thread thread;
 
+    private volatile long timerSlack;
+
+    private volatile boolean resourceAccounting;
+
+    // The unit of the times of the jobs and the offset that turns System.nanoTime() into nanoseconds since the epoch
+    private volatile TimeUnit timeUnit;
+    private volatile long nanoOffset;
+
+    // Guarded by the lock
+    private final SchedulerMetrics metrics;
+
+    // The ready lanes with the jobs that are due, one FIFO list per priority, guarded by the lock
+    // The jobs with a deadline are at the front of each lane, ordered by their deadline, followed by the others
+    private final Job<?>[] laneHeads, laneTails;
+    private final Job<?>[] laneDeadlineTails;
+    private final int[] laneSizes, laneBypassed;
+    private volatile int readyJobs;
+
+    // The jobs that have been submitted for immediate execution, newest first, linked through Job.nextSubmitted
+    private final AtomicReference<Job<?>> submitted;
+    // Whether the loop of this class is running and thus drains the submitted jobs
+    private volatile boolean directSubmission;
+    // The execution thread while it is parked, waiting for a job
+    private volatile Thread parkedThread;
+
+    // The state of the lane when running on a shared pool, guarded by the lock (the pool may be read without it)
+    private volatile SchedulerPool pool;
+    private String laneName;
+    private ScheduledFuture<?> wakeup;
+    private long wakeupTime;
+    private boolean draining;
+
+    /**
+     * Creates a new {@link AbstractScheduler} that stores its jobs in a {@link HeapJobStore}. The
+     * {@link #start(String)} method should be called to make sure that a thread is running.
+     */
+    public AbstractScheduler() {
+        this(new HeapJobStore());
+    }
+
     /**
      * Creates a new {@link AbstractScheduler}. The {@link #start(String)} method should be called to make sure that a
      * thread is running.
+     *
+     * @param jobs
+     *            The {@link JobStore} in which the scheduled jobs will be kept.
      */
-    public AbstractScheduler() {
+    protected AbstractScheduler(JobStore jobs) {
         running = new AtomicBoolean(false);
         serialGenerator = new AtomicLong();
-        jobs = new PriorityBlockingQueue<Job<?>>();
+        lock = new ReentrantLock();
+        jobsChanged = lock.newCondition();
+        metrics = new SchedulerMetrics();
+        laneHeads = new Job<?>[PRIORITIES.length];
+        laneTails = new Job<?>[PRIORITIES.length];
+        laneDeadlineTails = new Job<?>[PRIORITIES.length];
+        laneSizes = new int[PRIORITIES.length];
+        laneBypassed = new int[PRIORITIES.length];
+        submitted = new AtomicReference<Job<?>>();
+        timeUnit = TimeUnit.MILLISECONDS;
+        resourceAccounting = false;
+        this.jobs = jobs;
+    }
+
+    /**
+     * Replaces the {@link JobStore} of this scheduler. All the jobs that were already scheduled are moved to the new
+     * store. This can only be done before the scheduler has been started.
+     *
+     * @param jobStore
+     *            The new {@link JobStore}
+     */
+    protected void setJobStore(JobStore jobStore) {
+        lock.lock();
+        try {
+            if (running.get()) {
+                throw new IllegalStateException("The job store can not be changed after the scheduler has started");
+            }
+            List<Job<?>> scheduledJobs = jobs.getJobs();
+            jobs.clear();
+            for (Job<?> job : scheduledJobs) {
+                jobStore.add(job);
+            }
+            jobs = jobStore;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -77,6 +213,51 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
         }
     }
 
+    /**
+     * Starts the thread that will execute the jobs, where the thread is created by the given {@link ThreadFactory}.
+     * This can be used to run the scheduler on a virtual thread (see {@link VirtualThreads#getThreadFactory()}).
+     *
+     * @param name
+     *            The name of the scheduler that is used in the thread name.
+     * @param threadFactory
+     *            The factory that creates the execution thread
+     */
+    public void start(String name, ThreadFactory threadFactory) {
+        if (running.compareAndSet(false, true)) {
+            thread = threadFactory.newThread(this);
+            thread.setName("Scheduler thread for " + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Starts executing the jobs as a lane on the given {@link SchedulerPool}, instead of on a thread of its own. The
+     * jobs of this scheduler are still executed one at a time, in the same order as they would be on a single thread.
+     * While the lane is executing, the thread of the pool is renamed to the name of the lane.
+     *
+     * @param name
+     *            The name of the scheduler that is used in the name of the lane.
+     * @param pool
+     *            The pool that will execute the jobs. This pool should not be released before {@link #stop()} has
+     *            been called.
+     */
+    public void start(String name, SchedulerPool pool) {
+        if (running.compareAndSet(false, true)) {
+            lock.lock();
+            try {
+                this.pool = pool;
+                laneName = "Scheduler lane for " + name;
+                wakeupTime = Long.MAX_VALUE;
+                directSubmission = true;
+                THREAD_MONITOR.addScheduler(laneName, this);
+                scheduleWakeup(getNextJobTime());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
     /**
      * Stops the execution thread. Notice: this will cancel all jobs that are still scheduled.
      */
@@ -84,8 +265,15 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
         if (!running.compareAndSet(true, false)) {
             return; // Already stopped
         }
-        synchronized (jobs) {
-            jobs.notifyAll();
+        lock.lock();
+        try {
+            signalJobsChanged();
+            if (pool != null) {
+                stopLane();
+                return;
+            }
+        } finally {
+            lock.unlock();
         }
 
         try {
@@ -102,35 +290,187 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
     @Override
     public abstract long currentTimeMillis();
 
+    private <T> Job<T> addJob(Job<T> job, long slack) {
+        if (slack > 0) {
+            job.setSlack(slack);
+        }
+        return addJob(job);
+    }
+
     private <T> Job<T> addJob(Job<T> job) {
-        synchronized (jobs) {
+        lock.lock();
+        try {
             jobs.add(job);
-            jobs.notifyAll();
+            signalJobsChanged();
+            if (pool != null) {
+                scheduleWakeup(job.getTimeOfNextRun());
+            }
             return job;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a job that should be executed right away. While the loop of this class is running, the job is pushed on the
+     * queue of submitted jobs without taking the lock. Only the producer that finds the queue empty has to wake up the
+     * scheduler, the others know that the scheduler will drain their job together with the first one.
+     */
+    private <T> Job<T> submitJob(Job<T> job) {
+        if (!directSubmission) {
+            return addJob(job);
+        }
+        push(job, job);
+        return job;
+    }
+
+    /**
+     * Pushes a chain of jobs, that is linked from the newest to the oldest job, on the queue of submitted jobs and
+     * wakes up the scheduler when the queue was empty.
+     */
+    private void push(Job<?> newest, Job<?> oldest) {
+        Job<?> head;
+        do {
+            head = submitted.get();
+            oldest.nextSubmitted = head;
+        } while (!submitted.compareAndSet(head, newest));
+
+        if (head == null) {
+            Thread waiting = parkedThread;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            } else if (pool != null) {
+                // Running as a lane, which may be idle and then needs to be scheduled on the pool
+                lock.lock();
+                try {
+                    if (pool != null) {
+                        scheduleWakeup(newest.getTimeOfNextRun());
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits all the tasks like {@link #submit(Callable)}, but adds them to the scheduler in one go: a single
+     * compare-and-set on the queue of submitted jobs, or a single acquisition of the lock, and at most one wakeup. The
+     * tasks are executed in the order of the collection.
+     *
+     * @param tasks
+     *            the tasks to submit
+     * @return the Futures of the tasks, in the order of the collection
+     */
+    public <T> List<Future<T>> submitAll(Collection<? extends Callable<T>> tasks) {
+        logger.trace("submitAll({} tasks)", tasks.size());
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        if (tasks.isEmpty()) {
+            return futures;
+        }
+
+        long now = now();
+        Job<?> oldest = null;
+        Job<?> newest = null;
+        for (Callable<T> task : tasks) {
+            Job<T> job = Job.create(task, this, now, 0, serialGenerator);
+            job.nextSubmitted = newest;
+            newest = job;
+            if (oldest == null) {
+                oldest = job;
+            }
+            futures.add(job);
+        }
+
+        if (directSubmission) {
+            push(newest, oldest);
+        } else {
+            lock.lock();
+            try {
+                for (Job<?> job = newest; job != null;) {
+                    Job<?> next = job.nextSubmitted;
+                    job.nextSubmitted = null;
+                    jobs.add(job);
+                    job = next;
+                }
+                signalJobsChanged();
+                if (pool != null) {
+                    scheduleWakeup(now);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Moves the submitted jobs to their ready lanes, in the order in which they were submitted. Should only be called
+     * while holding the lock, which makes the holder the single consumer of the queue.
+     */
+    private void drainSubmitted() {
+        Job<?> job = submitted.getAndSet(null);
+        if (job == null) {
+            return;
+        }
+
+        // The queue is linked from new to old, so reverse it first
+        Job<?> oldest = null;
+        while (job != null) {
+            Job<?> next = job.nextSubmitted;
+            job.nextSubmitted = oldest;
+            oldest = job;
+            job = next;
+        }
+        for (job = oldest; job != null; job = oldest) {
+            oldest = job.nextSubmitted;
+            job.nextSubmitted = null;
+            if (!job.isCancelled()) {
+                append(job);
+            }
+        }
+    }
+
+    /**
+     * Wakes up everyone that waits for a change of the jobs. Should only be called while holding the lock.
+     */
+    private void signalJobsChanged() {
+        jobsChanged.signalAll();
+        Thread waiting = parkedThread;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
         }
     }
 
     <T> void remove(Job<T> job, boolean mayInterrupt) {
-        synchronized (jobs) {
+        lock.lock();
+        try {
             if (mayInterrupt && job == currentJob) {
                 thread.interrupt();
             }
 
-            jobs.remove(job);
-            jobs.notifyAll();
+            if (job.lane != NOT_IN_LANE) {
+                unlink(job);
+            } else {
+                jobs.remove(job);
+            }
+            job.markCancelled();
+            signalJobsChanged();
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public <T> Future<T> submit(Callable<T> task) {
         logger.trace("submit(callable: {})", task);
-        return addJob(Job.create(task, this, currentTimeMillis(), 0, serialGenerator));
+        return submitJob(Job.create(task, this, now(), 0, serialGenerator));
     }
 
     @Override
     public <T> Future<T> submit(Runnable task, T result) {
         logger.trace("submit(runnable: {}, result: {})", task, result);
-        return addJob(Job.create(task, result, this, currentTimeMillis(), 0, serialGenerator));
+        return submitJob(Job.create(task, result, this, now(), 0, serialGenerator));
     }
 
     @Override
@@ -138,52 +478,586 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
         return submit(task, null);
     }
 
+    /**
+     * Submits a task like {@link #submit(Callable)}, where the given priority determines its order relative to the
+     * other jobs that are due.
+     *
+     * @param task
+     *            the task to submit
+     * @param priority
+     *            the priority of the task
+     * @return a Future representing pending completion of the task
+     */
+    public <T> Future<T> submitWithPriority(Callable<T> task, JobPriority priority) {
+        logger.trace("submitWithPriority(callable: {}, priority: {})", task, priority);
+        Job<T> job = Job.create(task, this, now(), 0, serialGenerator);
+        job.setPriority(priority);
+        return submitJob(job);
+    }
+
+    /**
+     * Submits a task like {@link #submit(Runnable)}, where the given priority determines its order relative to the
+     * other jobs that are due.
+     *
+     * @param task
+     *            the task to submit
+     * @param priority
+     *            the priority of the task
+     * @return a Future representing pending completion of the task
+     */
+    public Future<?> submitWithPriority(Runnable task, JobPriority priority) {
+        logger.trace("submitWithPriority(runnable: {}, priority: {})", task, priority);
+        Job<?> job = Job.create(task, null, this, now(), 0, serialGenerator);
+        job.setPriority(priority);
+        return submitJob(job);
+    }
+
+    /**
+     * Submits a task like {@link #submitWithPriority(Callable, JobPriority)}, which should be finished within the given
+     * time. Of the due jobs with the same priority, the jobs with a deadline are executed first, the earliest deadline
+     * first. A run that finishes after its deadline still completes normally, but is counted as a deadline miss in the
+     * {@link #getMetrics() metrics}.
+     *
+     * @param task
+     *            the task to submit
+     * @param priority
+     *            the priority of the task
+     * @param deadline
+     *            the time from now in which the task should be finished
+     * @param unit
+     *            the time unit of the deadline
+     * @return a Future representing pending completion of the task
+     */
+    public <T> Future<T> submitWithDeadline(Callable<T> task, JobPriority priority, long deadline, TimeUnit unit) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("submitWithDeadline(callable: {}, priority: {}, deadline: {} {})",
+                         task,
+                         priority,
+                         deadline,
+                         unit);
+        }
+        Job<T> job = Job.create(task, this, now(), 0, serialGenerator);
+        job.setPriority(priority);
+        job.setRelativeDeadline(relativeDeadline(deadline, unit));
+        return submitJob(job);
+    }
+
+    /**
+     * Submits a task like {@link #submitWithPriority(Runnable, JobPriority)}, which should be finished within the given
+     * time, see {@link #submitWithDeadline(Callable, JobPriority, long, TimeUnit)}.
+     *
+     * @param task
+     *            the task to submit
+     * @param priority
+     *            the priority of the task
+     * @param deadline
+     *            the time from now in which the task should be finished
+     * @param unit
+     *            the time unit of the deadline
+     * @return a Future representing pending completion of the task
+     */
+    public Future<?> submitWithDeadline(Runnable task, JobPriority priority, long deadline, TimeUnit unit) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("submitWithDeadline(runnable: {}, priority: {}, deadline: {} {})",
+                         task,
+                         priority,
+                         deadline,
+                         unit);
+        }
+        Job<?> job = Job.create(task, null, this, now(), 0, serialGenerator);
+        job.setPriority(priority);
+        job.setRelativeDeadline(relativeDeadline(deadline, unit));
+        return submitJob(job);
+    }
+
+    /**
+     * Schedules a periodic action like {@link #scheduleAtFixedRate(Runnable, long, long, TimeUnit)}, where each run
+     * should be finished within the given time after the moment it should have started, see
+     * {@link #submitWithDeadline(Callable, JobPriority, long, TimeUnit)}.
+     *
+     * @param command
+     *            the task to execute
+     * @param initialDelay
+     *            the time to delay first execution
+     * @param period
+     *            the period between successive executions
+     * @param deadline
+     *            the time after the planned start of each run in which that run should be finished
+     * @param unit
+     *            the time unit of the initialDelay, period and deadline parameters
+     * @return a ScheduledFuture representing pending completion of the task
+     */
+    public ScheduledFuture<?> scheduleWithDeadline(Runnable command,
+                                                   long initialDelay,
+                                                   long period,
+                                                   long deadline,
+                                                   TimeUnit unit) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("scheduleWithDeadline(runnable: {}, initialDelay: {}, period: {}, deadline: {} {})",
+                         command,
+                         initialDelay,
+                         period,
+                         deadline,
+                         unit);
+        }
+        long interval = ticks(period, unit);
+        Job<?> job = Job.create(command, null, this, now() + ticks(initialDelay, unit), interval, serialGenerator);
+        job.setRelativeDeadline(relativeDeadline(deadline, unit));
+        return addJob(job, defaultSlack(interval));
+    }
+
+    private long relativeDeadline(long deadline, TimeUnit unit) {
+        if (deadline < 0) {
+            throw new IllegalArgumentException("The deadline should not be negative");
+        }
+        return Math.min(ticks(deadline, unit), Job.NO_DEADLINE - 1);
+    }
+
     @Override
     public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
         logger.trace("schedule(runnable: {}, delay: {})", command, delay);
-        long ms = delay.longValue(MS);
-        return addJob(Job.create(command, null, this, currentTimeMillis() + ms, 0, serialGenerator));
+        long interval = ticks(delay);
+        return addJob(Job.create(command, null, this, now() + interval, 0, serialGenerator),
+                      defaultSlack(interval));
+    }
+
+    /**
+     * Schedules a job like {@link #schedule(Runnable, Measurable)}, where the execution may be delayed by at most the
+     * given slack. The scheduler uses this slack to execute jobs that are due around the same time in a single wakeup.
+     *
+     * @param command
+     *            the task to execute
+     * @param delay
+     *            the time from now to delay execution
+     * @param slack
+     *            the time that the execution may be delayed further
+     * @return a ScheduledFuture representing pending completion of the task
+     */
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay, Measurable<Duration> slack) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("schedule(runnable: {}, delay: {}, slack: {})", command, delay, slack);
+        }
+        long interval = ticks(delay);
+        return addJob(Job.create(command, null, this, now() + interval, 0, serialGenerator),
+                      ticks(slack));
     }
 
     @Override
     public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
         logger.trace("schedule(callable: {}, delay: {})", callable, delay);
-        long ms = delay.longValue(MS);
-        return addJob(Job.create(callable, this, currentTimeMillis() + ms, 0, serialGenerator));
+        long interval = ticks(delay);
+        return addJob(Job.create(callable, this, now() + interval, 0, serialGenerator), defaultSlack(interval));
+    }
+
+    /**
+     * Schedules a job like {@link #schedule(Callable, Measurable)}, where the execution may be delayed by at most the
+     * given slack. The scheduler uses this slack to execute jobs that are due around the same time in a single wakeup.
+     *
+     * @param callable
+     *            the function to execute
+     * @param delay
+     *            the time from now to delay execution
+     * @param slack
+     *            the time that the execution may be delayed further
+     * @return a ScheduledFuture that can be used to extract result or cancel
+     */
+    public <V> ScheduledFuture<V>
+           schedule(Callable<V> callable, Measurable<Duration> delay, Measurable<Duration> slack) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("schedule(callable: {}, delay: {}, slack: {})", callable, delay, slack);
+        }
+        long interval = ticks(delay);
+        return addJob(Job.create(callable, this, now() + interval, 0, serialGenerator), ticks(slack));
     }
 
     @Override
     public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
                                                   Measurable<Duration> initialDelay,
                                                   Measurable<Duration> period) {
-        logger.trace("scheduleAtFixedRate(runnable: {}, initialDelay: {}, period: {})", command, initialDelay, period);
+        if (logger.isTraceEnabled()) {
+            logger.trace("scheduleAtFixedRate(runnable: {}, initialDelay: {}, period: {})", command, initialDelay, period);
+        }
+        long interval = ticks(period);
         return addJob(Job.create(command,
                                  null,
                                  this,
-                                 currentTimeMillis() + initialDelay.longValue(MS),
-                                 period.longValue(MS),
-                                 serialGenerator));
+                                 now() + ticks(initialDelay),
+                                 interval,
+                                 serialGenerator),
+                      defaultSlack(interval));
+    }
+
+    /**
+     * Schedules a job like {@link #scheduleAtFixedRate(Runnable, Measurable, Measurable)}, where each execution may be
+     * delayed by at most the given slack. The following executions are still planned relative to the nominal times, so
+     * the slack does not make the job drift.
+     *
+     * @param command
+     *            the task to execute
+     * @param initialDelay
+     *            the time to delay first execution
+     * @param period
+     *            the period between successive executions
+     * @param slack
+     *            the time that each execution may be delayed further
+     * @return a ScheduledFuture representing pending completion of the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period,
+                                                  Measurable<Duration> slack) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("scheduleAtFixedRate(runnable: {}, initialDelay: {}, period: {}, slack: {})",
+                         command,
+                         initialDelay,
+                         period,
+                         slack);
+        }
+        return addJob(Job.create(command,
+                                 null,
+                                 this,
+                                 now() + ticks(initialDelay),
+                                 ticks(period),
+                                 serialGenerator),
+                      ticks(slack));
+    }
+
+    /**
+     * Schedules a job like {@link #scheduleAtFixedRate(Runnable, Measurable, Measurable)}, where the given policy
+     * determines what happens with the runs that have been missed because the job or the scheduler was stalled.
+     *
+     * @param command
+     *            the task to execute
+     * @param initialDelay
+     *            the time to delay first execution
+     * @param period
+     *            the period between successive executions
+     * @param missedRunPolicy
+     *            what to do with missed runs
+     * @return a ScheduledFuture representing pending completion of the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period,
+                                                  MissedRunPolicy missedRunPolicy) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("scheduleAtFixedRate(runnable: {}, initialDelay: {}, period: {}, missedRunPolicy: {})",
+                         command,
+                         initialDelay,
+                         period,
+                         missedRunPolicy);
+        }
+        long interval = ticks(period);
+        Job<?> job = Job.create(command,
+                                null,
+                                this,
+                                now() + ticks(initialDelay),
+                                interval,
+                                serialGenerator);
+        job.setMissedRunPolicy(missedRunPolicy);
+        return addJob(job, defaultSlack(interval));
     }
 
     @Override
     public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
                                                      Measurable<Duration> initialDelay,
                                                      Measurable<Duration> delay) {
-        logger.trace("scheduleWithFixedDelay(runnable: {}, initialDelay: {}, delay: {})", command, initialDelay, delay);
+        if (logger.isTraceEnabled()) {
+            logger.trace("scheduleWithFixedDelay(runnable: {}, initialDelay: {}, delay: {})", command, initialDelay, delay);
+        }
+        long interval = ticks(delay);
+        return addJob(Job.create(command,
+                                 null,
+                                 this,
+                                 now() + ticks(initialDelay),
+                                 -interval,
+                                 serialGenerator),
+                      defaultSlack(interval));
+    }
+
+    /**
+     * Schedules a job like {@link #scheduleWithFixedDelay(Runnable, Measurable, Measurable)}, where each execution may
+     * be delayed by at most the given slack.
+     *
+     * @param command
+     *            the task to execute
+     * @param initialDelay
+     *            the time to delay first execution
+     * @param delay
+     *            the delay between the termination of one execution and the commencement of the next
+     * @param slack
+     *            the time that each execution may be delayed further
+     * @return a ScheduledFuture representing pending completion of the task
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay,
+                                                     Measurable<Duration> slack) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("scheduleWithFixedDelay(runnable: {}, initialDelay: {}, delay: {}, slack: {})",
+                         command,
+                         initialDelay,
+                         delay,
+                         slack);
+        }
+        return addJob(Job.create(command,
+                                 null,
+                                 this,
+                                 now() + ticks(initialDelay),
+                                 -ticks(delay),
+                                 serialGenerator),
+                      ticks(slack));
+    }
+
+    /**
+     * Schedules a job like {@link #schedule(Runnable, Measurable)}, but with a primitive delay. This skips the unit
+     * conversion of the {@link Measurable}, so the only allocation is the job itself.
+     *
+     * @param command
+     *            the task to execute
+     * @param delay
+     *            the time from now to delay execution
+     * @param unit
+     *            the time unit of the delay parameter
+     * @return a ScheduledFuture representing pending completion of the task
+     */
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("schedule(runnable: {}, delay: {} {})", command, delay, unit);
+        }
+        long interval = ticks(delay, unit);
+        return addJob(Job.create(command, null, this, now() + interval, 0, serialGenerator),
+                      defaultSlack(interval));
+    }
+
+    /**
+     * Schedules a job like {@link #schedule(Callable, Measurable)}, but with a primitive delay. This skips the unit
+     * conversion of the {@link Measurable}, so the only allocation is the job itself.
+     *
+     * @param callable
+     *            the function to execute
+     * @param delay
+     *            the time from now to delay execution
+     * @param unit
+     *            the time unit of the delay parameter
+     * @return a ScheduledFuture that can be used to extract result or cancel
+     */
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("schedule(callable: {}, delay: {} {})", callable, delay, unit);
+        }
+        long interval = ticks(delay, unit);
+        return addJob(Job.create(callable, this, now() + interval, 0, serialGenerator), defaultSlack(interval));
+    }
+
+    /**
+     * Schedules a job like {@link #scheduleAtFixedRate(Runnable, Measurable, Measurable)}, but with primitive times.
+     *
+     * @param command
+     *            the task to execute
+     * @param initialDelay
+     *            the time to delay first execution
+     * @param period
+     *            the period between successive executions
+     * @param unit
+     *            the time unit of the initialDelay and period parameters
+     * @return a ScheduledFuture representing pending completion of the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("scheduleAtFixedRate(runnable: {}, initialDelay: {}, period: {} {})",
+                         command,
+                         initialDelay,
+                         period,
+                         unit);
+        }
+        long interval = ticks(period, unit);
         return addJob(Job.create(command,
                                  null,
                                  this,
-                                 currentTimeMillis() + initialDelay.longValue(MS),
-                                 -delay.longValue(MS),
-                                 serialGenerator));
+                                 now() + ticks(initialDelay, unit),
+                                 interval,
+                                 serialGenerator),
+                      defaultSlack(interval));
     }
 
     /**
-     * @return The timestamp at which the next job should be run or {@link Long#MAX_VALUE} when there is no job
-     *         scheduled.
+     * Schedules a job like {@link #scheduleAtFixedRate(Runnable, long, long, TimeUnit)}, where the given policy
+     * determines what happens with the runs that have been missed because the job or the scheduler was stalled.
+     *
+     * @param command
+     *            the task to execute
+     * @param initialDelay
+     *            the time to delay first execution
+     * @param period
+     *            the period between successive executions
+     * @param unit
+     *            the time unit of the initialDelay and period parameters
+     * @param missedRunPolicy
+     *            what to do with missed runs
+     * @return a ScheduledFuture representing pending completion of the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  long initialDelay,
+                                                  long period,
+                                                  TimeUnit unit,
+                                                  MissedRunPolicy missedRunPolicy) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("scheduleAtFixedRate(runnable: {}, initialDelay: {}, period: {} {}, missedRunPolicy: {})",
+                         command,
+                         initialDelay,
+                         period,
+                         unit,
+                         missedRunPolicy);
+        }
+        long interval = ticks(period, unit);
+        Job<?> job = Job.create(command,
+                                null,
+                                this,
+                                now() + ticks(initialDelay, unit),
+                                interval,
+                                serialGenerator);
+        job.setMissedRunPolicy(missedRunPolicy);
+        return addJob(job, defaultSlack(interval));
+    }
+
+    /**
+     * Schedules a job like {@link #scheduleWithFixedDelay(Runnable, Measurable, Measurable)}, but with primitive
+     * times.
+     *
+     * @param command
+     *            the task to execute
+     * @param initialDelay
+     *            the time to delay first execution
+     * @param delay
+     *            the delay between the termination of one execution and the commencement of the next
+     * @param unit
+     *            the time unit of the initialDelay and delay parameters
+     * @return a ScheduledFuture representing pending completion of the task
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("scheduleWithFixedDelay(runnable: {}, initialDelay: {}, delay: {} {})",
+                         command,
+                         initialDelay,
+                         delay,
+                         unit);
+        }
+        long interval = ticks(delay, unit);
+        return addJob(Job.create(command,
+                                 null,
+                                 this,
+                                 now() + ticks(initialDelay, unit),
+                                 -interval,
+                                 serialGenerator),
+                      defaultSlack(interval));
+    }
+
+    /**
+     * Sets the slack that is used for all the jobs that are scheduled without an explicit slack. For each job this
+     * slack is limited to a quarter of its delay or period, such that short timers keep their precision. Jobs that are
+     * already scheduled keep their slack.
+     *
+     * @param timerSlack
+     *            The default slack in milliseconds, or 0 to execute all jobs at exactly their planned time
+     */
+    protected void setTimerSlack(long timerSlack) {
+        this.timerSlack = timerSlack;
+    }
+
+    /**
+     * @return The slack in milliseconds that is used for the jobs that are scheduled without an explicit slack
+     */
+    public long getTimerSlack() {
+        return timerSlack;
+    }
+
+    /**
+     * Enables or disables the measurement of the CPU time and the allocated bytes of each job, which are recorded in
+     * the {@link #getMetrics() metrics}. This is disabled by default, since it costs a few system calls per job, and can
+     * only be enabled when the JVM supports it.
+     *
+     * @param resourceAccounting
+     *            true to measure the resources of each job
+     */
+    protected void setResourceAccounting(boolean resourceAccounting) {
+        this.resourceAccounting = resourceAccounting && ThreadResources.isAvailable();
+    }
+
+    /**
+     * @return true when the CPU time and the allocated bytes of each job are measured
+     */
+    public boolean isResourceAccounting() {
+        return resourceAccounting;
+    }
+
+    private long defaultSlack(long interval) {
+        return Math.min(timeUnit.convert(timerSlack, TimeUnit.MILLISECONDS), interval / 4);
+    }
+
+    /**
+     * Switches between planning the jobs on the wall clock of {@link #currentTimeMillis()} (the default) and on the
+     * monotonic clock of {@link System#nanoTime()}. The monotonic clock is anchored to the wall clock at the moment of
+     * this call, after which it is not affected by any changes of the wall clock. This can only be done before the
+     * scheduler has been started and before any job has been scheduled. Subclasses that run their own loop on the
+     * {@link #jobs} must keep the wall clock.
+     *
+     * @param monotonic
+     *            true to plan the jobs in nanoseconds on the monotonic clock
+     */
+    protected void setMonotonicClock(boolean monotonic) {
+        lock.lock();
+        try {
+            if (running.get() || !jobs.isEmpty()) {
+                throw new IllegalStateException("The clock can not be changed after the scheduler has started");
+            }
+            if (monotonic) {
+                nanoOffset = TimeUnit.MILLISECONDS.toNanos(currentTimeMillis()) - System.nanoTime();
+                timeUnit = TimeUnit.NANOSECONDS;
+            } else {
+                timeUnit = TimeUnit.MILLISECONDS;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true when the jobs are planned on the monotonic clock of {@link System#nanoTime()}
+     */
+    public boolean isMonotonicClock() {
+        return timeUnit == TimeUnit.NANOSECONDS;
+    }
+
+    /**
+     * @return The current time of this scheduler, in which the times of the jobs are expressed. This is the
+     *         {@link #currentTimeMillis()}, or the nanoseconds since the epoch on the monotonic clock.
+     */
+    long now() {
+        return timeUnit == TimeUnit.NANOSECONDS ? System.nanoTime() + nanoOffset : currentTimeMillis();
+    }
+
+    /**
+     * @return The unit of the time of this scheduler, see {@link #now()}
+     */
+    TimeUnit getTimeUnit() {
+        return timeUnit;
+    }
+
+    private long ticks(long duration, TimeUnit unit) {
+        return timeUnit.convert(duration, unit);
+    }
+
+    private long ticks(Measurable<Duration> duration) {
+        return duration.longValue(timeUnit == TimeUnit.NANOSECONDS ? NS : MS);
+    }
+
+    /**
+     * @return The timestamp (in the time of {@link #now()}) at which the next job should be run, 0 when there are jobs
+     *         ready to be executed right now or {@link Long#MAX_VALUE} when there is no job scheduled.
      */
     protected long getNextJobTime() {
-        return jobs.isEmpty() ? Long.MAX_VALUE : jobs.peek().getTimeOfNextRun();
+        return readyJobs > 0 || submitted.get() != null ? 0 : jobs.getNextJobTime();
     }
 
     private volatile long startOfCurrentJob;
@@ -192,38 +1066,52 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
     @Override
     public void run() {
         THREAD_MONITOR.addScheduler(Thread.currentThread().getName(), this);
+        directSubmission = true;
 
         while (running.get()) {
-            long now = currentTimeMillis();
-
-            synchronized (jobs) {
-                long waitTime = getNextJobTime() - now;
-                if (waitTime > 0) {
-                    logger.trace("{} is sleeping {}ms until next job", thread.getName(), waitTime);
-                    try {
-                        jobs.wait(waitTime);
-                        logger.trace("{} wake up", thread.getName());
-                    } catch (final InterruptedException ex) {
-                        logger.debug("{} interrupted", thread.getName());
-                    }
-                    // Go back to the start of the while loop
-                    continue;
-                }
+            Job<?> job;
+            long waitTime;
+
+            lock.lock();
+            try {
+                long now = now();
+                job = takeDueJob(now);
+                waitTime = job == null ? getNextJobTime() - now : 0;
+            } finally {
+                lock.unlock();
             }
 
-            // Now the wait time is <= 0, so execute the first job
-            currentJob = jobs.remove();
-            startOfCurrentJob = now;
-            logger.trace("{} is executing job {}", thread.getName(), currentJob);
-            currentJob.run();
-            if (!currentJob.isDone()) {
-                jobs.add(currentJob);
+            if (job == null) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("{} is sleeping {} {} until next job", thread.getName(), waitTime, timeUnit);
+                }
+                parkedThread = Thread.currentThread();
+                // Check again after publishing the parked thread, a producer that came in between did not unpark us.
+                // An observer, such as getQueueDepth(), may also have moved the submitted jobs to the ready lanes.
+                if (readyJobs == 0 && submitted.get() == null && running.get()) {
+                    LockSupport.parkNanos(this, timeUnit.toNanos(waitTime));
+                }
+                parkedThread = null;
+                if (Thread.interrupted()) {
+                    logger.debug("{} interrupted", thread.getName());
+                } else {
+                    logger.trace("{} wake up", thread.getName());
+                }
+                // Go back to the start of the while loop
+                continue;
             }
-            currentJob = null;
+
+            // Now the job is due, so execute it
+            logger.trace("{} is executing job {}", thread.getName(), job);
+            execute(job);
         }
 
-        while (!jobs.isEmpty()) {
-            jobs.peek().cancel(false);
+        directSubmission = false;
+        lock.lock();
+        try {
+            cancelAll();
+        } finally {
+            lock.unlock();
         }
 
         logger.debug("Stopped thread [{}]", thread.getName());
@@ -231,6 +1119,292 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
         THREAD_MONITOR.removeScheduler(Thread.currentThread().getName());
     }
 
+    /**
+     * Moves all the jobs that are due to their ready lane, then takes the first job of the lane that should be served
+     * next and marks it as the current job. Should only be called while holding the lock.
+     */
+    private Job<?> takeDueJob(long now) {
+        // The due jobs of the store go first, since the jobs that were submitted before the loop started are kept there
+        for (Job<?> due = jobs.poll(now); due != null; due = jobs.poll(now)) {
+            append(due);
+        }
+        drainSubmitted();
+        metrics.sampleQueueDepth(timeUnit.toMillis(now), jobs.size() + readyJobs);
+        if (readyJobs == 0) {
+            return null;
+        }
+
+        int lane = selectLane();
+        for (int ix = lane + 1; ix < laneSizes.length; ix++) {
+            if (laneSizes[ix] > 0) {
+                laneBypassed[ix]++;
+            }
+        }
+        laneBypassed[lane] = 0;
+
+        Job<?> job = laneHeads[lane];
+        unlink(job);
+        currentJob = job;
+        startOfCurrentJob = now;
+        metrics.recordStart(timeUnit.toMillis(now - job.getTimeOfNextRun()));
+        return job;
+    }
+
+    /**
+     * @return The highest lane that has been passed over too often, or otherwise the highest lane that is not empty
+     */
+    private int selectLane() {
+        int first = -1;
+        for (int ix = 0; ix < laneSizes.length; ix++) {
+            if (laneSizes[ix] > 0) {
+                if (laneBypassed[ix] >= STARVATION_LIMIT) {
+                    return ix;
+                } else if (first < 0) {
+                    first = ix;
+                }
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Adds a job that is due to the lane of its priority. A job without a deadline is added to the end of the lane, a
+     * job with a deadline after the last job with an earlier or equal deadline. Since most deadlines are later than the
+     * ones that are already waiting, this usually does not have to search. Should only be called while holding the
+     * lock.
+     */
+    private void append(Job<?> job) {
+        int lane = job.getPriority().ordinal();
+        job.lane = lane;
+        long deadline = job.getDeadline();
+        Job<?> previous;
+        if (deadline == Job.NO_DEADLINE) {
+            previous = laneTails[lane];
+        } else {
+            previous = laneDeadlineTails[lane];
+            while (previous != null && previous.getDeadline() > deadline) {
+                previous = previous.previousInLane;
+            }
+            if (previous == laneDeadlineTails[lane]) {
+                laneDeadlineTails[lane] = job;
+            }
+        }
+
+        job.previousInLane = previous;
+        job.nextInLane = previous == null ? laneHeads[lane] : previous.nextInLane;
+        if (previous == null) {
+            laneHeads[lane] = job;
+        } else {
+            previous.nextInLane = job;
+        }
+        if (job.nextInLane == null) {
+            laneTails[lane] = job;
+        } else {
+            job.nextInLane.previousInLane = job;
+        }
+        laneSizes[lane]++;
+        readyJobs++;
+        metrics.recordReadyDepth(lane, laneSizes[lane]);
+    }
+
+    /**
+     * Removes a job from the lane that it is part of. Should only be called while holding the lock.
+     */
+    private void unlink(Job<?> job) {
+        int lane = job.lane;
+        if (laneDeadlineTails[lane] == job) {
+            laneDeadlineTails[lane] = job.previousInLane;
+        }
+        if (job.previousInLane == null) {
+            laneHeads[lane] = job.nextInLane;
+        } else {
+            job.previousInLane.nextInLane = job.nextInLane;
+        }
+        if (job.nextInLane == null) {
+            laneTails[lane] = job.previousInLane;
+        } else {
+            job.nextInLane.previousInLane = job.previousInLane;
+        }
+        job.nextInLane = null;
+        job.previousInLane = null;
+        job.lane = NOT_IN_LANE;
+        laneSizes[lane]--;
+        readyJobs--;
+    }
+
+    private void execute(Job<?> job) {
+        boolean accounting = resourceAccounting;
+        long startCpuTime = accounting ? ThreadResources.cpuTime() : -1;
+        long startAllocated = accounting ? ThreadResources.allocatedBytes() : -1;
+        // The deadline moves when a periodic job is rescheduled, so take it before the run
+        long deadline = job.getDeadline();
+        long startTime = System.nanoTime();
+        job.run();
+        long runTime = System.nanoTime() - startTime;
+        long finishTime = deadline == Job.NO_DEADLINE ? 0 : now();
+        long cpuTime = startCpuTime < 0 ? -1 : ThreadResources.cpuTime() - startCpuTime;
+        long allocatedBytes = startAllocated < 0 ? -1 : ThreadResources.allocatedBytes() - startAllocated;
+
+        lock.lock();
+        try {
+            metrics.recordRun(job.getSource(), job.getPriority(), runTime, cpuTime, allocatedBytes);
+            if (deadline != Job.NO_DEADLINE) {
+                metrics.recordDeadline(job.getPriority(), finishTime > deadline);
+            }
+            if (!job.isDone() && !job.isCancelled()) {
+                jobs.add(job);
+            }
+            currentJob = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels all the jobs that are still scheduled. Should only be called while holding the lock.
+     */
+    private void cancelAll() {
+        drainSubmitted();
+        for (Job<?> job : getReadyJobs()) {
+            unlink(job);
+            job.markCancelled();
+        }
+        for (Job<?> job : jobs.getJobs()) {
+            job.markCancelled();
+        }
+        jobs.clear();
+    }
+
+    /**
+     * @return A snapshot of the jobs in the ready lanes, in the order in which they would be executed without any
+     *         starvation protection. Should only be called while holding the lock.
+     */
+    private List<Job<?>> getReadyJobs() {
+        List<Job<?>> result = new ArrayList<Job<?>>(readyJobs);
+        for (Job<?> head : laneHeads) {
+            for (Job<?> job = head; job != null; job = job.nextInLane) {
+                result.add(job);
+            }
+        }
+        return result;
+    }
+
+    private final Runnable laneTask = new Runnable() {
+        @Override
+        public void run() {
+            runLane();
+        }
+
+        @Override
+        public String toString() {
+            return laneName;
+        }
+    };
+
+    /**
+     * Makes sure that the lane is executed on the pool at the given time. When the lane is already planned earlier or
+     * is executing right now, this does nothing. Should only be called while holding the lock.
+     */
+    private void scheduleWakeup(long time) {
+        if (draining || time >= wakeupTime || !running.get()) {
+            return;
+        }
+
+        if (wakeup != null) {
+            wakeup.cancel(false);
+        }
+        try {
+            wakeup = pool.schedule(laneTask, time - now(), timeUnit);
+            wakeupTime = time;
+        } catch (RejectedExecutionException ex) {
+            logger.error("The pool of {} has already been shut down", laneName);
+        }
+    }
+
+    /**
+     * Executes the due jobs of this lane on the current thread of the pool. After at most {@link #MAX_JOBS_PER_TURN}
+     * jobs the lane is rescheduled, such that other lanes get their turn.
+     */
+    private void runLane() {
+        Thread current = Thread.currentThread();
+        lock.lock();
+        try {
+            if (draining || !running.get()) {
+                return;
+            }
+            draining = true;
+            wakeup = null;
+            wakeupTime = Long.MAX_VALUE;
+            thread = current;
+        } finally {
+            lock.unlock();
+        }
+
+        String poolThreadName = current.getName();
+        current.setName(laneName);
+        try {
+            for (int count = 0; count < MAX_JOBS_PER_TURN && running.get(); count++) {
+                Job<?> job;
+                lock.lock();
+                try {
+                    job = takeDueJob(now());
+                } finally {
+                    lock.unlock();
+                }
+                if (job == null) {
+                    break;
+                }
+
+                logger.trace("{} is executing job {}", laneName, job);
+                execute(job);
+            }
+        } finally {
+            current.setName(poolThreadName);
+            // Clear the interrupt that may have been caused by cancelling a job
+            Thread.interrupted();
+
+            lock.lock();
+            try {
+                thread = null;
+                draining = false;
+                signalJobsChanged();
+                scheduleWakeup(getNextJobTime());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stops the lane and waits for the current job to finish. Should only be called while holding the lock.
+     */
+    private void stopLane() {
+        if (wakeup != null) {
+            wakeup.cancel(false);
+            wakeup = null;
+        }
+
+        long waitUntil = System.currentTimeMillis() + 10000;
+        long waitTime = 10000;
+        while (draining && waitTime > 0) {
+            try {
+                jobsChanged.await(waitTime, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                break;
+            }
+            waitTime = waitUntil - System.currentTimeMillis();
+        }
+        if (draining) {
+            logger.warn("Could not stop {}", laneName);
+        }
+
+        directSubmission = false;
+        cancelAll();
+        pool = null;
+        THREAD_MONITOR.removeScheduler(laneName);
+        logger.debug("Stopped lane [{}]", laneName);
+    }
+
     /**
      * Returns the number of milliseconds that the current job is running. This will return -1 when there is no active
      * job (so the execution thread is idle), otherwise it returns the difference between the {@link #currentTime()} and
@@ -241,18 +1415,87 @@ public abstract class AbstractScheduler implements FlexiblePowerContext, Runnabl
      */
     public long getCurrentExecutionTime() {
         if (currentJob != null) {
-            return currentTimeMillis() - startOfCurrentJob;
+            return timeUnit.toMillis(now() - startOfCurrentJob);
         } else {
             return -1;
         }
     }
 
+    /**
+     * @return The job that is being executed right now, or <code>null</code> when the scheduler is idle
+     */
+    Job<?> getCurrentJob() {
+        return currentJob;
+    }
+
+    /**
+     * @return The thread that is executing the jobs, which for a lane is only set while the lane is executing
+     */
+    Thread getExecutionThread() {
+        return thread;
+    }
+
+    /**
+     * @return true when the current thread is executing the jobs of this scheduler. A job that waits on another job of
+     *         the same scheduler would wait forever, so it should run the other work itself.
+     */
+    public boolean isExecutionThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return A copy of the {@link SchedulerMetrics} of this scheduler, which will not change anymore
+     */
+    public SchedulerMetrics getMetrics() {
+        lock.lock();
+        try {
+            return metrics.copy();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of jobs that are currently scheduled, including the ones that are ready to be executed
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            drainSubmitted();
+            return jobs.size() + readyJobs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param priority
+     *            The priority of the lane
+     * @return The number of jobs that are due and waiting in the lane of the given priority
+     */
+    public int getReadyDepth(JobPriority priority) {
+        lock.lock();
+        try {
+            drainSubmitted();
+            return laneSizes[priority.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public List<String> getJobs() {
         List<String> result = new ArrayList<String>();
-        synchronized (jobs) {
-            for (Job<?> job : jobs) {
+        lock.lock();
+        try {
+            drainSubmitted();
+            for (Job<?> job : getReadyJobs()) {
                 result.add(job.toString());
             }
+            for (Job<?> job : jobs.getJobs()) {
+                result.add(job.toString());
+            }
+        } finally {
+            lock.unlock();
         }
         return result;
     }
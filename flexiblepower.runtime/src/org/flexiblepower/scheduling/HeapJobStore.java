@@ -0,0 +1,81 @@
+package org.flexiblepower.scheduling;
+
+import java.util.List;
+
+/**
+ * The {@link HeapJobStore} keeps all the jobs in a single binary heap, sorted on the time of their next run. Since each
+ * job knows its own position in the heap, adding, polling, removing and rescheduling a job all cost O(log n).
+ */
+public class HeapJobStore implements JobStore {
+    private final JobHeap heap;
+    private volatile long nextJobTime;
+
+    public HeapJobStore() {
+        heap = new JobHeap();
+        nextJobTime = Long.MAX_VALUE;
+    }
+
+    private void updateNextJobTime() {
+        Job<?> first = heap.peek();
+        nextJobTime = first == null ? Long.MAX_VALUE : first.getTimeOfNextRun();
+    }
+
+    @Override
+    public void add(Job<?> job) {
+        heap.add(job);
+        updateNextJobTime();
+    }
+
+    @Override
+    public boolean remove(Job<?> job) {
+        boolean removed = heap.remove(job);
+        updateNextJobTime();
+        return removed;
+    }
+
+    @Override
+    public Job<?> poll(long now) {
+        Job<?> first = heap.peek();
+        if (first == null || first.getTimeOfNextRun() > now) {
+            return null;
+        }
+        heap.poll();
+        updateNextJobTime();
+        return first;
+    }
+
+    @Override
+    public void reschedule(Job<?> job, long time) {
+        if (!heap.contains(job)) {
+            throw new IllegalArgumentException("The job is not part of this store: " + job);
+        }
+        heap.reschedule(job, time);
+        updateNextJobTime();
+    }
+
+    @Override
+    public long getNextJobTime() {
+        return nextJobTime;
+    }
+
+    @Override
+    public int size() {
+        return heap.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return heap.isEmpty();
+    }
+
+    @Override
+    public List<Job<?>> getJobs() {
+        return heap.toList();
+    }
+
+    @Override
+    public void clear() {
+        heap.clear();
+        updateNextJobTime();
+    }
+}
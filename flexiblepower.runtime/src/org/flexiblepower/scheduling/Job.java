@@ -1,48 +1,97 @@
 package org.flexiblepower.scheduling;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
+import org.flexiblepower.context.FlexiblePowerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public final class Job<V> implements ScheduledFuture<V> {
     private final static Logger logger = LoggerFactory.getLogger(Job.class);
 
-    public static <V> Job<V> create(final Runnable runnable,
-                                    final V result,
-                                    final AbstractScheduler scheduler,
-                                    long timeOfNextRun,
-                                    long timeStep,
-                                    AtomicLong serialGenerator) {
-        return new Job<V>(new Callable<V>() {
-            @Override
-            public V call() throws Exception {
-                runnable.run();
-                return result;
-            }
+    /**
+     * The value of {@link #getDeadline()} for a job without a deadline.
+     */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * A thread that is blocked in one of the get methods. These form a stack that is released when the job is done.
+     */
+    private static final class Waiter {
+        volatile Thread thread;
+        Waiter next;
 
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Job, Waiter> WAITERS
+        = AtomicReferenceFieldUpdater.newUpdater(Job.class, Waiter.class, "waiters");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Job, CompletableFuture> COMPLETION
+        = AtomicReferenceFieldUpdater.newUpdater(Job.class, CompletableFuture.class, "completion");
+
+    /**
+     * Creates an {@link Executor} that submits each task to the given context, such that the task is executed by the
+     * thread of that context.
+     *
+     * @param context
+     *            The context that should execute the tasks
+     * @return The {@link Executor} for that context
+     */
+    public static Executor executor(final FlexiblePowerContext context) {
+        return new Executor() {
             @Override
-            public String toString() {
-                return runnable.toString();
+            public void execute(Runnable command) {
+                context.submit(command);
             }
-        }, scheduler, timeOfNextRun, timeStep, serialGenerator.getAndIncrement());
+        };
+    }
+
+    public static <V> Job<V> create(Runnable runnable,
+                                    V result,
+                                    AbstractScheduler scheduler,
+                                    long timeOfNextRun,
+                                    long timeStep,
+                                    AtomicLong serialGenerator) {
+        return new Job<V>(null,
+                          runnable,
+                          result,
+                          scheduler,
+                          timeOfNextRun,
+                          timeStep,
+                          serialGenerator.getAndIncrement());
     }
 
-    public static <V> Job<V> create(final Callable<V> callable,
-                                    final AbstractScheduler scheduler,
+    public static <V> Job<V> create(Callable<V> callable,
+                                    AbstractScheduler scheduler,
                                     long timeOfNextRun,
                                     long timeStep,
                                     AtomicLong serialGenerator) {
-        return new Job<V>(callable, scheduler, timeOfNextRun, timeStep, serialGenerator.getAndIncrement());
+        return new Job<V>(callable, null, null, scheduler, timeOfNextRun, timeStep, serialGenerator.getAndIncrement());
     }
 
+    // Exactly one of these is set. A runnable is not wrapped in a callable, such that a job is a single allocation.
     private final Callable<V> callable;
+    private final Runnable runnable;
+    private final V runnableResult;
     private final AbstractScheduler scheduler;
 
     private volatile V result;
@@ -51,19 +100,63 @@ public final class Job<V> implements ScheduledFuture<V> {
     // Serial number for the jobs to distinguish between them for sorting
     private final long serial;
 
-    // Both of these are is milliseconds
+    // Both of these are in the time unit of the scheduler, which is milliseconds unless it uses the monotonic clock
     private volatile long timeOfNextRun, timeStep;
+    // The time at which the job should run when there is no slack and the slack itself, in the same unit
+    private volatile long nominalTimeOfNextRun, slack;
     private volatile boolean cancelled;
 
-    private Job(Callable<V> callable, AbstractScheduler scheduler, long timeOfNextRun, long timeStep, long serial) {
+    private volatile JobPriority priority;
+
+    // The time after the nominal start of each run before which that run should be finished, or NO_DEADLINE
+    private volatile long relativeDeadline;
+
+    // Only used for jobs at a fixed rate
+    private volatile MissedRunPolicy missedRunPolicy;
+    private volatile long skippedRuns;
+
+    // The threads that are waiting for this job to be done
+    private volatile Waiter waiters;
+
+    // Created when the first completion callback is registered
+    private volatile CompletableFuture<V> completion;
+
+    // Bookkeeping of the TimingWheelJobStore, only touched while holding the lock of the scheduler
+    Job<?> nextInBucket, previousInBucket;
+    int bucket = TimingWheelJobStore.NOT_STORED;
+
+    // Position in the JobHeap that holds this job, only touched while holding the lock of the scheduler
+    int heapIndex = JobHeap.NOT_IN_HEAP;
+
+    // Bookkeeping of the ready lanes of the AbstractScheduler, only touched while holding the lock of the scheduler
+    Job<?> nextInLane, previousInLane;
+    int lane = AbstractScheduler.NOT_IN_LANE;
+
+    // Link in the lock-free queue of submitted jobs of the AbstractScheduler, published by its compare-and-set
+    Job<?> nextSubmitted;
+
+    private Job(Callable<V> callable,
+                Runnable runnable,
+                V result,
+                AbstractScheduler scheduler,
+                long timeOfNextRun,
+                long timeStep,
+                long serial) {
         this.callable = callable;
+        this.runnable = runnable;
         this.scheduler = scheduler;
 
         this.timeOfNextRun = timeOfNextRun;
         this.timeStep = timeStep;
         this.serial = serial;
+        nominalTimeOfNextRun = timeOfNextRun;
+        slack = 0;
+        missedRunPolicy = MissedRunPolicy.CATCH_UP;
+        priority = JobPriority.TIMER;
+        relativeDeadline = NO_DEADLINE;
 
-        result = null;
+        runnableResult = result;
+        this.result = null;
         exception = null;
         cancelled = false;
     }
@@ -76,13 +169,120 @@ public final class Job<V> implements ScheduledFuture<V> {
         return timeStep;
     }
 
+    /**
+     * @return The time (in the time unit of the scheduler) that the execution of this job may be delayed, such that it
+     *         can be combined with other jobs in a single wakeup of the scheduler
+     */
+    public long getSlack() {
+        return slack;
+    }
+
+    /**
+     * Sets the slack of this job and moves the time of the next run within that slack. This should only be called
+     * before the job has been added to a {@link JobStore}.
+     */
+    void setSlack(long slack) {
+        this.slack = slack;
+        timeOfNextRun = applySlack(nominalTimeOfNextRun, slack);
+    }
+
+    /**
+     * @return The priority of this job, which determines the order of the jobs that are due at the same moment
+     */
+    public JobPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority of this job. This should only be called before the job has been added to the scheduler.
+     */
+    void setPriority(JobPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return The time (in the time unit of the scheduler) before which the next run of this job should be finished,
+     *         or {@link #NO_DEADLINE} when it has no deadline. Due jobs with a deadline are executed before the due
+     *         jobs of the same priority without one, the earliest deadline first.
+     */
+    public long getDeadline() {
+        long relativeDeadline = this.relativeDeadline;
+        if (relativeDeadline == NO_DEADLINE) {
+            return NO_DEADLINE;
+        }
+        long deadline = nominalTimeOfNextRun + relativeDeadline;
+        return deadline < 0 ? NO_DEADLINE - 1 : deadline;
+    }
+
+    /**
+     * Sets the deadline of each run relative to the time at which it should start. This should only be called before
+     * the job has been added to the scheduler.
+     */
+    void setRelativeDeadline(long relativeDeadline) {
+        this.relativeDeadline = relativeDeadline;
+    }
+
+    /**
+     * @return The policy that is used when a job at a fixed rate has missed one or more runs
+     */
+    public MissedRunPolicy getMissedRunPolicy() {
+        return missedRunPolicy;
+    }
+
+    /**
+     * Sets the {@link MissedRunPolicy}. This should only be called before the job has been added to a
+     * {@link JobStore}.
+     */
+    void setMissedRunPolicy(MissedRunPolicy missedRunPolicy) {
+        this.missedRunPolicy = missedRunPolicy;
+    }
+
+    /**
+     * @return The number of runs that have been skipped because of the {@link MissedRunPolicy}
+     */
+    public long getSkippedRuns() {
+        return skippedRuns;
+    }
+
+    /**
+     * Moves the given time forward to the coarsest boundary within the slack, which is the way the Linux kernel
+     * coalesces its timers. Jobs whose windows of <code>[time, time + slack]</code> overlap are very likely to be moved
+     * to exactly the same moment, so they are executed in a single wakeup of the scheduler.
+     *
+     * @param time
+     *            The nominal time, in the time unit of the scheduler
+     * @param slack
+     *            The time that the nominal time may be delayed, in the time unit of the scheduler
+     * @return The rounded time, which is between <code>time</code> and <code>time + slack</code>
+     */
+    static long applySlack(long time, long slack) {
+        if (slack <= 0) {
+            return time;
+        }
+        long limit = time + slack;
+        // Clear all the bits below the highest bit that differs between the start and the end of the window
+        long mask = Long.highestOneBit(time ^ limit) - 1;
+        return limit & ~mask;
+    }
+
+    private Object task() {
+        return runnable != null ? runnable : callable;
+    }
+
+    /**
+     * @return The class name of the task that has been submitted, which is used to group the metrics of the jobs
+     */
+    public String getSource() {
+        return task().getClass().getName();
+    }
+
     @Override
     public long getDelay(TimeUnit unit) {
-        long delay = timeOfNextRun - scheduler.currentTimeMillis();
+        long delay = timeOfNextRun - scheduler.now();
         if (delay < 0) {
             delay = 0;
         }
-        return unit.convert(delay, TimeUnit.MILLISECONDS);
+        return unit.convert(delay, scheduler.getTimeUnit());
     }
 
     @Override
@@ -108,14 +308,23 @@ public final class Job<V> implements ScheduledFuture<V> {
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
         if (timeOfNextRun > 0) {
-            cancelled = true;
-            timeOfNextRun = 0;
-            timeStep = 0;
             scheduler.remove(this, mayInterruptIfRunning);
         }
         return true;
     }
 
+    /**
+     * Marks this job as cancelled. This is called by the scheduler after the job has been removed from its
+     * {@link JobStore}, such that the time of the next run never changes while the job is stored.
+     */
+    void markCancelled() {
+        cancelled = true;
+        timeOfNextRun = 0;
+        timeStep = 0;
+        releaseWaiters();
+        complete();
+    }
+
     @Override
     public boolean isCancelled() {
         return cancelled;
@@ -126,30 +335,193 @@ public final class Job<V> implements ScheduledFuture<V> {
         return timeOfNextRun == 0;
     }
 
-    public synchronized void run() {
+    public void run() {
         try {
-            result = callable.call();
+            if (runnable != null) {
+                runnable.run();
+                result = runnableResult;
+            } else {
+                result = callable.call();
+            }
         } catch (Throwable e) {
             logger.warn("Exception during execution of job", e);
             exception = e;
         }
-        notifyAll();
 
         if (timeStep > 0) {
-            reschedule(timeOfNextRun + timeStep);
+            // Fixed rate jobs are based on the nominal time, such that the slack does not cause them to drift
+            scheduleNextRun(nextFixedRateTime(nominalTimeOfNextRun + timeStep));
         } else if (timeStep < 0) {
-            reschedule(scheduler.currentTimeMillis() - timeStep);
+            scheduleNextRun(scheduler.now() - timeStep);
         } else {
             timeOfNextRun = 0;
             logger.trace("Unscheduled {}", this);
+            releaseWaiters();
+            complete();
         }
     }
 
-    @Override
-    public synchronized V get() throws InterruptedException, ExecutionException {
-        while (!isDone()) {
-            this.wait();
+    /**
+     * Completes the {@link #completion} when it has been created. This is called after the job is done, while the
+     * creation of the {@link #completion} checks whether the job is done afterwards, so it is never missed.
+     */
+    private void complete() {
+        CompletableFuture<V> completion = this.completion;
+        if (completion != null) {
+            if (cancelled) {
+                completion.completeExceptionally(new CancellationException());
+            } else if (exception != null) {
+                completion.completeExceptionally(exception);
+            } else {
+                completion.complete(result);
+            }
         }
+    }
+
+    /**
+     * Returns a {@link CompletionStage} that is completed when this job is done. For a periodic job this only happens
+     * when it is cancelled. Notice: the callbacks that are added directly to this stage are executed by the thread that
+     * completes the job, which is the thread of the scheduler of this job. Use the methods that take a
+     * {@link FlexiblePowerContext} (or {@link #executor(FlexiblePowerContext)}) to execute them in another context.
+     *
+     * @return The {@link CompletionStage} of this job
+     */
+    @SuppressWarnings("unchecked")
+    public CompletionStage<V> toCompletionStage() {
+        CompletableFuture<V> completion = this.completion;
+        if (completion == null) {
+            COMPLETION.compareAndSet(this, null, new CompletableFuture<V>());
+            completion = this.completion;
+            if (isDone()) {
+                complete();
+            }
+        }
+        return completion;
+    }
+
+    /**
+     * Returns a new {@link CompletionStage} that is completed with the result of the given function, which is called
+     * with the result of this job. The function is executed in the given context.
+     *
+     * @param fn
+     *            The function that is applied to the result of this job
+     * @param context
+     *            The context that executes the function, usually the context of the caller
+     * @return The new {@link CompletionStage}
+     */
+    public <U> CompletionStage<U> thenApply(Function<? super V, ? extends U> fn, FlexiblePowerContext context) {
+        return toCompletionStage().thenApplyAsync(fn, executor(context));
+    }
+
+    /**
+     * Returns a new {@link CompletionStage} with the same result or exception as this job, that executes the given
+     * action when this job is done. The action is executed in the given context.
+     *
+     * @param action
+     *            The action that receives the result (or <code>null</code>) and the exception (or <code>null</code>)
+     * @param context
+     *            The context that executes the action, usually the context of the caller
+     * @return The new {@link CompletionStage}
+     */
+    public CompletionStage<V> whenComplete(BiConsumer<? super V, ? super Throwable> action,
+                                           FlexiblePowerContext context) {
+        return toCompletionStage().whenCompleteAsync(action, executor(context));
+    }
+
+    /**
+     * Returns a new {@link CompletableFuture} with the same result as this job, unless this job is not done within the
+     * given time. In that case the returned future is completed with a {@link TimeoutException}. The time is measured
+     * by the scheduler of this job, so in a simulation it follows the simulation clock. This job itself is not
+     * cancelled.
+     *
+     * @param timeout
+     *            The time to wait
+     * @param unit
+     *            The unit of the timeout
+     * @return The new {@link CompletableFuture}
+     */
+    public CompletableFuture<V> orTimeout(long timeout, TimeUnit unit) {
+        final CompletableFuture<V> result = new CompletableFuture<V>();
+        final Job<?> timer = (Job<?>) scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                result.completeExceptionally(new TimeoutException());
+            }
+
+            @Override
+            public String toString() {
+                return "Timeout of " + Job.this;
+            }
+        }, timeout, unit);
+
+        toCompletionStage().whenComplete(new BiConsumer<V, Throwable>() {
+            @Override
+            public void accept(V value, Throwable throwable) {
+                timer.cancel(false);
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(value);
+                }
+            }
+        });
+        return result;
+    }
+
+    private void releaseWaiters() {
+        for (Waiter waiter = WAITERS.getAndSet(this, null); waiter != null; waiter = waiter.next) {
+            Thread thread = waiter.thread;
+            if (thread != null) {
+                waiter.thread = null;
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * Blocks the current thread until this job is done or the waiting time has passed. The blocking is done through
+     * {@link LockSupport}, such that a waiting virtual thread does not pin its carrier thread.
+     *
+     * @param waitUntil
+     *            The time (in the time of the scheduler) until which the thread may wait or {@link Long#MAX_VALUE}
+     */
+    private void awaitDone(long waitUntil) throws InterruptedException {
+        Waiter waiter = null;
+        try {
+            while (!isDone()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                if (waiter == null) {
+                    waiter = new Waiter(Thread.currentThread());
+                    Waiter head;
+                    do {
+                        head = waiters;
+                        waiter.next = head;
+                    } while (!WAITERS.compareAndSet(this, head, waiter));
+                    // Check isDone again before parking, the job could have been finished in the meantime
+                } else if (waitUntil == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    long waitTime = waitUntil - scheduler.now();
+                    if (waitTime <= 0) {
+                        return;
+                    }
+                    LockSupport.parkNanos(this, scheduler.getTimeUnit().toNanos(waitTime));
+                }
+            }
+        } finally {
+            if (waiter != null) {
+                // Leave the node for releaseWaiters, but make sure that it will not unpark this thread later on
+                waiter.thread = null;
+            }
+        }
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        awaitDone(Long.MAX_VALUE);
 
         if (exception != null) {
             throw new ExecutionException(exception);
@@ -159,15 +531,10 @@ public final class Job<V> implements ScheduledFuture<V> {
     }
 
     @Override
-    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException,
-                                                          ExecutionException,
-                                                          TimeoutException {
-        long waitUntil = scheduler.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(timeout, unit);
-        long waitTime = waitUntil - scheduler.currentTimeMillis();
-        while (!isDone() && waitTime > 0) {
-            this.wait(waitTime);
-            waitTime = waitUntil - scheduler.currentTimeMillis();
-        }
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long now = scheduler.now();
+        long waitTime = scheduler.getTimeUnit().convert(timeout, unit);
+        awaitDone(waitTime >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + waitTime);
 
         if (exception != null) {
             throw new ExecutionException(exception);
@@ -179,14 +546,45 @@ public final class Job<V> implements ScheduledFuture<V> {
     }
 
     public void reschedule(long time) {
+        nominalTimeOfNextRun = time;
         timeOfNextRun = time;
         logger.trace("Rescheduled {}", this);
     }
 
+    /**
+     * Applies the {@link MissedRunPolicy} when the next nominal time has already passed.
+     */
+    private long nextFixedRateTime(long nextTime) {
+        if (missedRunPolicy == MissedRunPolicy.CATCH_UP) {
+            return nextTime;
+        }
+        long now = scheduler.now();
+        if (nextTime > now) {
+            return nextTime;
+        }
+
+        // The number of periods that have completely passed after the next time
+        long periodsBehind = (now - nextTime) / timeStep;
+        if (missedRunPolicy == MissedRunPolicy.SKIP) {
+            periodsBehind++;
+        }
+        if (periodsBehind > 0) {
+            skippedRuns += periodsBehind;
+            logger.debug("Skipped {} runs of {}", periodsBehind, this);
+        }
+        return nextTime + periodsBehind * timeStep;
+    }
+
+    private void scheduleNextRun(long nominalTime) {
+        nominalTimeOfNextRun = nominalTime;
+        timeOfNextRun = applySlack(nominalTime, slack);
+        logger.trace("Rescheduled {}", this);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("Job (").append(callable).append(')');
+        sb.append("Job (").append(task()).append(')');
         if (timeOfNextRun > 0) {
             sb.append(" nextRun: ").append(timeOfNextRun);
         } else if (cancelled) {
@@ -195,10 +593,23 @@ public final class Job<V> implements ScheduledFuture<V> {
             sb.append(" done");
         }
 
+        String unit = scheduler.isMonotonicClock() ? "ns" : "ms";
         if (timeStep > 0) {
-            sb.append(", scheduled at fixed rate ").append(timeStep).append("ms");
+            sb.append(", scheduled at fixed rate ").append(timeStep).append(unit);
         } else if (timeStep < 0) {
-            sb.append(", scheduled with delay ").append(timeStep).append("ms");
+            sb.append(", scheduled with delay ").append(timeStep).append(unit);
+        }
+        if (slack > 0) {
+            sb.append(", slack ").append(slack).append(unit);
+        }
+        if (priority != JobPriority.TIMER) {
+            sb.append(", priority ").append(priority);
+        }
+        if (relativeDeadline != NO_DEADLINE) {
+            sb.append(", deadline ").append(relativeDeadline).append(unit);
+        }
+        if (skippedRuns > 0) {
+            sb.append(", skipped ").append(skippedRuns).append(" runs (").append(missedRunPolicy).append(')');
         }
 
         return sb.toString();
@@ -0,0 +1,150 @@
+package org.flexiblepower.scheduling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@link JobHeap} is a binary heap of jobs, sorted on the time of their next run and then on the order in which
+ * they were submitted. Each job keeps its own index in the heap, such that removing a job or changing its time can be
+ * done in O(log n) instead of searching through the whole heap.
+ *
+ * <p>
+ * A job can only be part of one {@link JobHeap} at a time. This class is not thread-safe, it is used while holding the
+ * lock of the scheduler.
+ */
+final class JobHeap {
+    static final int NOT_IN_HEAP = -1;
+
+    private Job<?>[] queue;
+    private int size;
+
+    JobHeap() {
+        queue = new Job<?>[64];
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(Job<?> job) {
+        int index = job.heapIndex;
+        return index >= 0 && index < size && queue[index] == job;
+    }
+
+    Job<?> peek() {
+        return size == 0 ? null : queue[0];
+    }
+
+    void add(Job<?> job) {
+        if (job.heapIndex != NOT_IN_HEAP) {
+            throw new IllegalStateException("The job is already part of a heap: " + job);
+        }
+        if (size == queue.length) {
+            queue = Arrays.copyOf(queue, size * 2);
+        }
+        siftUp(size++, job);
+    }
+
+    Job<?> poll() {
+        if (size == 0) {
+            return null;
+        }
+        Job<?> first = queue[0];
+        removeAt(0);
+        return first;
+    }
+
+    boolean remove(Job<?> job) {
+        if (!contains(job)) {
+            return false;
+        }
+        removeAt(job.heapIndex);
+        return true;
+    }
+
+    /**
+     * Changes the time of the next run of a job that is part of this heap and moves it to its new position.
+     */
+    void reschedule(Job<?> job, long time) {
+        int index = job.heapIndex;
+        job.reschedule(time);
+        siftUp(index, job);
+        if (queue[index] == job) {
+            siftDown(index, job);
+        }
+    }
+
+    List<Job<?>> toList() {
+        List<Job<?>> result = new ArrayList<Job<?>>(size);
+        for (int ix = 0; ix < size; ix++) {
+            result.add(queue[ix]);
+        }
+        return result;
+    }
+
+    void clear() {
+        for (int ix = 0; ix < size; ix++) {
+            queue[ix].heapIndex = NOT_IN_HEAP;
+            queue[ix] = null;
+        }
+        size = 0;
+    }
+
+    private void removeAt(int index) {
+        Job<?> removed = queue[index];
+        removed.heapIndex = NOT_IN_HEAP;
+
+        int last = --size;
+        Job<?> moved = queue[last];
+        queue[last] = null;
+        if (index != last) {
+            siftDown(index, moved);
+            if (queue[index] == moved) {
+                siftUp(index, moved);
+            }
+        }
+    }
+
+    private void siftUp(int index, Job<?> job) {
+        while (index > 0) {
+            int parentIndex = (index - 1) >>> 1;
+            Job<?> parent = queue[parentIndex];
+            if (job.compareTo(parent) >= 0) {
+                break;
+            }
+            setAt(index, parent);
+            index = parentIndex;
+        }
+        setAt(index, job);
+    }
+
+    private void siftDown(int index, Job<?> job) {
+        int half = size >>> 1;
+        while (index < half) {
+            int childIndex = (index << 1) + 1;
+            Job<?> child = queue[childIndex];
+            int rightIndex = childIndex + 1;
+            if (rightIndex < size && child.compareTo(queue[rightIndex]) > 0) {
+                childIndex = rightIndex;
+                child = queue[childIndex];
+            }
+            if (job.compareTo(child) <= 0) {
+                break;
+            }
+            setAt(index, child);
+            index = childIndex;
+        }
+        setAt(index, job);
+    }
+
+    private void setAt(int index, Job<?> job) {
+        queue[index] = job;
+        job.heapIndex = index;
+    }
+}
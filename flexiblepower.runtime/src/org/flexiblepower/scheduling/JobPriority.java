@@ -0,0 +1,26 @@
+package org.flexiblepower.scheduling;
+
+/**
+ * The priority of a {@link Job}. When multiple jobs are due at the same moment, the {@link AbstractScheduler} first
+ * executes the jobs with the highest priority. To make sure that a flood of high priority jobs does not starve the
+ * others, a job of a lower priority is executed after it has been passed over a fixed number of times.
+ *
+ * <p>
+ * The priorities are ordered from high to low.
+ */
+public enum JobPriority {
+    /**
+     * For jobs that can not wait, such as the handling of emergency allocations.
+     */
+    EMERGENCY,
+
+    /**
+     * The default priority for all the jobs that are scheduled or submitted directly.
+     */
+    TIMER,
+
+    /**
+     * For the handling of normal messages between endpoints.
+     */
+    MESSAGE
+}
@@ -0,0 +1,73 @@
+package org.flexiblepower.scheduling;
+
+import java.util.List;
+
+/**
+ * A {@link JobStore} holds the {@link Job}s of an {@link AbstractScheduler} that are waiting to be executed. The
+ * implementations do not need to be thread-safe, the {@link AbstractScheduler} guards all access to its store with its
+ * own lock. The only exception is the {@link #getNextJobTime()} method, which may be called from any thread.
+ */
+public interface JobStore {
+    /**
+     * Adds a job to this store. The job should not be part of any other store.
+     *
+     * @param job
+     *            The job that should be added
+     */
+    void add(Job<?> job);
+
+    /**
+     * Removes the job from this store.
+     *
+     * @param job
+     *            The job that should be removed
+     * @return true when the job was part of this store and has been removed
+     */
+    boolean remove(Job<?> job);
+
+    /**
+     * Removes and returns the first job that should have been executed at or before the given time.
+     *
+     * @param now
+     *            The current time, in the time unit of the scheduler
+     * @return The job that should be executed next or <code>null</code> when no job is due at the given time
+     */
+    Job<?> poll(long now);
+
+    /**
+     * Changes the time of the next run of a job that is part of this store and moves it to the right position.
+     *
+     * @param job
+     *            The job that should be moved, which must be part of this store
+     * @param time
+     *            The new time of the next run, in the time unit of the scheduler
+     */
+    void reschedule(Job<?> job, long time);
+
+    /**
+     * @return The timestamp at which the next job could be due or {@link Long#MAX_VALUE} when the store is empty. An
+     *         implementation may return an earlier time than the actual first job, in which case the scheduler will
+     *         just wake up a little bit earlier. This method may be called without holding the lock of the scheduler.
+     */
+    long getNextJobTime();
+
+    /**
+     * @return The number of jobs that are in this store
+     */
+    int size();
+
+    /**
+     * @return true when there are no jobs in this store
+     */
+    boolean isEmpty();
+
+    /**
+     * @return A snapshot of all the jobs that are in this store, in no particular order
+     */
+    List<Job<?>> getJobs();
+
+    /**
+     * Removes all the jobs from this store.
+     */
+    void clear();
+}
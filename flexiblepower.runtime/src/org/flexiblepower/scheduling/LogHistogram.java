@@ -0,0 +1,116 @@
+package org.flexiblepower.scheduling;
+
+/**
+ * A {@link LogHistogram} counts values in buckets that are powers of two wide. Bucket 0 holds all the values of 0 or
+ * less and bucket n holds the values from 2<sup>n-1</sup> up to 2<sup>n</sup> - 1. Recording a value only costs a
+ * couple of instructions and no allocation, so it can be done for every job that is executed.
+ *
+ * <p>
+ * This class is not thread-safe, the {@link AbstractScheduler} only touches its histograms while holding its lock.
+ */
+public final class LogHistogram {
+    private static final int BUCKETS = 64;
+
+    private final long[] counts;
+    private long count;
+    private long sum;
+    private long max;
+
+    public LogHistogram() {
+        counts = new long[BUCKETS];
+    }
+
+    private LogHistogram(LogHistogram other) {
+        counts = other.counts.clone();
+        count = other.count;
+        sum = other.sum;
+        max = other.max;
+    }
+
+    void record(long value) {
+        if (value <= 0) {
+            counts[0]++;
+        } else {
+            counts[64 - Long.numberOfLeadingZeros(value)]++;
+            sum += value;
+            if (value > max) {
+                max = value;
+            }
+        }
+        count++;
+    }
+
+    LogHistogram copy() {
+        return new LogHistogram(this);
+    }
+
+    /**
+     * @return The number of values that have been recorded
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The sum of all the positive values that have been recorded
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * @return The largest value that has been recorded, or 0 when no positive value has been recorded
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return The average of the recorded values, where values below 0 count as 0
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return The number of buckets of this histogram
+     */
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * @param bucket
+     *            The index of the bucket
+     * @return The number of values that have been recorded in the given bucket
+     */
+    public long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * @param bucket
+     *            The index of the bucket
+     * @return The largest value that fits in the given bucket
+     */
+    public static long getUpperBound(int bucket) {
+        return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    /**
+     * @param fraction
+     *            The fraction of values (between 0 and 1) that should be at or below the result
+     * @return The upper bound of the bucket that contains the requested percentile, limited by the maximum value
+     */
+    public long getPercentile(double fraction) {
+        long threshold = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= threshold && seen > 0) {
+                return Math.min(getUpperBound(bucket), max);
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,25 @@
+package org.flexiblepower.scheduling;
+
+/**
+ * The {@link MissedRunPolicy} determines what a job that is scheduled at a fixed rate does when one or more of its
+ * periods have already passed by the time it has finished, for example after a long garbage collection or a slow job.
+ */
+public enum MissedRunPolicy {
+    /**
+     * Executes all the missed runs back to back, until the job is on schedule again. This is the default behaviour of
+     * {@link java.util.concurrent.ScheduledExecutorService#scheduleAtFixedRate(Runnable, long, long,
+     * java.util.concurrent.TimeUnit)}.
+     */
+    CATCH_UP,
+
+    /**
+     * Skips all the missed runs and continues at the next moment that is aligned with the period.
+     */
+    SKIP,
+
+    /**
+     * Combines all the missed runs into a single run that is executed right away and then continues at the next moment
+     * that is aligned with the period.
+     */
+    COALESCE
+}
@@ -0,0 +1,73 @@
+package org.flexiblepower.scheduling;
+
+/**
+ * The {@link ResourceUsage} sums the CPU time and the allocated bytes of the jobs of a scheduler, see
+ * {@link SchedulerMetrics#getUsage()}. A job for which the CPU time or the allocated bytes could not be measured (for
+ * example because the JVM does not support it) does not add to that sum.
+ *
+ * <p>
+ * This class is not thread-safe, the {@link AbstractScheduler} only touches it while holding its lock.
+ */
+public final class ResourceUsage {
+    private long jobs;
+    private long cpuTime;
+    private long allocatedBytes;
+
+    ResourceUsage() {
+    }
+
+    private ResourceUsage(ResourceUsage other) {
+        jobs = other.jobs;
+        cpuTime = other.cpuTime;
+        allocatedBytes = other.allocatedBytes;
+    }
+
+    void record(long cpuTime, long allocatedBytes) {
+        jobs++;
+        if (cpuTime > 0) {
+            this.cpuTime += cpuTime;
+        }
+        if (allocatedBytes > 0) {
+            this.allocatedBytes += allocatedBytes;
+        }
+    }
+
+    ResourceUsage copy() {
+        return new ResourceUsage(this);
+    }
+
+    /**
+     * @return The number of jobs that have been recorded
+     */
+    public long getJobs() {
+        return jobs;
+    }
+
+    /**
+     * @return The CPU time of all the jobs in nanoseconds
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return The number of bytes that all the jobs have allocated
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return The average CPU time of a job in nanoseconds
+     */
+    public double getMeanCpuTime() {
+        return jobs == 0 ? 0 : (double) cpuTime / jobs;
+    }
+
+    /**
+     * @return The average number of bytes that a job allocates
+     */
+    public double getMeanAllocatedBytes() {
+        return jobs == 0 ? 0 : (double) allocatedBytes / jobs;
+    }
+}
@@ -0,0 +1,339 @@
+package org.flexiblepower.scheduling;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link SchedulerMetrics} are recorded by an {@link AbstractScheduler} for each job that it executes:
+ * <ul>
+ * <li>the lateness of each job, which is the time between the moment it should have started and the moment it actually
+ * started, in milliseconds;</li>
+ * <li>the run time of each job in microseconds, in total and per job source (the class of the submitted task);</li>
+ * <li>the number of scheduled jobs, sampled at most once per second;</li>
+ * <li>the number of executed jobs, from which the number of jobs per second is derived;</li>
+ * <li>the number of executed jobs and the largest number of waiting jobs per {@link JobPriority};</li>
+ * <li>the number of runs of jobs with a deadline and the number of those runs that finished after their deadline, per
+ * {@link JobPriority};</li>
+ * <li>the CPU time and the allocated bytes of the jobs, in total and per job source, see {@link ResourceUsage}.</li>
+ * </ul>
+ * All the times are in the time of the scheduler, so in a simulation they follow the simulation clock.
+ *
+ * <p>
+ * A scheduler only changes its metrics while holding its lock. Use {@link AbstractScheduler#getMetrics()} to get a
+ * consistent copy.
+ */
+public final class SchedulerMetrics {
+    /**
+     * The time between two samples of the queue depth in milliseconds.
+     */
+    public static final long SAMPLE_INTERVAL = 1000;
+
+    /**
+     * The number of samples of the queue depth that are kept.
+     */
+    public static final int SAMPLES = 60;
+
+    /**
+     * The maximum number of job sources that are tracked separately. The run times of any further sources are
+     * recorded under {@link #OTHER_SOURCES}.
+     */
+    static final int MAX_SOURCES = 256;
+
+    static final String OTHER_SOURCES = "(other)";
+
+    private final LogHistogram lateness;
+    private final LogHistogram runTime;
+    private final Map<String, LogHistogram> runTimeBySource;
+    private final ResourceUsage usage;
+    private final Map<String, ResourceUsage> usageBySource;
+    private long executedJobs;
+    private final long[] executedByPriority;
+    private final int[] maxReadyDepth;
+    private final long[] deadlineRuns;
+    private final long[] deadlineMisses;
+
+    private final long[] sampleTimes;
+    private final int[] sampleDepths;
+    private final long[] sampleExecutedJobs;
+    private final long[] sampleCpuTimes;
+    private int sampleCount;
+    private int nextSample;
+    private long nextSampleTime;
+
+    SchedulerMetrics() {
+        lateness = new LogHistogram();
+        runTime = new LogHistogram();
+        runTimeBySource = new HashMap<String, LogHistogram>();
+        usage = new ResourceUsage();
+        usageBySource = new HashMap<String, ResourceUsage>();
+        executedByPriority = new long[JobPriority.values().length];
+        maxReadyDepth = new int[JobPriority.values().length];
+        deadlineRuns = new long[JobPriority.values().length];
+        deadlineMisses = new long[JobPriority.values().length];
+        sampleTimes = new long[SAMPLES];
+        sampleDepths = new int[SAMPLES];
+        sampleExecutedJobs = new long[SAMPLES];
+        sampleCpuTimes = new long[SAMPLES];
+        nextSampleTime = Long.MIN_VALUE;
+    }
+
+    private SchedulerMetrics(SchedulerMetrics other) {
+        lateness = other.lateness.copy();
+        runTime = other.runTime.copy();
+        runTimeBySource = new HashMap<String, LogHistogram>(other.runTimeBySource.size() * 2);
+        for (Map.Entry<String, LogHistogram> entry : other.runTimeBySource.entrySet()) {
+            runTimeBySource.put(entry.getKey(), entry.getValue().copy());
+        }
+        usage = other.usage.copy();
+        usageBySource = new HashMap<String, ResourceUsage>(other.usageBySource.size() * 2);
+        for (Map.Entry<String, ResourceUsage> entry : other.usageBySource.entrySet()) {
+            usageBySource.put(entry.getKey(), entry.getValue().copy());
+        }
+        executedJobs = other.executedJobs;
+        executedByPriority = other.executedByPriority.clone();
+        maxReadyDepth = other.maxReadyDepth.clone();
+        deadlineRuns = other.deadlineRuns.clone();
+        deadlineMisses = other.deadlineMisses.clone();
+
+        // Store the samples from old to new
+        sampleTimes = new long[other.sampleCount];
+        sampleDepths = new int[other.sampleCount];
+        sampleExecutedJobs = new long[other.sampleCount];
+        sampleCpuTimes = new long[other.sampleCount];
+        int first = (other.nextSample - other.sampleCount + SAMPLES) % SAMPLES;
+        for (int ix = 0; ix < other.sampleCount; ix++) {
+            int index = (first + ix) % SAMPLES;
+            sampleTimes[ix] = other.sampleTimes[index];
+            sampleDepths[ix] = other.sampleDepths[index];
+            sampleExecutedJobs[ix] = other.sampleExecutedJobs[index];
+            sampleCpuTimes[ix] = other.sampleCpuTimes[index];
+        }
+        sampleCount = other.sampleCount;
+        nextSample = sampleCount % SAMPLES;
+        nextSampleTime = other.nextSampleTime;
+    }
+
+    SchedulerMetrics copy() {
+        return new SchedulerMetrics(this);
+    }
+
+    void recordStart(long lateness) {
+        this.lateness.record(lateness);
+    }
+
+    void recordReadyDepth(int lane, int depth) {
+        if (depth > maxReadyDepth[lane]) {
+            maxReadyDepth[lane] = depth;
+        }
+    }
+
+    void recordRun(String source, JobPriority priority, long runTimeNanos, long cpuTime, long allocatedBytes) {
+        long micros = runTimeNanos / 1000;
+        runTime.record(micros);
+
+        LogHistogram histogram = runTimeBySource.get(source);
+        if (histogram == null) {
+            if (runTimeBySource.size() >= MAX_SOURCES) {
+                source = OTHER_SOURCES;
+                histogram = runTimeBySource.get(source);
+            }
+            if (histogram == null) {
+                histogram = new LogHistogram();
+                runTimeBySource.put(source, histogram);
+            }
+        }
+        histogram.record(micros);
+
+        // The usage is kept under the same key as the run time, so both maps contain the same sources
+        usage.record(cpuTime, allocatedBytes);
+        ResourceUsage sourceUsage = usageBySource.get(source);
+        if (sourceUsage == null) {
+            sourceUsage = new ResourceUsage();
+            usageBySource.put(source, sourceUsage);
+        }
+        sourceUsage.record(cpuTime, allocatedBytes);
+
+        executedJobs++;
+        executedByPriority[priority.ordinal()]++;
+    }
+
+    void recordDeadline(JobPriority priority, boolean missed) {
+        deadlineRuns[priority.ordinal()]++;
+        if (missed) {
+            deadlineMisses[priority.ordinal()]++;
+        }
+    }
+
+    void sampleQueueDepth(long now, int depth) {
+        if (now < nextSampleTime) {
+            return;
+        }
+        sampleTimes[nextSample] = now;
+        sampleDepths[nextSample] = depth;
+        sampleExecutedJobs[nextSample] = executedJobs;
+        sampleCpuTimes[nextSample] = usage.getCpuTime();
+        nextSample = (nextSample + 1) % SAMPLES;
+        if (sampleCount < SAMPLES) {
+            sampleCount++;
+        }
+        nextSampleTime = now + SAMPLE_INTERVAL;
+    }
+
+    /**
+     * @return The histogram of the lateness of the jobs in milliseconds
+     */
+    public LogHistogram getLateness() {
+        return lateness;
+    }
+
+    /**
+     * @return The histogram of the run time of all the jobs in microseconds
+     */
+    public LogHistogram getRunTime() {
+        return runTime;
+    }
+
+    /**
+     * @return The histograms of the run time in microseconds, per class name of the submitted task
+     */
+    public Map<String, LogHistogram> getRunTimeBySource() {
+        return Collections.unmodifiableMap(runTimeBySource);
+    }
+
+    /**
+     * @return The CPU time and the allocated bytes of all the jobs
+     */
+    public ResourceUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return The CPU time and the allocated bytes, per class name of the submitted task
+     */
+    public Map<String, ResourceUsage> getUsageBySource() {
+        return Collections.unmodifiableMap(usageBySource);
+    }
+
+    /**
+     * @return The total number of jobs that have been executed
+     */
+    public long getExecutedJobs() {
+        return executedJobs;
+    }
+
+    /**
+     * @param priority
+     *            The priority of the jobs
+     * @return The number of jobs of the given priority that have been executed
+     */
+    public long getExecutedJobs(JobPriority priority) {
+        return executedByPriority[priority.ordinal()];
+    }
+
+    /**
+     * @param priority
+     *            The priority of the lane
+     * @return The largest number of jobs that were waiting at the same time in the ready lane of the given priority
+     */
+    public int getMaxReadyDepth(JobPriority priority) {
+        return maxReadyDepth[priority.ordinal()];
+    }
+
+    /**
+     * @return The number of runs of jobs with a deadline that have been executed
+     */
+    public long getDeadlineRuns() {
+        return sum(deadlineRuns);
+    }
+
+    /**
+     * @param priority
+     *            The priority of the jobs
+     * @return The number of runs of jobs with a deadline and the given priority that have been executed
+     */
+    public long getDeadlineRuns(JobPriority priority) {
+        return deadlineRuns[priority.ordinal()];
+    }
+
+    /**
+     * @return The number of runs that finished after their deadline
+     */
+    public long getDeadlineMisses() {
+        return sum(deadlineMisses);
+    }
+
+    /**
+     * @param priority
+     *            The priority of the jobs
+     * @return The number of runs of jobs with the given priority that finished after their deadline
+     */
+    public long getDeadlineMisses(JobPriority priority) {
+        return deadlineMisses[priority.ordinal()];
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * @return The number of queue depth samples, which is at most {@link #SAMPLES}
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @param index
+     *            The index of the sample, where 0 is the oldest sample of this copy
+     * @return The time at which the sample was taken
+     */
+    public long getSampleTime(int index) {
+        return sampleTimes[index];
+    }
+
+    /**
+     * @param index
+     *            The index of the sample, where 0 is the oldest sample of this copy
+     * @return The number of jobs that were scheduled at the time of the sample
+     */
+    public int getSampleDepth(int index) {
+        return sampleDepths[index];
+    }
+
+    /**
+     * @return The average number of executed jobs per second over the period that is covered by the samples, or 0 when
+     *         there are not enough samples yet
+     */
+    public double getJobsPerSecond() {
+        if (sampleCount < 2) {
+            return 0;
+        }
+        int last = sampleCount - 1;
+        long duration = sampleTimes[last] - sampleTimes[0];
+        if (duration <= 0) {
+            return 0;
+        }
+        return (sampleExecutedJobs[last] - sampleExecutedJobs[0]) * 1000.0 / duration;
+    }
+
+    /**
+     * @return The fraction of a single core that the jobs have used over the period that is covered by the samples,
+     *         or 0 when there are not enough samples yet
+     */
+    public double getCpuLoad() {
+        if (sampleCount < 2) {
+            return 0;
+        }
+        int last = sampleCount - 1;
+        long duration = sampleTimes[last] - sampleTimes[0];
+        if (duration <= 0) {
+            return 0;
+        }
+        return (sampleCpuTimes[last] - sampleCpuTimes[0]) / (duration * 1000000.0);
+    }
+}
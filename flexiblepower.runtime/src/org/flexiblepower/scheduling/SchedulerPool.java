@@ -0,0 +1,72 @@
+package org.flexiblepower.scheduling;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link SchedulerPool} is a small pool of threads that is shared by all the schedulers that are started with
+ * {@link AbstractScheduler#start(String, SchedulerPool)}. Each of those schedulers is a lane that is executed by at
+ * most one thread of the pool at a time, so the jobs of a single scheduler are still executed one by one.
+ *
+ * <p>
+ * There is a single shared instance of the pool, which is created by the first {@link #acquire()} call and shut down
+ * when the last user has called {@link #release()}.
+ */
+public final class SchedulerPool {
+    private static SchedulerPool shared;
+    private static int users;
+
+    /**
+     * @return The shared {@link SchedulerPool}, which is created when it is not running yet. Each call should be
+     *         followed by a {@link #release()} when the pool is no longer needed.
+     */
+    public static synchronized SchedulerPool acquire() {
+        if (shared == null) {
+            shared = new SchedulerPool(Runtime.getRuntime().availableProcessors());
+        }
+        users++;
+        return shared;
+    }
+
+    /**
+     * Releases the shared {@link SchedulerPool}. When this was the last user, the threads of the pool are stopped.
+     */
+    public void release() {
+        synchronized (SchedulerPool.class) {
+            if (shared == this && --users == 0) {
+                shared = null;
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private SchedulerPool(int size) {
+        executor = new ScheduledThreadPoolExecutor(size, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Shared scheduler thread #" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return The number of threads in this pool
+     */
+    public int getSize() {
+        return executor.getCorePoolSize();
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return executor.schedule(task, delay < 0 ? 0 : delay, unit);
+    }
+}
@@ -2,17 +2,27 @@ package org.flexiblepower.scheduling;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.felix.webconsole.SimpleWebConsolePlugin;
+import org.apache.felix.webconsole.WebConsoleConstants;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 
 //import aQute.bnd.annotation.component.Activate;
 //import aQute.bnd.annotation.component.Component;
@@ -22,10 +32,32 @@ import org.osgi.service.component.annotations.Deactivate;
 public class SchedulingServlet extends SimpleWebConsolePlugin {
     private static final long serialVersionUID = 6576166876090020661L;
 
+    /**
+     * The number of job sources that are shown in the top view.
+     */
+    private static final int TOP_SOURCES = 20;
+
+    private static final String SORT_CPU = "cpu";
+    private static final String SORT_ALLOCATED = "allocated";
+    private static final String SORT_JOBS = "jobs";
+
     public SchedulingServlet() {
         super("scheduling", "Runtime Scheduling", "FPAI", null);
     }
 
+    private volatile SlowJobWatchdog watchdog;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    public void setWatchdog(SlowJobWatchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    public void unsetWatchdog(SlowJobWatchdog watchdog) {
+        if (this.watchdog == watchdog) {
+            this.watchdog = null;
+        }
+    }
+
     @Activate
     public void init(BundleContext bundleContext) {
         register(bundleContext);
@@ -36,8 +68,25 @@ public class SchedulingServlet extends SimpleWebConsolePlugin {
         unregister();
     }
 
+    /**
+     * The metrics are served as plain JSON, without the header and footer of the web console.
+     */
+    @Override
+    protected boolean isHtmlRequest(HttpServletRequest req) {
+        return !isJsonRequest(req);
+    }
+
+    private static boolean isJsonRequest(HttpServletRequest req) {
+        return req.getRequestURI().endsWith(".json");
+    }
+
     @Override
     protected void renderContent(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (isJsonRequest(req)) {
+            renderJson(resp);
+            return;
+        }
+
         PrintWriter w = resp.getWriter();
 
         w.println("<div class=\"ui-widget-header ui-corner-top buttonGroup\"></div>");
@@ -85,5 +134,333 @@ public class SchedulingServlet extends SimpleWebConsolePlugin {
         }
         w.print("</table>");
         w.println("<div class=\"ui-widget-header ui-corner-bottom buttonGroup\"></div>");
+
+        String pluginRoot = String.valueOf(req.getAttribute(WebConsoleConstants.ATTR_PLUGIN_ROOT));
+        renderMetrics(w, pluginRoot + "/metrics.json");
+        renderTop(w, pluginRoot, req.getParameter("sort"));
+
+        SlowJobWatchdog watchdog = this.watchdog;
+        if (watchdog != null) {
+            renderOverruns(w, watchdog);
+        }
+    }
+
+    private void renderOverruns(PrintWriter w, SlowJobWatchdog watchdog) {
+        w.println("<div class=\"ui-widget-header ui-corner-top buttonGroup\">Jobs that ran longer than "
+                  + watchdog.getBudget() + "ms</div>");
+        w.println("<table class=\"tablesorter nicetable noauto ui-widget\">");
+        w.println("<tr><th class=\"ui-widget-header header\">Detected at</th>"
+                  + "<th class=\"ui-widget-header header\">Thread handler</th>"
+                  + "<th class=\"ui-widget-header header\">Job</th>"
+                  + "<th class=\"ui-widget-header header\">Execution time</th>"
+                  + "<th class=\"ui-widget-header header\">Sampled stacks</th></tr>");
+        List<SlowJobWatchdog.Overrun> overruns = watchdog.getOverruns();
+        if (overruns.isEmpty()) {
+            w.println("<tr class=\"odd ui-state-default\"><td colspan=\"5\">-- no slow jobs detected --</td></tr>");
+        }
+        int i = 1;
+        for (SlowJobWatchdog.Overrun overrun : overruns) {
+            if (i % 2 == 1) {
+                w.print("<tr class=\"odd ui-state-default\">");
+            } else {
+                w.print("<tr class=\"even ui-state-default\">");
+            }
+            w.print("<td>" + new Date(overrun.getDetectedAt()) + "</td>");
+            w.print("<td>" + overrun.getSchedulerName() + "</td>");
+            w.print("<td>" + escape(overrun.getJob()) + "</td>");
+            w.print("<td>" + (overrun.isFinished() ? "" : "still running, ") + overrun.getExecutionTime() + "ms</td>");
+            w.print("<td>");
+            for (Entry<List<StackTraceElement>, Integer> stack : overrun.getStacks()) {
+                w.print("<pre>" + stack.getValue() + " of " + overrun.getSamples() + " samples:\n");
+                for (StackTraceElement element : stack.getKey()) {
+                    w.print("    at " + escape(element.toString()) + "\n");
+                }
+                w.print("</pre>");
+            }
+            w.println("</td></tr>");
+            i++;
+        }
+        w.print("</table>");
+        w.println("<div class=\"ui-widget-header ui-corner-bottom buttonGroup\"></div>");
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private void renderMetrics(PrintWriter w, String jsonLink) {
+        w.println("<div class=\"ui-widget-header ui-corner-top buttonGroup\">Metrics (<a href=\"" + jsonLink
+                  + "\">JSON</a>)</div>");
+        w.println("<table class=\"tablesorter nicetable noauto ui-widget\">");
+        w.println("<tr><th class=\"ui-widget-header header\">Thread handler</th>"
+                  + "<th class=\"ui-widget-header header\">Queue depth</th>"
+                  + "<th class=\"ui-widget-header header\">Executed jobs</th>"
+                  + "<th class=\"ui-widget-header header\">Ready per lane (max)</th>"
+                  + "<th class=\"ui-widget-header header\">Deadline misses / runs</th>"
+                  + "<th class=\"ui-widget-header header\">Jobs/s</th>"
+                  + "<th class=\"ui-widget-header header\">Lateness p50 / p99 / max (ms)</th>"
+                  + "<th class=\"ui-widget-header header\">Run time p50 / p99 / max (&micro;s)</th></tr>");
+        int i = 1;
+        for (Entry<String, AbstractScheduler> entry : AbstractScheduler.THREAD_MONITOR) {
+            SchedulerMetrics metrics = entry.getValue().getMetrics();
+            if (i % 2 == 1) {
+                w.print("<tr class=\"odd ui-state-default\">");
+            } else {
+                w.print("<tr class=\"even ui-state-default\">");
+            }
+            w.print("<td>" + entry.getKey() + "</td>");
+            w.print("<td>" + entry.getValue().getQueueDepth() + "</td>");
+            w.print("<td>" + metrics.getExecutedJobs() + "</td>");
+            w.print("<td>" + lanes(entry.getValue(), metrics) + "</td>");
+            w.print("<td>" + metrics.getDeadlineMisses() + " / " + metrics.getDeadlineRuns() + "</td>");
+            w.print("<td>" + String.format(Locale.ROOT, "%.1f", metrics.getJobsPerSecond()) + "</td>");
+            w.print("<td>" + summary(metrics.getLateness()) + "</td>");
+            w.print("<td>" + summary(metrics.getRunTime()) + "</td>");
+            w.println("</tr>");
+            i++;
+        }
+        w.print("</table>");
+        w.println("<div class=\"ui-widget-header ui-corner-bottom buttonGroup\"></div>");
+    }
+
+    /**
+     * A row of the top view, which is either the total of a bundle (without a source) or a single job source.
+     */
+    private static final class TopRow {
+        final String bundle;
+        final String source;
+        final ResourceUsage usage;
+        final double cpuLoad;
+
+        TopRow(String bundle, String source, ResourceUsage usage, double cpuLoad) {
+            this.bundle = bundle;
+            this.source = source;
+            this.usage = usage;
+            this.cpuLoad = cpuLoad;
+        }
+    }
+
+    private static Comparator<TopRow> topOrder(final String sort) {
+        return new Comparator<TopRow>() {
+            @Override
+            public int compare(TopRow o1, TopRow o2) {
+                if (SORT_ALLOCATED.equals(sort)) {
+                    return Long.compare(o2.usage.getAllocatedBytes(), o1.usage.getAllocatedBytes());
+                } else if (SORT_JOBS.equals(sort)) {
+                    return Long.compare(o2.usage.getJobs(), o1.usage.getJobs());
+                } else {
+                    return Long.compare(o2.usage.getCpuTime(), o1.usage.getCpuTime());
+                }
+            }
+        };
+    }
+
+    private void renderTop(PrintWriter w, String pluginRoot, String sort) {
+        if (!SORT_ALLOCATED.equals(sort) && !SORT_JOBS.equals(sort)) {
+            sort = SORT_CPU;
+        }
+
+        List<TopRow> bundles = new ArrayList<TopRow>();
+        List<TopRow> sources = new ArrayList<TopRow>();
+        for (Entry<String, AbstractScheduler> entry : AbstractScheduler.THREAD_MONITOR) {
+            SchedulerMetrics metrics = entry.getValue().getMetrics();
+            bundles.add(new TopRow(entry.getKey(), null, metrics.getUsage(), metrics.getCpuLoad()));
+            for (Entry<String, ResourceUsage> source : metrics.getUsageBySource().entrySet()) {
+                sources.add(new TopRow(entry.getKey(), source.getKey(), source.getValue(), Double.NaN));
+            }
+        }
+        Comparator<TopRow> order = topOrder(sort);
+        Collections.sort(bundles, order);
+        Collections.sort(sources, order);
+
+        w.println("<div class=\"ui-widget-header ui-corner-top buttonGroup\">Top bundles, sorted by "
+                  + sort + "</div>");
+        renderTopTable(w, pluginRoot, bundles, true);
+        w.println("<div class=\"ui-widget-header ui-corner-top buttonGroup\">Top " + TOP_SOURCES
+                  + " job sources, sorted by " + sort + "</div>");
+        renderTopTable(w, pluginRoot, sources.subList(0, Math.min(TOP_SOURCES, sources.size())), false);
+    }
+
+    private void renderTopTable(PrintWriter w, String pluginRoot, List<TopRow> rows, boolean bundles) {
+        w.println("<table class=\"tablesorter nicetable noauto ui-widget\">");
+        w.print("<tr><th class=\"ui-widget-header header\">Thread handler</th>");
+        if (bundles) {
+            w.print("<th class=\"ui-widget-header header\">CPU load (%)</th>");
+        } else {
+            w.print("<th class=\"ui-widget-header header\">Source</th>");
+        }
+        w.println("<th class=\"ui-widget-header header\"><a href=\"" + pluginRoot + "?sort=" + SORT_JOBS
+                  + "\">Jobs</a></th>"
+                  + "<th class=\"ui-widget-header header\"><a href=\"" + pluginRoot + "?sort=" + SORT_CPU
+                  + "\">CPU time (ms)</a></th>"
+                  + "<th class=\"ui-widget-header header\">CPU time per job (&micro;s)</th>"
+                  + "<th class=\"ui-widget-header header\"><a href=\"" + pluginRoot + "?sort=" + SORT_ALLOCATED
+                  + "\">Allocated (KiB)</a></th>"
+                  + "<th class=\"ui-widget-header header\">Allocated per job (bytes)</th></tr>");
+        if (rows.isEmpty()) {
+            w.println("<tr class=\"odd ui-state-default\"><td colspan=\"7\">-- no jobs executed --</td></tr>");
+        }
+        int i = 1;
+        for (TopRow row : rows) {
+            if (i % 2 == 1) {
+                w.print("<tr class=\"odd ui-state-default\">");
+            } else {
+                w.print("<tr class=\"even ui-state-default\">");
+            }
+            w.print("<td>" + row.bundle + "</td>");
+            if (bundles) {
+                w.print("<td>" + String.format(Locale.ROOT, "%.1f", row.cpuLoad * 100) + "</td>");
+            } else {
+                w.print("<td>" + escape(row.source) + "</td>");
+            }
+            w.print("<td>" + row.usage.getJobs() + "</td>");
+            w.print("<td>" + String.format(Locale.ROOT, "%.1f", row.usage.getCpuTime() / 1000000.0) + "</td>");
+            w.print("<td>" + String.format(Locale.ROOT, "%.1f", row.usage.getMeanCpuTime() / 1000) + "</td>");
+            w.print("<td>" + row.usage.getAllocatedBytes() / 1024 + "</td>");
+            w.print("<td>" + String.format(Locale.ROOT, "%.0f", row.usage.getMeanAllocatedBytes()) + "</td>");
+            w.println("</tr>");
+            i++;
+        }
+        w.print("</table>");
+        w.println("<div class=\"ui-widget-header ui-corner-bottom buttonGroup\"></div>");
+    }
+
+    private static String lanes(AbstractScheduler scheduler, SchedulerMetrics metrics) {
+        StringBuilder sb = new StringBuilder();
+        for (JobPriority priority : JobPriority.values()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(priority.name().toLowerCase(Locale.ROOT)).append(' ');
+            sb.append(scheduler.getReadyDepth(priority));
+            sb.append(" (").append(metrics.getMaxReadyDepth(priority)).append(')');
+        }
+        return sb.toString();
+    }
+
+    private static String summary(LogHistogram histogram) {
+        return histogram.getPercentile(0.5) + " / " + histogram.getPercentile(0.99) + " / " + histogram.getMax();
+    }
+
+    private void renderJson(HttpServletResponse resp) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"schedulers\":[");
+        boolean first = true;
+        for (Entry<String, AbstractScheduler> entry : AbstractScheduler.THREAD_MONITOR) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+
+            AbstractScheduler scheduler = entry.getValue();
+            SchedulerMetrics metrics = scheduler.getMetrics();
+            sb.append("{\"name\":");
+            appendString(sb, entry.getKey());
+            sb.append(",\"queueDepth\":").append(scheduler.getQueueDepth());
+            sb.append(",\"currentExecutionTime\":").append(scheduler.getCurrentExecutionTime());
+            sb.append(",\"executedJobs\":").append(metrics.getExecutedJobs());
+            sb.append(",\"jobsPerSecond\":").append(String.format(Locale.ROOT, "%.3f", metrics.getJobsPerSecond()));
+            sb.append(",\"lanes\":{");
+            for (JobPriority priority : JobPriority.values()) {
+                if (priority.ordinal() > 0) {
+                    sb.append(',');
+                }
+                sb.append('"').append(priority.name()).append("\":{\"readyDepth\":");
+                sb.append(scheduler.getReadyDepth(priority));
+                sb.append(",\"maxReadyDepth\":").append(metrics.getMaxReadyDepth(priority));
+                sb.append(",\"executedJobs\":").append(metrics.getExecutedJobs(priority));
+                sb.append(",\"deadlineRuns\":").append(metrics.getDeadlineRuns(priority));
+                sb.append(",\"deadlineMisses\":").append(metrics.getDeadlineMisses(priority)).append('}');
+            }
+            sb.append('}');
+            sb.append(",\"lateness\":");
+            appendHistogram(sb, metrics.getLateness(), "ms");
+            sb.append(",\"runTime\":");
+            appendHistogram(sb, metrics.getRunTime(), "us");
+            sb.append(",\"runTimeBySource\":{");
+            boolean firstSource = true;
+            for (Map.Entry<String, LogHistogram> source : metrics.getRunTimeBySource().entrySet()) {
+                if (!firstSource) {
+                    sb.append(',');
+                }
+                firstSource = false;
+                appendString(sb, source.getKey());
+                sb.append(':');
+                appendHistogram(sb, source.getValue(), "us");
+            }
+            sb.append("},\"cpuLoad\":").append(String.format(Locale.ROOT, "%.4f", metrics.getCpuLoad()));
+            sb.append(",\"usage\":");
+            appendUsage(sb, metrics.getUsage());
+            sb.append(",\"usageBySource\":{");
+            firstSource = true;
+            for (Map.Entry<String, ResourceUsage> source : metrics.getUsageBySource().entrySet()) {
+                if (!firstSource) {
+                    sb.append(',');
+                }
+                firstSource = false;
+                appendString(sb, source.getKey());
+                sb.append(':');
+                appendUsage(sb, source.getValue());
+            }
+            sb.append("},\"queueDepthHistory\":[");
+            for (int ix = 0; ix < metrics.getSampleCount(); ix++) {
+                if (ix > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"time\":").append(metrics.getSampleTime(ix));
+                sb.append(",\"depth\":").append(metrics.getSampleDepth(ix)).append('}');
+            }
+            sb.append("]}");
+        }
+        sb.append("]}");
+
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().write(sb.toString());
+    }
+
+    private static void appendHistogram(StringBuilder sb, LogHistogram histogram, String unit) {
+        sb.append("{\"unit\":\"").append(unit).append('"');
+        sb.append(",\"count\":").append(histogram.getCount());
+        sb.append(",\"sum\":").append(histogram.getSum());
+        sb.append(",\"max\":").append(histogram.getMax());
+        sb.append(",\"p50\":").append(histogram.getPercentile(0.5));
+        sb.append(",\"p90\":").append(histogram.getPercentile(0.9));
+        sb.append(",\"p99\":").append(histogram.getPercentile(0.99));
+        // Only the buckets that contain values, as pairs of the upper bound and the count
+        sb.append(",\"buckets\":[");
+        boolean first = true;
+        for (int bucket = 0; bucket < histogram.getBucketCount(); bucket++) {
+            long count = histogram.getCount(bucket);
+            if (count > 0) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append('[').append(LogHistogram.getUpperBound(bucket)).append(',').append(count).append(']');
+            }
+        }
+        sb.append("]}");
+    }
+
+    private static void appendUsage(StringBuilder sb, ResourceUsage usage) {
+        sb.append("{\"jobs\":").append(usage.getJobs());
+        sb.append(",\"cpuTimeNanos\":").append(usage.getCpuTime());
+        sb.append(",\"allocatedBytes\":").append(usage.getAllocatedBytes()).append('}');
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int ix = 0; ix < value.length(); ix++) {
+            char c = value.charAt(ix);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
     }
 }
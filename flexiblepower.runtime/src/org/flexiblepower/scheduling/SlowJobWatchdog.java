@@ -0,0 +1,326 @@
+package org.flexiblepower.scheduling;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Dictionary;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link SlowJobWatchdog} regularly checks all the running schedulers. When a job runs longer than the configured
+ * budget, it is reported as an overrun and the stack of its execution thread is sampled for as long as the job keeps
+ * running. Identical stacks are counted instead of stored twice, such that the most frequent stack shows where the job
+ * is spending (or blocking) its time.
+ *
+ * <p>
+ * The last overruns are kept in a bounded buffer, which is shown by the {@link SchedulingServlet}.
+ */
+@Component(immediate = true, service = SlowJobWatchdog.class, configurationPolicy = ConfigurationPolicy.OPTIONAL)
+@Designate(ocd = SlowJobWatchdog.Config.class)
+public class SlowJobWatchdog {
+    private static final Logger logger = LoggerFactory.getLogger(SlowJobWatchdog.class);
+
+    private static final String KEY_BUDGET = "budget";
+    private static final String KEY_SAMPLE_INTERVAL = "sampleInterval";
+    private static final String KEY_MAX_OVERRUNS = "maxOverruns";
+    private static final String KEY_MAX_STACKS = "maxStacks";
+
+    @ObjectClassDefinition(name = "Slow Job Watchdog Configuration",
+                           description = "The watchdog reports the jobs of the schedulers that run longer than the "
+                                         + "budget and samples their stacks while they are running.")
+    public @interface Config {
+        @AttributeDefinition(name = KEY_BUDGET,
+                             description = "The time in milliseconds that a single job may run before it is reported")
+        long budget() default 1000;
+
+        @AttributeDefinition(name = KEY_SAMPLE_INTERVAL,
+                             description = "The time in milliseconds between 2 checks of the schedulers and thus "
+                                           + "between 2 samples of the stack of a slow job")
+        long sampleInterval() default 100;
+
+        @AttributeDefinition(name = KEY_MAX_OVERRUNS,
+                             description = "The number of overruns that are kept, older ones are forgotten")
+        int maxOverruns() default 50;
+
+        @AttributeDefinition(name = KEY_MAX_STACKS,
+                             description = "The number of different stacks that are kept for a single overrun")
+        int maxStacks() default 10;
+    }
+
+    /**
+     * An {@link Overrun} describes a single job that ran longer than the budget. While the job is still running, the
+     * watchdog keeps adding samples to it.
+     */
+    public static final class Overrun {
+        private final String schedulerName;
+        private final String job;
+        private final String source;
+        private final long detectedAt;
+        private final int maxStacks;
+        // Guarded by this
+        private final Map<List<StackTraceElement>, Integer> stacks;
+        private int samples;
+        private long executionTime;
+        private boolean finished;
+
+        Overrun(String schedulerName, Job<?> job, long detectedAt, int maxStacks) {
+            this.schedulerName = schedulerName;
+            this.job = job.toString();
+            source = job.getSource();
+            this.detectedAt = detectedAt;
+            this.maxStacks = maxStacks;
+            stacks = new LinkedHashMap<List<StackTraceElement>, Integer>();
+        }
+
+        synchronized void sample(long executionTime, StackTraceElement[] stack) {
+            this.executionTime = executionTime;
+            samples++;
+            if (stack.length > 0) {
+                List<StackTraceElement> key = Arrays.asList(stack);
+                Integer count = stacks.get(key);
+                if (count != null) {
+                    stacks.put(key, count + 1);
+                } else if (stacks.size() < maxStacks) {
+                    stacks.put(key, 1);
+                }
+            }
+        }
+
+        synchronized void finish() {
+            finished = true;
+        }
+
+        /**
+         * @return The name of the thread or lane of the scheduler that executed the job
+         */
+        public String getSchedulerName() {
+            return schedulerName;
+        }
+
+        /**
+         * @return The description of the job at the moment it was detected
+         */
+        public String getJob() {
+            return job;
+        }
+
+        /**
+         * @return The class name of the task of the job
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return The time (in {@link System#currentTimeMillis()}) at which the overrun was detected
+         */
+        public long getDetectedAt() {
+            return detectedAt;
+        }
+
+        /**
+         * @return The longest execution time in milliseconds that has been observed
+         */
+        public synchronized long getExecutionTime() {
+            return executionTime;
+        }
+
+        /**
+         * @return true when the job is no longer running
+         */
+        public synchronized boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return The number of times that the stack has been sampled
+         */
+        public synchronized int getSamples() {
+            return samples;
+        }
+
+        /**
+         * @return The sampled stacks with the number of times they were seen, the most frequent stack first
+         */
+        public synchronized List<Entry<List<StackTraceElement>, Integer>> getStacks() {
+            List<Entry<List<StackTraceElement>, Integer>> result
+                = new ArrayList<Entry<List<StackTraceElement>, Integer>>(stacks.size());
+            for (Entry<List<StackTraceElement>, Integer> entry : stacks.entrySet()) {
+                result.add(new SimpleImmutableEntry<List<StackTraceElement>, Integer>(entry));
+            }
+            Collections.sort(result, new Comparator<Entry<List<StackTraceElement>, Integer>>() {
+                @Override
+                public int compare(Entry<List<StackTraceElement>, Integer> o1,
+                                   Entry<List<StackTraceElement>, Integer> o2) {
+                    return o2.getValue().compareTo(o1.getValue());
+                }
+            });
+            return result;
+        }
+    }
+
+    private long budget = 1000;
+    private long sampleInterval = 100;
+    private int maxOverruns = 50;
+    private int maxStacks = 10;
+
+    private ScheduledThreadPoolExecutor executor;
+
+    // Guarded by this
+    private final Deque<Overrun> overruns = new ArrayDeque<Overrun>();
+    // Only used by the thread of the executor
+    private final Map<AbstractScheduler, Overrun> activeOverruns = new IdentityHashMap<AbstractScheduler, Overrun>();
+    private final Map<AbstractScheduler, Job<?>> activeJobs = new IdentityHashMap<AbstractScheduler, Job<?>>();
+
+    @Activate
+    public void activate(ComponentContext context) {
+        configure(context.getProperties());
+
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Slow job watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (RuntimeException ex) {
+                    logger.error("Error while checking the schedulers", ex);
+                }
+            }
+        }, sampleInterval, sampleInterval, TimeUnit.MILLISECONDS);
+        logger.debug("Started the watchdog with a budget of {}ms", budget);
+    }
+
+    private void configure(Dictionary<String, Object> properties) {
+        if (properties == null) {
+            return;
+        }
+        budget = parse(properties, KEY_BUDGET, budget, 1);
+        sampleInterval = parse(properties, KEY_SAMPLE_INTERVAL, sampleInterval, 1);
+        maxOverruns = (int) parse(properties, KEY_MAX_OVERRUNS, maxOverruns, 1);
+        maxStacks = (int) parse(properties, KEY_MAX_STACKS, maxStacks, 0);
+    }
+
+    private static long parse(Dictionary<String, Object> properties, String key, long defaultValue, long minimum) {
+        Object value = properties.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(minimum, Long.parseLong(value.toString().trim()));
+        } catch (NumberFormatException ex) {
+            logger.warn("Invalid value [{}] for {}, using {}", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    @Deactivate
+    public void deactivate() {
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * @return The budget in milliseconds
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return A snapshot of the last overruns, the most recent first
+     */
+    public synchronized List<Overrun> getOverruns() {
+        return new ArrayList<Overrun>(overruns);
+    }
+
+    void check() {
+        Map<AbstractScheduler, String> seen = new IdentityHashMap<AbstractScheduler, String>();
+        for (Entry<String, AbstractScheduler> entry : AbstractScheduler.THREAD_MONITOR) {
+            AbstractScheduler scheduler = entry.getValue();
+            seen.put(scheduler, entry.getKey());
+
+            Job<?> job = scheduler.getCurrentJob();
+            Thread thread = scheduler.getExecutionThread();
+            long executionTime = scheduler.getCurrentExecutionTime();
+            if (job == null || thread == null || executionTime <= budget) {
+                finish(scheduler);
+                continue;
+            }
+
+            Overrun overrun = activeOverruns.get(scheduler);
+            if (overrun == null || activeJobs.get(scheduler) != job) {
+                finish(scheduler);
+                overrun = new Overrun(entry.getKey(), job, System.currentTimeMillis(), maxStacks);
+                activeOverruns.put(scheduler, overrun);
+                activeJobs.put(scheduler, job);
+                add(overrun);
+                logger.warn("{} has been running {} for {}ms, which is more than the budget of {}ms",
+                            entry.getKey(),
+                            job,
+                            executionTime,
+                            budget);
+            }
+
+            StackTraceElement[] stack = thread.getStackTrace();
+            // The job could have finished while we were taking the sample
+            if (scheduler.getCurrentJob() == job) {
+                overrun.sample(executionTime, stack);
+            }
+        }
+
+        // Finish the overruns of the schedulers that have been stopped
+        for (Iterator<AbstractScheduler> it = activeOverruns.keySet().iterator(); it.hasNext();) {
+            AbstractScheduler scheduler = it.next();
+            if (!seen.containsKey(scheduler)) {
+                activeOverruns.get(scheduler).finish();
+                activeJobs.remove(scheduler);
+                it.remove();
+            }
+        }
+    }
+
+    private void finish(AbstractScheduler scheduler) {
+        Overrun overrun = activeOverruns.remove(scheduler);
+        activeJobs.remove(scheduler);
+        if (overrun != null) {
+            overrun.finish();
+        }
+    }
+
+    private synchronized void add(Overrun overrun) {
+        overruns.addFirst(overrun);
+        while (overruns.size() > maxOverruns) {
+            overruns.removeLast();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.flexiblepower.scheduling;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the CPU time and the allocated bytes of the current thread through the {@link ThreadMXBean}. The allocated
+ * bytes are only available on JVMs that provide <code>com.sun.management.ThreadMXBean</code>, which is an optional
+ * import of this bundle. Both measurements return -1 when they are not supported, for example for virtual threads.
+ */
+final class ThreadResources {
+    private static final Logger logger = LoggerFactory.getLogger(ThreadResources.class);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = isCpuTimeAvailable();
+    private static final boolean ALLOCATED_BYTES = isAllocatedBytesAvailable();
+
+    private ThreadResources() {
+    }
+
+    private static boolean isCpuTimeAvailable() {
+        try {
+            if (THREADS.isCurrentThreadCpuTimeSupported()) {
+                if (!THREADS.isThreadCpuTimeEnabled()) {
+                    THREADS.setThreadCpuTimeEnabled(true);
+                }
+                return true;
+            }
+        } catch (UnsupportedOperationException ex) {
+            // Handled below
+        } catch (SecurityException ex) {
+            // Handled below
+        }
+        logger.info("The CPU time of the scheduler threads can not be measured");
+        return false;
+    }
+
+    private static boolean isAllocatedBytesAvailable() {
+        try {
+            if (THREADS instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+                if (threads.isThreadAllocatedMemorySupported()) {
+                    if (!threads.isThreadAllocatedMemoryEnabled()) {
+                        threads.setThreadAllocatedMemoryEnabled(true);
+                    }
+                    return true;
+                }
+            }
+        } catch (LinkageError ex) {
+            // The com.sun.management package is not available
+        } catch (UnsupportedOperationException ex) {
+            // Handled below
+        } catch (SecurityException ex) {
+            // Handled below
+        }
+        logger.info("The allocated bytes of the scheduler threads can not be measured");
+        return false;
+    }
+
+    /**
+     * @return true when at least one of the measurements is supported
+     */
+    static boolean isAvailable() {
+        return CPU_TIME || ALLOCATED_BYTES;
+    }
+
+    /**
+     * @return The CPU time of the current thread in nanoseconds, or -1 when it can not be measured
+     */
+    static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * @return The number of bytes that the current thread has allocated, or -1 when it can not be measured
+     */
+    static long allocatedBytes() {
+        if (!ALLOCATED_BYTES) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,327 @@
+package org.flexiblepower.scheduling;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link TimingWheelJobStore} is a hierarchical timing wheel. Each level of the wheel has 64 buckets, where a
+ * bucket on level 0 represents a single tick and a bucket on level n represents 64 buckets of level n-1. Jobs that are
+ * further away than the highest level can represent are kept in a separate overflow list. By default a tick is a single
+ * millisecond; a scheduler that plans its jobs in nanoseconds uses {@link #NANOSECOND_RESOLUTION_SHIFT} to get ticks of
+ * about a millisecond as well.
+ *
+ * <p>
+ * Adding and removing a job is O(1), because a job is placed in a doubly linked list of the bucket that represents its
+ * time. When the time of a bucket has been reached, its jobs are cascaded to the lower levels, until they end up in the
+ * ready queue. The ready queue is a {@link JobHeap}, sorted in the same order as the {@link HeapJobStore}, such that
+ * jobs that are due at the same moment are executed in the order in which they were submitted. The ready queue also
+ * holds the jobs of the current tick that are not due yet, which keeps their exact order when a tick is longer than
+ * the unit of the times.
+ */
+public class TimingWheelJobStore implements JobStore {
+    static final int NOT_STORED = -1;
+    static final int READY = -2;
+
+    /**
+     * The resolution shift for times in nanoseconds, which makes a tick 2<sup>20</sup> ns (about a millisecond).
+     */
+    public static final int NANOSECOND_RESOLUTION_SHIFT = 20;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 5;
+    private static final int WHEEL_BITS = SLOT_BITS * LEVELS;
+    private static final int OVERFLOW = LEVELS * SLOTS;
+
+    private final Job<?>[] buckets;
+    private final long[] occupied;
+    private final JobHeap ready;
+    private final int resolutionShift;
+
+    private long currentTime;
+    private int size;
+    private volatile long nextJobTime;
+
+    /**
+     * Creates a timing wheel where each tick is one unit of time, which is a millisecond for most schedulers.
+     */
+    public TimingWheelJobStore() {
+        this(0);
+    }
+
+    /**
+     * Creates a timing wheel where each tick is 2<sup>resolutionShift</sup> units of time.
+     *
+     * @param resolutionShift
+     *            The number of low bits of the time that are ignored when choosing a bucket
+     */
+    public TimingWheelJobStore(int resolutionShift) {
+        if (resolutionShift < 0 || resolutionShift > 32) {
+            throw new IllegalArgumentException("Invalid resolution shift: " + resolutionShift);
+        }
+        this.resolutionShift = resolutionShift;
+        buckets = new Job<?>[OVERFLOW + 1];
+        occupied = new long[LEVELS];
+        ready = new JobHeap();
+
+        currentTime = Long.MIN_VALUE;
+        size = 0;
+        nextJobTime = Long.MAX_VALUE;
+    }
+
+    @Override
+    public void add(Job<?> job) {
+        place(job);
+        size++;
+        updateNextJobTime();
+    }
+
+    @Override
+    public boolean remove(Job<?> job) {
+        if (job.bucket == NOT_STORED) {
+            return false;
+        } else if (job.bucket == READY) {
+            if (!ready.remove(job)) {
+                return false;
+            }
+            job.bucket = NOT_STORED;
+        } else {
+            unlink(job);
+        }
+        size--;
+        updateNextJobTime();
+        return true;
+    }
+
+    @Override
+    public Job<?> poll(long now) {
+        advance(now);
+
+        Job<?> first = ready.peek();
+        if (first == null || first.getTimeOfNextRun() > now) {
+            updateNextJobTime();
+            return null;
+        }
+
+        ready.poll();
+        first.bucket = NOT_STORED;
+        size--;
+        updateNextJobTime();
+        return first;
+    }
+
+    @Override
+    public void reschedule(Job<?> job, long time) {
+        if (job.bucket == NOT_STORED) {
+            throw new IllegalArgumentException("The job is not part of this store: " + job);
+        } else if (job.bucket == READY && time <= currentTime) {
+            ready.reschedule(job, time);
+        } else {
+            if (job.bucket == READY) {
+                ready.remove(job);
+            } else {
+                unlink(job);
+            }
+            job.reschedule(time);
+            place(job);
+        }
+        updateNextJobTime();
+    }
+
+    @Override
+    public long getNextJobTime() {
+        return nextJobTime;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public List<Job<?>> getJobs() {
+        List<Job<?>> result = new ArrayList<Job<?>>(size);
+        result.addAll(ready.toList());
+        for (Job<?> head : buckets) {
+            for (Job<?> job = head; job != null; job = job.nextInBucket) {
+                result.add(job);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void clear() {
+        for (Job<?> job : ready.toList()) {
+            job.bucket = NOT_STORED;
+        }
+        ready.clear();
+        for (int ix = 0; ix < buckets.length; ix++) {
+            Job<?> job = buckets[ix];
+            while (job != null) {
+                Job<?> next = job.nextInBucket;
+                job.nextInBucket = null;
+                job.previousInBucket = null;
+                job.bucket = NOT_STORED;
+                job = next;
+            }
+            buckets[ix] = null;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            occupied[level] = 0;
+        }
+        size = 0;
+        updateNextJobTime();
+    }
+
+    /**
+     * Puts the job in the ready queue when it is due in the current tick of the wheel, or otherwise in the bucket of the
+     * lowest level that shares all the higher bits of its tick with the current tick.
+     */
+    private void place(Job<?> job) {
+        long time = job.getTimeOfNextRun();
+        long tick = time >> resolutionShift;
+        long currentTick = currentTime >> resolutionShift;
+        if (time <= currentTime || tick == currentTick) {
+            job.bucket = READY;
+            ready.add(job);
+            return;
+        }
+
+        int level = (63 - Long.numberOfLeadingZeros(tick ^ currentTick)) / SLOT_BITS;
+        int bucket;
+        if (level >= LEVELS) {
+            bucket = OVERFLOW;
+        } else {
+            int slot = (int) (tick >>> (level * SLOT_BITS)) & SLOT_MASK;
+            bucket = level * SLOTS + slot;
+            occupied[level] |= 1L << slot;
+        }
+
+        Job<?> head = buckets[bucket];
+        job.bucket = bucket;
+        job.previousInBucket = null;
+        job.nextInBucket = head;
+        if (head != null) {
+            head.previousInBucket = job;
+        }
+        buckets[bucket] = job;
+    }
+
+    private void unlink(Job<?> job) {
+        int bucket = job.bucket;
+        if (job.previousInBucket == null) {
+            buckets[bucket] = job.nextInBucket;
+        } else {
+            job.previousInBucket.nextInBucket = job.nextInBucket;
+        }
+        if (job.nextInBucket != null) {
+            job.nextInBucket.previousInBucket = job.previousInBucket;
+        }
+        if (bucket != OVERFLOW && buckets[bucket] == null) {
+            occupied[bucket / SLOTS] &= ~(1L << (bucket & SLOT_MASK));
+        }
+
+        job.nextInBucket = null;
+        job.previousInBucket = null;
+        job.bucket = NOT_STORED;
+    }
+
+    /**
+     * @return The lowest level that has at least one occupied bucket, or -1 when all levels are empty
+     */
+    private int firstOccupiedLevel() {
+        for (int level = 0; level < LEVELS; level++) {
+            if (occupied[level] != 0) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The start time of the first occupied bucket on the given level. The buckets of a lower level always start
+     *         earlier than the buckets of a higher level.
+     */
+    private long bucketTime(int level) {
+        int slot = Long.numberOfTrailingZeros(occupied[level]);
+        int shift = level * SLOT_BITS;
+        long windowStart = (currentTime >> (resolutionShift + shift + SLOT_BITS)) << (shift + SLOT_BITS);
+        return (windowStart | ((long) slot << shift)) << resolutionShift;
+    }
+
+    private long overflowTime() {
+        return ((currentTime >> (resolutionShift + WHEEL_BITS)) + 1) << (resolutionShift + WHEEL_BITS);
+    }
+
+    /**
+     * Moves the current time of the wheel forward to the given time, cascading all the buckets that start at or before
+     * that time.
+     */
+    private void advance(long now) {
+        while (true) {
+            int level = firstOccupiedLevel();
+            if (level >= 0) {
+                long time = bucketTime(level);
+                if (time > now) {
+                    break;
+                }
+                currentTime = time;
+                cascade(level * SLOTS + Long.numberOfTrailingZeros(occupied[level]));
+            } else if (buckets[OVERFLOW] != null && overflowTime() <= now) {
+                // All the levels are empty, so we can jump straight to the first overflowed job
+                long minimum = Long.MAX_VALUE;
+                for (Job<?> job = buckets[OVERFLOW]; job != null; job = job.nextInBucket) {
+                    minimum = Math.min(minimum, job.getTimeOfNextRun());
+                }
+                currentTime = Math.min(now, minimum);
+                cascade(OVERFLOW);
+            } else {
+                break;
+            }
+        }
+
+        if (now > currentTime) {
+            // There are no buckets left that start at or before now, so this keeps all the jobs in the right bucket
+            currentTime = now;
+        }
+    }
+
+    private void cascade(int bucket) {
+        Job<?> job = buckets[bucket];
+        buckets[bucket] = null;
+        if (bucket != OVERFLOW) {
+            occupied[bucket / SLOTS] &= ~(1L << (bucket & SLOT_MASK));
+        }
+
+        while (job != null) {
+            Job<?> next = job.nextInBucket;
+            job.nextInBucket = null;
+            job.previousInBucket = null;
+            place(job);
+            job = next;
+        }
+    }
+
+    private void updateNextJobTime() {
+        Job<?> first = ready.peek();
+        if (first != null) {
+            nextJobTime = first.getTimeOfNextRun();
+        } else {
+            int level = firstOccupiedLevel();
+            if (level >= 0) {
+                nextJobTime = bucketTime(level);
+            } else if (buckets[OVERFLOW] != null) {
+                nextJobTime = overflowTime();
+            } else {
+                nextJobTime = Long.MAX_VALUE;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.flexiblepower.scheduling;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gives access to the virtual threads of Java 21 and higher. This bundle is still compiled for Java 8, so the virtual
+ * thread builder is looked up through reflection once. When the JVM does not support virtual threads,
+ * {@link #isAvailable()} returns false.
+ */
+public final class VirtualThreads {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final ThreadFactory THREAD_FACTORY = createThreadFactory();
+
+    private VirtualThreads() {
+    }
+
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(ofVirtual.invoke(null));
+        } catch (Exception ex) {
+            logger.debug("Virtual threads are not available: {}", ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @return true when this JVM supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return THREAD_FACTORY != null;
+    }
+
+    /**
+     * @return A {@link ThreadFactory} that creates virtual threads, or <code>null</code> when they are not available
+     */
+    public static ThreadFactory getThreadFactory() {
+        return THREAD_FACTORY;
+    }
+}
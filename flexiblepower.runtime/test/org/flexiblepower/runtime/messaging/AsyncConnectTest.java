@@ -0,0 +1,184 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+
+/**
+ * Tests that the endpoints connect on their own contexts, without holding up the caller or the other connections.
+ */
+public class AsyncConnectTest extends ConnectionManagerTestCase {
+    /**
+     * Sends a message as soon as it is connected.
+     */
+    public abstract static class GreetingEndpoint extends TestEndpoint {
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            connection.sendMessage("hello from " + getClass().getSimpleName());
+            return super.onConnect(connection);
+        }
+    }
+
+    @Port(name = "controller", sends = String.class, accepts = String.class, cardinality = Cardinality.MULTIPLE)
+    public static class Controller extends GreetingEndpoint {
+    }
+
+    @Port(name = "device", sends = String.class, accepts = String.class)
+    public static class Device extends GreetingEndpoint {
+    }
+
+    /**
+     * Sends more messages while it connects than the connection can hold.
+     */
+    @Port(name = "controller", sends = String.class, accepts = String.class, cardinality = Cardinality.MULTIPLE)
+    public static class ChattyController extends GreetingEndpoint {
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            for (int ix = 0; ix < 5; ix++) {
+                connection.sendMessage("message " + ix);
+            }
+            return super.onConnect(connection);
+        }
+    }
+
+    /**
+     * Waits for the gate before it connects, like a driver that opens a slow serial port.
+     */
+    @Port(name = "device", sends = String.class, accepts = String.class)
+    public static class SlowDevice extends GreetingEndpoint {
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return super.onConnect(connection);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint instanceof SlowDevice) {
+                ((SlowDevice) endpoint).gate.countDown();
+            }
+        }
+        connectionManager.whenConnected().get(5, TimeUnit.SECONDS);
+        super.tearDown();
+    }
+
+    private PotentialConnectionImpl getConnection(int controller, int device) {
+        return connectionManager.getEndpoints()
+                                .get("endpoint" + controller)
+                                .getPort("controller")
+                                .getPotentialConnections()
+                                .get("endpoint" + device + ":device");
+    }
+
+    private static List<Object> await(TestEndpoint endpoint, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (endpoint.received.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        synchronized (endpoint.received) {
+            return new ArrayList<Object>(endpoint.received);
+        }
+    }
+
+    public void testSlowEndpointDoesNotBlockOthers() throws Exception {
+        Controller controller = add(new Controller());
+        SlowDevice slow = add(new SlowDevice());
+        Device fast = add(new Device());
+
+        CompletableFuture<Void> slowConnect = getConnection(0, 1).connectAsync();
+        assertFalse(slowConnect.isDone());
+        assertFalse(getConnection(0, 1).isConnected());
+
+        // The other connection is made while the slow device is still connecting
+        getConnection(0, 2).connect();
+        assertTrue(getConnection(0, 2).isConnected());
+        assertEquals(Arrays.<Object> asList("hello from Controller"), await(fast, 1));
+
+        slow.gate.countDown();
+        slowConnect.get(5, TimeUnit.SECONDS);
+        assertTrue(getConnection(0, 1).isConnected());
+
+        // The message that the controller sent before the slow device had connected is delivered afterwards
+        assertEquals(Arrays.<Object> asList("hello from Controller"), await(slow, 1));
+        List<Object> received = await(controller, 2);
+        assertTrue(received.contains("hello from Device"));
+        assertTrue(received.contains("hello from SlowDevice"));
+    }
+
+    /**
+     * The messages that are held back while the other end connects are subject to the capacity of the connection.
+     */
+    public void testHeldBackMessagesAreBounded() throws Exception {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put("connection.capacity", 2);
+        config.put("connection.overflow.policy", "DROP_OLDEST");
+        connectionManager.modified(config);
+        add(new ChattyController());
+        SlowDevice slow = add(new SlowDevice());
+
+        CompletableFuture<Void> connect = getConnection(0, 1).connectAsync();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getConnection(0, 1).getOverflowCount() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(4, getConnection(0, 1).getOverflowCount());
+
+        slow.gate.countDown();
+        connect.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.<Object> asList("message 4", "hello from ChattyController"), await(slow, 2));
+    }
+
+    public void testConnectAllInParallel() throws Exception {
+        add(new Controller());
+        List<SlowDevice> devices = new ArrayList<SlowDevice>();
+        for (int ix = 0; ix < 10; ix++) {
+            devices.add(add(new SlowDevice()));
+        }
+
+        CompletableFuture<Void> connected = connectionManager.connectAll(connectionManager.getEndpoints()
+                                                                                          .get("endpoint0")
+                                                                                          .getPort("controller")
+                                                                                          .getPotentialConnections()
+                                                                                          .values());
+        assertFalse(connected.isDone());
+        for (SlowDevice device : devices) {
+            device.gate.countDown();
+        }
+        connected.get(5, TimeUnit.SECONDS);
+        for (int ix = 1; ix <= devices.size(); ix++) {
+            assertTrue(getConnection(0, ix).isConnected());
+        }
+    }
+
+    public void testCloseWhileConnecting() throws Exception {
+        add(new Controller());
+        SlowDevice slow = add(new SlowDevice());
+
+        CompletableFuture<Void> connect = getConnection(0, 1).connectAsync();
+        CompletableFuture<Void> closed = getConnection(0, 1).closeAsync();
+        slow.gate.countDown();
+        connect.get(5, TimeUnit.SECONDS);
+        closed.get(5, TimeUnit.SECONDS);
+
+        assertFalse(getConnection(0, 1).isConnected());
+    }
+}
@@ -0,0 +1,90 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Port;
+
+/**
+ * Tests that the endpoints handle their disconnects on their own contexts, without anyone holding the lock of the
+ * connection while waiting for them.
+ */
+public class AsyncDisconnectTest extends ConnectionManagerTestCase {
+    @Port(name = "controller", sends = String.class, accepts = String.class, cardinality = Cardinality.MULTIPLE)
+    public static class Controller extends TestEndpoint {
+    }
+
+    /**
+     * Waits for the gate before it has handled its disconnect.
+     */
+    @Port(name = "device", sends = String.class, accepts = String.class)
+    public static class SlowDevice extends TestEndpoint {
+        final CountDownLatch gate;
+        volatile boolean opened;
+
+        SlowDevice(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        void onDisconnected() {
+            gate.countDown();
+            try {
+                opened = gate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private EndpointPortImpl getController() {
+        return connectionManager.getEndpoints().get("endpoint0").getPort("controller");
+    }
+
+    public void testCloseDoesNotHoldLock() throws Exception {
+        add(new Controller());
+        // The gate needs one more count than the device gives, so the test decides when the disconnect is handled
+        SlowDevice device = add(new SlowDevice(new CountDownLatch(2)));
+        PotentialConnectionImpl connection = getController().getPotentialConnections().get("endpoint1:device");
+        connection.connect();
+
+        CompletableFuture<Void> closed = connection.closeAsync();
+        assertFalse(closed.isDone());
+        // Needs the lock of the connection, which should not be held while the device is disconnecting
+        assertFalse(connection.isConnected());
+        assertTrue(connection.isConnectable());
+
+        device.gate.countDown();
+        closed.get(5, TimeUnit.SECONDS);
+        assertTrue(device.opened);
+    }
+
+    /**
+     * Each device only finishes its disconnect once all the devices have started theirs, which only happens when the
+     * connections of the removed controller are closed at once.
+     */
+    public void testRemoveEndpointClosesAllAtOnce() throws Exception {
+        final int devices = 10;
+        add(new Controller());
+        CountDownLatch gate = new CountDownLatch(devices);
+        List<SlowDevice> slowDevices = new ArrayList<SlowDevice>();
+        for (int ix = 0; ix < devices; ix++) {
+            slowDevices.add(add(new SlowDevice(gate)));
+        }
+        connectionManager.connectAll(getController().getPotentialConnections().values()).get(5, TimeUnit.SECONDS);
+
+        connectionManager.removeEndpoint(endpoints.get(0), properties(0));
+
+        for (SlowDevice device : slowDevices) {
+            assertTrue(device.opened);
+        }
+        // The devices also match each other, only the match with the controller is gone
+        EndpointPortImpl port = connectionManager.getEndpoints().get("endpoint1").getPort("device");
+        assertNull(port.getPotentialConnections().get("endpoint0:controller"));
+        assertEquals(devices - 1, port.getPotentialConnections().size());
+    }
+}
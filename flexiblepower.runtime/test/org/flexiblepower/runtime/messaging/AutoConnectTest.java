@@ -0,0 +1,207 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.messaging.Ports;
+
+/**
+ * Tests that autoconnecting only the changed ports when an endpoint is added gives the same connections as
+ * {@link ConnectionManagerImpl#autoConnect()} on all the ports. The connection manager of the test autoconnects the
+ * changed ports, the global one gets the same endpoints and autoconnects all the ports.
+ */
+public class AutoConnectTest extends ConnectionManagerTestCase {
+    // The meters only match the meter controllers and the sensors only match the hubs, such that there are ports
+    // with a single match to autoconnect
+    public static class Reading {
+    }
+
+    public static class Setpoint {
+    }
+
+    public static class Request {
+    }
+
+    public static class Status {
+    }
+
+    @Port(name = "meter", sends = Reading.class, accepts = Setpoint.class)
+    public static class Meter extends TestEndpoint {
+    }
+
+    @Port(name = "controller", sends = Setpoint.class, accepts = Reading.class)
+    public static class MeterController extends TestEndpoint {
+    }
+
+    @Port(name = "sensors", sends = Request.class, accepts = Status.class, cardinality = Cardinality.MULTIPLE)
+    public static class Hub extends TestEndpoint {
+    }
+
+    @Port(name = "hub", sends = Status.class, accepts = Request.class)
+    public static class Sensor extends TestEndpoint {
+    }
+
+    @Ports({ @Port(name = "hub", sends = Status.class, accepts = Request.class),
+             @Port(name = "meter", sends = Reading.class, accepts = Setpoint.class) })
+    public static class Relay extends TestEndpoint {
+    }
+
+    /**
+     * Refuses its connections, which are tried again by each autoconnect for as long as the hub is its only match.
+     */
+    @Port(name = "hub", sends = Status.class, accepts = Request.class)
+    public static class BrokenSensor implements Endpoint {
+        final AtomicInteger refused = new AtomicInteger();
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            refused.incrementAndGet();
+            return null;
+        }
+    }
+
+    private ConnectionManagerImpl global;
+    private final List<Endpoint> globalEndpoints = new ArrayList<Endpoint>();
+
+    @Override
+    protected ConnectionManagerImpl createConnectionManager() throws Exception {
+        ConnectionManagerImpl connectionManager = new ConnectionManagerImpl();
+        connectionManager.modified(Collections.<String, Object> singletonMap("autoconnect", true));
+        return connectionManager;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        global = new ConnectionManagerImpl();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        removeEndpoints(global, globalEndpoints);
+        global.deactivate();
+        super.tearDown();
+    }
+
+    private static Endpoint create(int type) {
+        switch (type) {
+        case 0:
+            return new Meter();
+        case 1:
+            return new MeterController();
+        case 2:
+            return new BrokenSensor();
+        case 3:
+            return new Hub();
+        case 4:
+            return new Sensor();
+        default:
+            return new Relay();
+        }
+    }
+
+    private static int getRefused(List<Endpoint> endpoints) {
+        int refused = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint instanceof BrokenSensor) {
+                refused += ((BrokenSensor) endpoint).refused.get();
+            }
+        }
+        return refused;
+    }
+
+    private static SortedSet<String> getConnected(ConnectionManagerImpl connectionManager) {
+        SortedSet<String> connected = new TreeSet<String>();
+        for (EndpointWrapper wrapper : connectionManager.getEndpoints().values()) {
+            for (EndpointPortImpl port : wrapper.getPorts().values()) {
+                for (PotentialConnectionImpl connection : port.getPotentialConnections().values()) {
+                    if (connection.isConnected()) {
+                        connected.add(connection.toString());
+                    }
+                }
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Adds, removes and disconnects random endpoints on both connection managers. After each added endpoint, the
+     * connections should be the same. At most 8 endpoints are kept, such that ports often have a single match.
+     */
+    public void testSameAsGlobalAutoConnect() throws Exception {
+        Random random = new Random(42);
+        List<Integer> live = new ArrayList<Integer>();
+        Set<String> disconnected = new HashSet<String>();
+        int added = 0, connectedSteps = 0, reconnected = 0;
+        for (int step = 0; step < 200; step++) {
+            int action = random.nextInt(10);
+            if (!live.isEmpty() && (action < 2 || live.size() >= 8)) {
+                int ix = live.remove(random.nextInt(live.size()));
+                connectionManager.removeEndpoint(endpoints.get(ix), properties(ix));
+                global.removeEndpoint(globalEndpoints.get(ix), properties(ix));
+            } else if (action < 3) {
+                List<String> connected = new ArrayList<String>(getConnected(connectionManager));
+                if (!connected.isEmpty()) {
+                    String key = connected.get(random.nextInt(connected.size()));
+                    disconnect(connectionManager, key);
+                    disconnect(global, key);
+                    disconnected.add(key);
+                }
+            } else {
+                int type = random.nextInt(6);
+                int ix = globalEndpoints.size();
+                live.add(ix);
+                add(create(type));
+                globalEndpoints.add(create(type));
+                global.addEndpoint(globalEndpoints.get(ix), properties(ix));
+                global.autoConnect();
+                connectionManager.whenConnected().join();
+                global.whenConnected().join();
+
+                SortedSet<String> connected = getConnected(connectionManager);
+                assertEquals("After step " + step, getConnected(global), connected);
+                added++;
+                if (!connected.isEmpty()) {
+                    connectedSteps++;
+                }
+                // A disconnected connection is autoconnected again once its ports are considered again
+                for (String key : connected) {
+                    if (disconnected.remove(key)) {
+                        reconnected++;
+                    }
+                }
+            }
+        }
+
+        assertTrue("Connected after " + connectedSteps + " of " + added + " steps", connectedSteps > added / 2);
+        assertTrue(reconnected > 0);
+        // The refused connections are tried again by the incremental autoconnect as often as by the global one
+        assertTrue(getRefused(endpoints) > 0);
+        assertEquals(getRefused(globalEndpoints), getRefused(endpoints));
+    }
+
+    private static void disconnect(ConnectionManagerImpl connectionManager, String key) {
+        for (EndpointWrapper wrapper : connectionManager.getEndpoints().values()) {
+            for (EndpointPortImpl port : wrapper.getPorts().values()) {
+                for (PotentialConnectionImpl connection : port.getPotentialConnections().values()) {
+                    if (connection.toString().equals(key)) {
+                        connection.disconnect();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.osgi.framework.Constants;
+
+/**
+ * Base of the tests that add endpoints to a {@link ConnectionManagerImpl}. The endpoints get "endpoint" and the number
+ * in which they were added as their PID and are all removed again after each test.
+ */
+public abstract class ConnectionManagerTestCase extends TestCase {
+    /**
+     * Records what it receives and calls {@link #onDisconnected()} when one of its connections is disconnected.
+     */
+    public abstract static class TestEndpoint implements Endpoint {
+        final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                    received.add(message);
+                }
+
+                @Override
+                public void disconnected() {
+                    onDisconnected();
+                }
+            };
+        }
+
+        void onDisconnected() {
+        }
+    }
+
+    protected ConnectionManagerImpl connectionManager;
+    protected final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+    /**
+     * @return The connection manager for a test, which subclasses can configure or activate
+     */
+    protected ConnectionManagerImpl createConnectionManager() throws Exception {
+        return new ConnectionManagerImpl();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        connectionManager = createConnectionManager();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        removeEndpoints(connectionManager, endpoints);
+        connectionManager.deactivate();
+    }
+
+    protected <T extends Endpoint> T add(T endpoint) {
+        connectionManager.addEndpoint(endpoint, properties(endpoints.size()));
+        endpoints.add(endpoint);
+        return endpoint;
+    }
+
+    /**
+     * Removes all the endpoints that were added to the connection manager, including those that a test has removed
+     * itself already.
+     */
+    protected static void removeEndpoints(ConnectionManagerImpl connectionManager, List<Endpoint> endpoints) {
+        for (int ix = 0; ix < endpoints.size(); ix++) {
+            connectionManager.removeEndpoint(endpoints.get(ix), properties(ix));
+        }
+    }
+
+    protected static Map<String, Object> properties(int ix) {
+        return Collections.<String, Object> singletonMap(Constants.SERVICE_PID, "endpoint" + ix);
+    }
+}
@@ -0,0 +1,314 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.ral.messages.AllocationRevoke;
+import org.flexiblepower.ral.messages.ControlSpaceRevoke;
+import org.flexiblepower.ral.messages.ResourceMessage;
+import org.osgi.framework.Constants;
+
+/**
+ * Tests the bounded queues of the connections, see {@link OverflowPolicy}.
+ */
+public class ConnectionQueueTest extends TestCase {
+    @Port(name = "sender", sends = Object.class)
+    public static class Sender implements Endpoint {
+        volatile Connection connection;
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            this.connection = connection;
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                }
+
+                @Override
+                public void disconnected() {
+                }
+            };
+        }
+    }
+
+    /**
+     * Records everything it receives. The handling of the first message waits for the gate, such that the next
+     * messages pile up in the connection.
+     */
+    @Port(name = "receiver", accepts = Object.class)
+    public static class Receiver implements Endpoint {
+        final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                    handling.countDown();
+                    try {
+                        gate.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    received.add(message);
+                }
+
+                @Override
+                public void disconnected() {
+                    received.add("disconnected");
+                }
+            };
+        }
+    }
+
+    private ConnectionManagerImpl connectionManager;
+    private Sender sender;
+    private Receiver receiver;
+    private PotentialConnectionImpl connection;
+
+    /**
+     * Connects a new sender and receiver with the given configuration of the connection manager.
+     */
+    private void connect(Object... config) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (int ix = 0; ix < config.length; ix += 2) {
+            properties.put((String) config[ix], config[ix + 1]);
+        }
+        connectionManager = new ConnectionManagerImpl();
+        connectionManager.modified(properties);
+        sender = new Sender();
+        receiver = new Receiver();
+        connectionManager.addEndpoint(sender, properties("sender"));
+        connectionManager.addEndpoint(receiver, properties("receiver"));
+        connection = connectionManager.getEndpoints()
+                                      .get("sender")
+                                      .getPort("sender")
+                                      .getPotentialConnections()
+                                      .values()
+                                      .iterator()
+                                      .next();
+        connection.connect();
+        assertTrue(connection.isConnected());
+    }
+
+    private static Map<String, Object> properties(String pid) {
+        return Collections.<String, Object> singletonMap(Constants.SERVICE_PID, pid);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (connectionManager != null) {
+            receiver.gate.countDown();
+            connectionManager.removeEndpoint(sender, properties("sender"));
+            connectionManager.removeEndpoint(receiver, properties("receiver"));
+            connectionManager.deactivate();
+        }
+    }
+
+    private void send(Object... messages) {
+        for (Object message : messages) {
+            sender.connection.sendMessage(message);
+        }
+    }
+
+    /**
+     * Sends the first message and waits until the receiver is stuck handling it, such that the next messages stay in
+     * the queue of the connection.
+     */
+    private void hold(Object first) throws InterruptedException {
+        send(first);
+        assertTrue(receiver.handling.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Lets the receiver handle everything and waits until it has received the given number of messages.
+     */
+    private List<Object> release(int expected) throws InterruptedException {
+        receiver.gate.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (receiver.received.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        synchronized (receiver.received) {
+            return new ArrayList<Object>(receiver.received);
+        }
+    }
+
+    public void testDropOldest() throws Exception {
+        connect("connection.capacity", 2, "connection.overflow.policy", "DROP_OLDEST");
+        hold(0);
+        send(1, 2, 3);
+        assertEquals(1, connection.getOverflowCount());
+        assertEquals(Arrays.<Object> asList(0, 2, 3), release(3));
+    }
+
+    public void testDropNewest() throws Exception {
+        connect("connection.capacity", 2, "connection.overflow.policy", "DROP_NEWEST");
+        hold(0);
+        send(1, 2, 3, 4);
+        assertEquals(2, connection.getOverflowCount());
+        assertEquals(Arrays.<Object> asList(0, 1, 2), release(3));
+    }
+
+    public void testFail() throws Exception {
+        connect("connection.capacity", 2, "connection.overflow.policy", "FAIL");
+        hold(0);
+        send(1, 2);
+        try {
+            send(3);
+            fail("The sender should fail on a full connection");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertEquals(1, connection.getOverflowCount());
+        assertEquals(Arrays.<Object> asList(0, 1, 2), release(3));
+    }
+
+    /**
+     * The port capacities override the capacity and policy of the connection manager.
+     */
+    public void testPortCapacity() throws Exception {
+        connect("connection.capacity", 10, "connection.port.capacities", "receiver:receiver=1,DROP_NEWEST");
+        hold(0);
+        send(1, 2);
+        assertEquals(1, connection.getOverflowCount());
+        assertEquals(Arrays.<Object> asList(0, 1), release(2));
+    }
+
+    public void testBlockReleasedWhenDrained() throws Exception {
+        connect("connection.capacity", 2, "connection.overflow.policy", "BLOCK", "connection.block.timeout", 10000);
+        hold(0);
+        send(1, 2);
+        Thread blocked = sendInBackground(3, null);
+        assertEquals(Arrays.<Object> asList(0, 1, 2, 3), release(4));
+        blocked.join(5000);
+        assertFalse(blocked.isAlive());
+        assertEquals(0, connection.getOverflowCount());
+    }
+
+    /**
+     * A receiver that doesn't make room within the block timeout doesn't hold up the sender forever.
+     */
+    public void testBlockTimesOut() throws Exception {
+        connect("connection.capacity", 2, "connection.overflow.policy", "BLOCK", "connection.block.timeout", 100);
+        hold(0);
+        send(1, 2);
+        long start = System.nanoTime();
+        send(3);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1, connection.getOverflowCount());
+        assertEquals(Arrays.<Object> asList(0, 1, 2), release(3));
+    }
+
+    public void testEmergencyBypassesQueue() throws Exception {
+        connect("connection.capacity", 1, "connection.overflow.policy", "FAIL");
+        hold(0);
+        send(1);
+        AllocationRevoke revoke = new AllocationRevoke("resource", new Date());
+        send(revoke);
+        assertEquals(0, connection.getOverflowCount());
+        List<Object> received = release(3);
+        assertEquals(3, received.size());
+        assertTrue(received.contains(revoke));
+    }
+
+    /**
+     * A conflated message replaces the undelivered message of the same class in place, other messages keep their order.
+     */
+    public void testConflatedClass() throws Exception {
+        connect("connection.conflated.classes", new String[] { "java.lang.Number" });
+        hold("first");
+        send(1, "a", 2L, 3, "b", 4);
+        assertEquals(0, connection.getOverflowCount());
+        assertEquals(Arrays.<Object> asList("first", 4, "a", 2L, "b"), release(5));
+    }
+
+    /**
+     * Resource messages are conflated per resource, and a conflated message does not count against the capacity.
+     */
+    public void testConflatedPortPerResource() throws Exception {
+        connect("connection.conflated.ports",
+                "receiver:receiver",
+                "connection.capacity",
+                2,
+                "connection.overflow.policy",
+                "FAIL");
+        hold("first");
+        ControlSpaceRevoke a1 = new ControlSpaceRevoke("a", new Date());
+        ControlSpaceRevoke b1 = new ControlSpaceRevoke("b", new Date());
+        ControlSpaceRevoke a2 = new ControlSpaceRevoke("a", new Date());
+        ControlSpaceRevoke b2 = new ControlSpaceRevoke("b", new Date());
+        send(a1, b1, a2, b2);
+        assertEquals(0, connection.getOverflowCount());
+        assertEquals(Arrays.<Object> asList("first", a2, b2), release(3));
+    }
+
+    /**
+     * A resource message without a resource identifier is conflated with the others of its class that don't have one.
+     */
+    public void testConflatedWithoutResourceId() throws Exception {
+        connect("connection.conflated.ports", "receiver:receiver");
+        hold("first");
+        UnknownResource a = new UnknownResource();
+        UnknownResource b = new UnknownResource();
+        send(a, b);
+        assertEquals(Arrays.<Object> asList("first", b), release(2));
+    }
+
+    private static final class UnknownResource extends ResourceMessage {
+        UnknownResource() {
+            super("unknown", new Date());
+        }
+
+        @Override
+        public String getResourceId() {
+            return null;
+        }
+    }
+
+    /**
+     * Sends the message from a new thread and waits until that thread is waiting for room on the connection.
+     */
+    private Thread sendInBackground(final Object message, final AtomicReference<Throwable> error) throws Exception {
+        Thread thread = new Thread("Blocked sender") {
+            @Override
+            public void run() {
+                try {
+                    send(message);
+                } catch (RuntimeException ex) {
+                    if (error != null) {
+                        error.set(ex);
+                    }
+                }
+            }
+        };
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!isWaiting(thread) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(isWaiting(thread));
+        return thread;
+    }
+
+    private static boolean isWaiting(Thread thread) {
+        Thread.State state = thread.getState();
+        return state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING;
+    }
+}
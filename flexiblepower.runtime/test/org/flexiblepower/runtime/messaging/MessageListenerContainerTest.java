@@ -0,0 +1,123 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
+import org.flexiblepower.messaging.Filter;
+import org.flexiblepower.messaging.MessageListener;
+
+/**
+ * Tests the dispatching of messages to the {@link MessageListener}s by the {@link MessageListenerContainer}.
+ */
+public class MessageListenerContainerTest extends TestCase {
+    public static class Recorder implements MessageListener {
+        final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+
+        @Override
+        public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+            received.add(message);
+        }
+    }
+
+    @Filter(Number.class)
+    public static class NumberRecorder extends Recorder {
+    }
+
+    /**
+     * Waits for the gate before handling the first message.
+     */
+    public static class SlowRecorder extends Recorder {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+            handling.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            super.handleMessage(from, to, message);
+        }
+    }
+
+    private MessageListenerContainer container;
+
+    @Override
+    protected void setUp() throws Exception {
+        container = new MessageListenerContainer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        container.close();
+    }
+
+    private static List<Object> await(Recorder recorder, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recorder.received.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        synchronized (recorder.received) {
+            return new ArrayList<Object>(recorder.received);
+        }
+    }
+
+    public void testFilter() throws Exception {
+        Recorder all = new Recorder();
+        NumberRecorder numbers = new NumberRecorder();
+        container.addMessageListener(all);
+        container.addMessageListener(numbers);
+
+        container.publishMessage(null, null, "a");
+        container.publishMessage(null, null, 1);
+        container.publishMessage(null, null, 2L);
+
+        assertEquals(Arrays.<Object> asList("a", 1, 2L), await(all, 3));
+        assertEquals(Arrays.<Object> asList(1, 2L), await(numbers, 2));
+    }
+
+    public void testRemovedListenerReceivesNothing() throws Exception {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        container.addMessageListener(first);
+        container.addMessageListener(second);
+        container.removeMessageListener(first);
+
+        container.publishMessage(null, null, "a");
+
+        assertEquals(Arrays.<Object> asList("a"), await(second, 1));
+        assertTrue(first.received.isEmpty());
+    }
+
+    /**
+     * A slow listener loses the messages that don't fit in its buffer, without delaying the other listeners.
+     */
+    public void testSlowListenerDrops() throws Exception {
+        Recorder fast = new Recorder();
+        container.addMessageListener(fast);
+        container.setBufferCapacity(2);
+        SlowRecorder slow = new SlowRecorder();
+        container.addMessageListener(slow);
+
+        container.publishMessage(null, null, 0);
+        assertTrue(slow.handling.await(5, TimeUnit.SECONDS));
+        for (int ix = 1; ix <= 5; ix++) {
+            container.publishMessage(null, null, ix);
+        }
+
+        assertEquals(Arrays.<Object> asList(0, 1, 2, 3, 4, 5), await(fast, 6));
+        assertEquals(3, container.getDroppedCount());
+
+        slow.gate.countDown();
+        assertEquals(Arrays.<Object> asList(0, 1, 2), await(slow, 3));
+    }
+}
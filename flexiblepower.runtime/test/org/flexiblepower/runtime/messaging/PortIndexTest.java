@@ -0,0 +1,153 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.messaging.Ports;
+import org.mockito.Mockito;
+
+/**
+ * Tests the matching of ports through the {@link PortIndex} of the {@link ConnectionManagerImpl}.
+ */
+public class PortIndexTest extends ConnectionManagerTestCase {
+    @Port(name = "anyIn", sends = String.class, accepts = Object.class, cardinality = Cardinality.MULTIPLE)
+    public static class AnyIn extends TestEndpoint {
+    }
+
+    @Port(name = "anyOut", sends = Object.class, accepts = String.class)
+    public static class AnyOut extends TestEndpoint {
+    }
+
+    @Port(name = "anyInOut", sends = Object.class, accepts = Object.class)
+    public static class AnyInOut extends TestEndpoint {
+    }
+
+    @Ports({ @Port(name = "strings", sends = String.class, accepts = String.class),
+             @Port(name = "numbers", sends = { Integer.class, Long.class }, accepts = Number.class) })
+    public static class Mixed extends TestEndpoint {
+    }
+
+    @Port(name = "listen", accepts = CharSequence.class)
+    public static class Listener extends TestEndpoint {
+    }
+
+    @Port(name = "talk", sends = { String.class, StringBuilder.class })
+    public static class Talker extends TestEndpoint {
+    }
+
+    @Port(name = "device", sends = Integer.class, accepts = String.class)
+    public static class Device extends TestEndpoint {
+    }
+
+    @Port(name = "controller", sends = String.class, accepts = Number.class, cardinality = Cardinality.MULTIPLE)
+    public static class Controller extends TestEndpoint {
+    }
+
+    /**
+     * A message type that stands for one of a bundle that can be uninstalled.
+     */
+    public static class Reading {
+    }
+
+    @Port(name = "meter", sends = Reading.class, accepts = String.class)
+    public static class Meter extends TestEndpoint {
+    }
+
+    @Port(name = "readings", sends = String.class, accepts = Reading.class)
+    public static class ReadingSink extends TestEndpoint {
+    }
+
+    /**
+     * Creates a port for a direct test of the {@link PortIndex}, without starting the context of an endpoint.
+     */
+    private static EndpointPortImpl port(String pid, Class<? extends Endpoint> type) {
+        EndpointWrapper wrapper = Mockito.mock(EndpointWrapper.class);
+        Mockito.when(wrapper.getPid()).thenReturn(pid);
+        return new EndpointPortImpl(wrapper, type.getAnnotation(Port.class));
+    }
+
+    private static void add(PortIndex index, EndpointPortImpl port) {
+        index.getMatches(port);
+        index.add(port);
+    }
+
+    /**
+     * The ports that are found through the index should be the same as those of a comparison with every other port.
+     */
+    public void testMatchesFullScan() throws Exception {
+        add(new AnyIn());
+        add(new AnyOut());
+        add(new AnyInOut());
+        add(new Mixed());
+        add(new Listener());
+        add(new Talker());
+        add(new Device());
+        add(new Controller());
+        add(new AnyOut());
+        add(new Talker());
+
+        List<EndpointPortImpl> ports = new ArrayList<EndpointPortImpl>();
+        for (EndpointWrapper wrapper : connectionManager.getEndpoints().values()) {
+            ports.addAll(wrapper.getPorts().values());
+        }
+        for (EndpointPortImpl port : ports) {
+            TreeSet<String> expected = new TreeSet<String>();
+            for (EndpointPortImpl other : ports) {
+                if (other.getEndpoint() != port.getEndpoint() && PortIndex.matches(port.getPort(), other.getPort())) {
+                    expected.add(other.toString());
+                }
+            }
+            assertEquals("Matches of " + port, expected, port.getPotentialConnections().keySet());
+        }
+    }
+
+    public void testRemovedEndpointIsNotMatched() throws Exception {
+        add(new Device());
+        connectionManager.removeEndpoint(endpoints.get(0), properties(0));
+        add(new Controller());
+        EndpointPortImpl controller = connectionManager.getEndpoints().get("endpoint1").getPort("controller");
+        assertTrue(controller.getPotentialConnections().isEmpty());
+    }
+
+    public void testRemovedMessageTypesAreNotCached() throws Exception {
+        PortIndex index = new PortIndex();
+        EndpointPortImpl sink = port("sink", ReadingSink.class);
+        EndpointPortImpl meter = port("meter", Meter.class);
+        add(index, sink);
+        assertEquals(Collections.singletonList(sink), index.getMatches(meter));
+        index.add(meter);
+        assertTrue(index.getCachedTypes().contains(Reading.class));
+
+        index.remove(meter);
+        assertFalse(index.getCachedTypes().contains(Reading.class));
+        assertTrue(index.getCachedTypes().contains(String.class));
+    }
+
+    /**
+     * Adds 10,000 devices that all match a single controller. Each device is only compared to the controller, instead
+     * of to all the devices that came before it.
+     */
+    public void testStartupWith10000Endpoints() throws Exception {
+        final int devices = 10000;
+        PortIndex index = new PortIndex();
+        EndpointPortImpl controller = port("controller", Controller.class);
+        add(index, controller);
+        // The devices never match each other, so they can share the wrapper of their endpoint
+        EndpointWrapper wrapper = Mockito.mock(EndpointWrapper.class);
+        Mockito.when(wrapper.getPid()).thenReturn("device");
+        for (int ix = 0; ix < devices; ix++) {
+            EndpointPortImpl device = new EndpointPortImpl(wrapper, Device.class.getAnnotation(Port.class));
+            assertEquals(Collections.singletonList(controller), index.getMatches(device));
+            index.add(device);
+        }
+
+        assertEquals(devices, index.getMatches(controller).size());
+        // One comparison per device, and one per device for the controller at the end
+        assertEquals(2 * devices, index.getComparisons());
+    }
+}
@@ -0,0 +1,143 @@
+package org.flexiblepower.runtime.messaging;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Port;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * Tests that the active connections are stored once per quiet period, instead of once per change.
+ */
+public class StoreConnectionsTest extends ConnectionManagerTestCase {
+    private static final long STORE_DELAY = 200;
+
+    @Port(name = "device", sends = Integer.class, accepts = String.class)
+    public static class Device extends TestEndpoint {
+    }
+
+    @Port(name = "controller", sends = String.class, accepts = Number.class, cardinality = Cardinality.MULTIPLE)
+    public static class Controller extends TestEndpoint {
+    }
+
+    /**
+     * Implements the {@link Configuration} and the {@link ConfigurationAdmin} that returns it, counting the updates.
+     */
+    private static final class ConfigurationStub implements InvocationHandler {
+        final AtomicInteger updates = new AtomicInteger();
+        volatile Dictionary<String, Object> properties;
+
+        ConfigurationStub(Dictionary<String, Object> properties) {
+            this.properties = properties;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("getConfiguration".equals(name)) {
+                return proxy(Configuration.class, this);
+            } else if ("getProperties".equals(name)) {
+                return properties;
+            } else if ("update".equals(name) && args != null && args.length == 1) {
+                properties = (Dictionary<String, Object>) args[0];
+                updates.incrementAndGet();
+                return null;
+            } else if (method.getReturnType() == boolean.class) {
+                return args != null && proxy == args[0];
+            } else if (method.getReturnType() == int.class) {
+                return System.identityHashCode(proxy);
+            } else if (method.getReturnType() == long.class) {
+                return 0L;
+            }
+            return null;
+        }
+
+        List<?> getActiveConnections() {
+            Object activeConnections = properties.get("active.connections");
+            return activeConnections == null ? Collections.emptyList() : (List<?>) activeConnections;
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(StoreConnectionsTest.class.getClassLoader(),
+                                                new Class<?>[] { type },
+                                                handler));
+    }
+
+    private ConfigurationStub configuration;
+
+    @Override
+    protected ConnectionManagerImpl createConnectionManager() throws Exception {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("active.connections.store.delay", STORE_DELAY);
+        configuration = new ConfigurationStub(properties);
+
+        ConnectionManagerImpl connectionManager = new ConnectionManagerImpl();
+        connectionManager.setConfigurationAdmin(proxy(ConfigurationAdmin.class, configuration));
+        connectionManager.activate();
+        return connectionManager;
+    }
+
+    /**
+     * Adds a controller with the given number of devices.
+     *
+     * @return The port of the controller
+     */
+    private EndpointPortImpl addDevices(int devices) {
+        add(new Controller());
+        for (int ix = 1; ix <= devices; ix++) {
+            add(new Device());
+        }
+        return connectionManager.getEndpoints().get("endpoint0").getPort("controller");
+    }
+
+    private void waitForStore() throws InterruptedException {
+        Thread.sleep(STORE_DELAY * 3);
+    }
+
+    public void testConnectAllStoresOnce() throws Exception {
+        EndpointPortImpl controller = addDevices(1000);
+        connectionManager.connectAll(controller.getPotentialConnections().values()).join();
+        waitForStore();
+
+        assertEquals(1, configuration.updates.get());
+        assertEquals(1000, configuration.getActiveConnections().size());
+
+        connectionManager.disconnectAll(controller.getPotentialConnections().values()).join();
+        waitForStore();
+
+        assertEquals(2, configuration.updates.get());
+        assertTrue(configuration.getActiveConnections().isEmpty());
+    }
+
+    public void testSeparateConnectsAreDebounced() throws Exception {
+        EndpointPortImpl controller = addDevices(50);
+        for (PotentialConnectionImpl connection : controller.getPotentialConnections().values()) {
+            connection.connect();
+        }
+        waitForStore();
+
+        assertEquals(1, configuration.updates.get());
+        assertEquals(50, configuration.getActiveConnections().size());
+    }
+
+    public void testDeactivateStoresPendingChanges() throws Exception {
+        EndpointPortImpl controller = addDevices(1);
+        controller.getPotentialConnections().values().iterator().next().connect();
+        assertEquals(0, configuration.updates.get());
+
+        connectionManager.deactivate();
+
+        assertEquals(1, configuration.updates.get());
+        assertEquals(1, configuration.getActiveConnections().size());
+    }
+}
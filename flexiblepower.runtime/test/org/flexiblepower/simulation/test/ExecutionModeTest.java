@@ -0,0 +1,208 @@
+package org.flexiblepower.simulation.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.runtime.context.RuntimeContext;
+import org.flexiblepower.scheduling.SchedulerPool;
+import org.flexiblepower.scheduling.VirtualThreads;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.service.component.ComponentContext;
+
+/**
+ * Tests the execution modes of the {@link RuntimeContext} other than a thread per bundle.
+ */
+public class ExecutionModeTest extends TestCase {
+    private static RuntimeContext createContext(String executionMode) {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("executionMode", executionMode);
+        Bundle bundle = Mockito.mock(Bundle.class);
+        ComponentContext cc = Mockito.mock(ComponentContext.class);
+        Mockito.when(cc.getUsingBundle()).thenReturn(bundle);
+        Mockito.when(cc.getProperties()).thenReturn(properties);
+        Mockito.when(bundle.getSymbolicName()).thenReturn("test.bundle");
+
+        RuntimeContext context = new RuntimeContext();
+        context.activate(cc);
+        return context;
+    }
+
+    private static Runnable blocker(final CountDownLatch started, final CountDownLatch blocked) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    public void testSharedPoolRunsLanesSerially() throws Exception {
+        final int COUNT = 500;
+        List<RuntimeContext> lanes = Arrays.asList(createContext("shared"), createContext("shared"));
+        try {
+            final AtomicInteger overlaps = new AtomicInteger();
+            List<AtomicInteger> active = new ArrayList<AtomicInteger>();
+            List<List<Integer>> orders = new ArrayList<List<Integer>>();
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int lane = 0; lane < lanes.size(); lane++) {
+                active.add(new AtomicInteger());
+                orders.add(new Vector<Integer>());
+            }
+            for (int ix = 0; ix < COUNT; ix++) {
+                for (int lane = 0; lane < lanes.size(); lane++) {
+                    final AtomicInteger running = active.get(lane);
+                    final List<Integer> order = orders.get(lane);
+                    final int index = ix;
+                    futures.add(lanes.get(lane).submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (running.incrementAndGet() != 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            order.add(index);
+                            Thread.yield();
+                            running.decrementAndGet();
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+
+            assertEquals(0, overlaps.get());
+            for (List<Integer> order : orders) {
+                assertEquals(COUNT, order.size());
+                for (int ix = 0; ix < COUNT; ix++) {
+                    assertEquals(ix, order.get(ix).intValue());
+                }
+            }
+        } finally {
+            for (RuntimeContext lane : lanes) {
+                lane.deactivate();
+            }
+        }
+    }
+
+    public void testSharedPoolHandsBackThread() throws Exception {
+        RuntimeContext busy = createContext("shared");
+        RuntimeContext other = createContext("shared");
+        List<RuntimeContext> blockers = new ArrayList<RuntimeContext>();
+        CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            SchedulerPool pool = SchedulerPool.acquire();
+            int size = pool.getSize();
+            pool.release();
+
+            // Occupy all the threads of the pool but one, which is then taken by the busy lane
+            CountDownLatch started = new CountDownLatch(size);
+            for (int ix = 0; ix < size - 1; ix++) {
+                RuntimeContext blocker = createContext("shared");
+                blockers.add(blocker);
+                blocker.submit(blocker(started, blocked));
+            }
+            CountDownLatch gate = new CountDownLatch(1);
+            busy.submit(blocker(started, gate));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            List<String> order = new Vector<String>();
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int ix = 0; ix < 99; ix++) {
+                futures.add(busy.submit(record(order, "busy")));
+            }
+            futures.add(other.submit(record(order, "other")));
+            gate.countDown();
+            for (Future<?> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+
+            // The blocking job was the first of the turn of the busy lane, after 31 more the other lane gets the thread
+            assertEquals(31, order.indexOf("other"));
+        } finally {
+            blocked.countDown();
+            for (RuntimeContext blocker : blockers) {
+                blocker.deactivate();
+            }
+            busy.deactivate();
+            other.deactivate();
+        }
+    }
+
+    public void testSharedPoolReferenceCounting() throws Exception {
+        RuntimeContext first = createContext("shared");
+        RuntimeContext second = createContext("shared");
+        SchedulerPool pool = SchedulerPool.acquire();
+        pool.release();
+
+        first.deactivate();
+        SchedulerPool stillShared = SchedulerPool.acquire();
+        stillShared.release();
+        assertSame(pool, stillShared);
+        assertEquals(Integer.valueOf(1), second.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return 1;
+            }
+        }).get(5, TimeUnit.SECONDS));
+
+        second.deactivate();
+        SchedulerPool next = SchedulerPool.acquire();
+        next.release();
+        assertNotSame(pool, next);
+    }
+
+    private static boolean isVirtual(Thread thread) throws Exception {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (NoSuchMethodException e) {
+            // Before Java 19 all threads are platform threads
+            return false;
+        }
+    }
+
+    public void testVirtualThreadMode() throws Exception {
+        assertEquals(VirtualThreads.isAvailable(), VirtualThreads.getThreadFactory() != null);
+
+        RuntimeContext virtualContext = createContext("virtual");
+        try {
+            Thread thread = virtualContext.submit(new Callable<Thread>() {
+                @Override
+                public Thread call() throws Exception {
+                    return Thread.currentThread();
+                }
+            }).get(5, TimeUnit.SECONDS);
+
+            // Without virtual threads (before Java 21) this falls back to a platform thread per bundle
+            assertEquals("Scheduler thread for test.bundle", thread.getName());
+            assertEquals(VirtualThreads.isAvailable(), isVirtual(thread));
+            assertTrue(thread.isDaemon());
+        } finally {
+            virtualContext.deactivate();
+        }
+    }
+}
@@ -1,14 +1,41 @@
 package org.flexiblepower.simulation.test;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
 
 import junit.framework.TestCase;
 
 import org.flexiblepower.runtime.context.RuntimeContext;
+import org.flexiblepower.scheduling.AbstractScheduler;
+import org.flexiblepower.scheduling.Job;
+import org.flexiblepower.scheduling.JobPriority;
+import org.flexiblepower.scheduling.LogHistogram;
+import org.flexiblepower.scheduling.MissedRunPolicy;
+import org.flexiblepower.scheduling.ResourceUsage;
+import org.flexiblepower.scheduling.SchedulerMetrics;
+import org.flexiblepower.scheduling.SlowJobWatchdog;
 import org.mockito.Mockito;
 import org.osgi.framework.Bundle;
 import org.osgi.service.component.ComponentContext;
@@ -18,17 +45,27 @@ public class RuntimeSchedulerTest extends TestCase {
 
     @Override
     protected void setUp() throws Exception {
+        context = createContext(null);
+    }
+
+    private static RuntimeContext createContext(Dictionary<String, Object> properties) {
         Bundle bundle = Mockito.mock(Bundle.class);
         ComponentContext cc = Mockito.mock(ComponentContext.class);
         Mockito.when(cc.getUsingBundle()).thenReturn(bundle);
+        Mockito.when(cc.getProperties()).thenReturn(properties);
         Mockito.when(bundle.getSymbolicName()).thenReturn("test.bundle");
 
-        context = new RuntimeContext();
+        RuntimeContext context = new RuntimeContext();
         context.activate(cc);
+        return context;
     }
 
     @Override
     protected void tearDown() throws Exception {
+        stop(context);
+    }
+
+    private static void stop(final RuntimeContext context) throws InterruptedException {
         Thread stopThread = new Thread() {
             @Override
             public void run() {
@@ -86,4 +123,650 @@ public class RuntimeSchedulerTest extends TestCase {
             }
         }
     }
+
+    private static void cancelManyJobs(RuntimeContext context) {
+        int COUNT = 100000;
+        List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>(COUNT);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                fail("A cancelled job should never run");
+            }
+        };
+
+        for (int ix = 0; ix < COUNT; ix++) {
+            // Spread the jobs out over an hour, like the timeouts of allocations
+            futures.add(context.schedule(task, 60000 + (ix * 7919L) % 3600000, TimeUnit.MILLISECONDS));
+        }
+
+        long start = System.nanoTime();
+        for (ScheduledFuture<?> future : futures) {
+            future.cancel(false);
+        }
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.out.println("Cancelling " + COUNT + " jobs took " + duration + "ms");
+        // A linear scan per cancelled job takes minutes here, while O(log n) cancellation takes milliseconds
+        assertTrue("Cancelling took " + duration + "ms", duration < 2000);
+        for (ScheduledFuture<?> future : futures) {
+            assertTrue(future.isCancelled());
+        }
+    }
+
+    public void testCancelManyJobsWheel() {
+        cancelManyJobs(context);
+    }
+
+    public void testCancelManyJobsHeap() throws InterruptedException {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("jobStore", "heap");
+        RuntimeContext heapContext = createContext(properties);
+        try {
+            cancelManyJobs(heapContext);
+        } finally {
+            stop(heapContext);
+        }
+    }
+
+    public void testMetrics() throws Exception {
+        AtomicInteger sharedCounter = new AtomicInteger();
+        int COUNT = 10;
+        List<Future<?>> futures = new ArrayList<Future<?>>(COUNT);
+        for (int ix = 0; ix < COUNT; ix++) {
+            futures.add(context.submit(new OrderTester(sharedCounter, ix)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        // The metrics are recorded right after the job has finished, so wait for the last one
+        Thread.sleep(100);
+
+        SchedulerMetrics metrics = context.getMetrics();
+        assertEquals(COUNT, metrics.getExecutedJobs());
+        assertEquals(COUNT, metrics.getLateness().getCount());
+        LogHistogram runTime = metrics.getRunTimeBySource().get(OrderTester.class.getName());
+        assertNotNull(runTime);
+        assertEquals(COUNT, runTime.getCount());
+        assertTrue(metrics.getSampleCount() > 0);
+    }
+
+    public void testTimerSlackCoalescesJobs() throws Exception {
+        final List<Long> executionTimes = new ArrayList<Long>();
+        List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
+        for (int ix = 0; ix < 10; ix++) {
+            futures.add(context.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (executionTimes) {
+                        executionTimes.add(context.currentTimeMillis());
+                    }
+                }
+            }, Measure.valueOf(200 + 7 * ix, SI.MILLI(SI.SECOND)), Measure.valueOf(300, SI.MILLI(SI.SECOND))));
+        }
+
+        // All the windows overlap, so the jobs are rounded to at most 2 boundaries (instead of 10 separate wakeups)
+        Set<Long> plannedTimes = new HashSet<Long>();
+        for (ScheduledFuture<?> future : futures) {
+            plannedTimes.add(((Job<?>) future).getTimeOfNextRun());
+        }
+        assertTrue("Planned at " + plannedTimes, plannedTimes.size() <= 2);
+
+        for (ScheduledFuture<?> future : futures) {
+            future.get();
+        }
+        assertEquals(10, executionTimes.size());
+    }
+
+    public void testSlowJobWatchdog() throws Exception {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("budget", 50L);
+        properties.put("sampleInterval", 10L);
+        ComponentContext cc = Mockito.mock(ComponentContext.class);
+        Mockito.when(cc.getProperties()).thenReturn(properties);
+        SlowJobWatchdog watchdog = new SlowJobWatchdog();
+        watchdog.activate(cc);
+        try {
+            context.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }).get();
+            Thread.sleep(50);
+
+            List<SlowJobWatchdog.Overrun> overruns = watchdog.getOverruns();
+            assertEquals(1, overruns.size());
+            SlowJobWatchdog.Overrun overrun = overruns.get(0);
+            assertTrue(overrun.isFinished());
+            assertTrue(overrun.getSamples() > 1);
+            assertTrue(overrun.getExecutionTime() > 50);
+            // The job was sleeping, so that should be the most frequent stack
+            assertTrue(overrun.getStacks().get(0).getKey().get(0).getMethodName().startsWith("sleep"));
+        } finally {
+            watchdog.deactivate();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testCompletionCallbacksRunInCallerContext() throws Exception {
+        Bundle bundle = Mockito.mock(Bundle.class);
+        ComponentContext cc = Mockito.mock(ComponentContext.class);
+        Mockito.when(cc.getUsingBundle()).thenReturn(bundle);
+        Mockito.when(bundle.getSymbolicName()).thenReturn("caller.bundle");
+        RuntimeContext caller = new RuntimeContext();
+        caller.activate(cc);
+        try {
+            Job<Integer> job = (Job<Integer>) context.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return 21;
+                }
+            });
+            CompletionStage<String> stage = job.thenApply(new Function<Integer, String>() {
+                @Override
+                public String apply(Integer value) {
+                    return Thread.currentThread().getName() + ":" + (value * 2);
+                }
+            }, caller);
+            assertEquals("Scheduler thread for caller.bundle:42", stage.toCompletableFuture().get(1, TimeUnit.SECONDS));
+
+            Job<?> never = (Job<?>) context.schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, Measure.valueOf(3600, SI.SECOND));
+            try {
+                never.orTimeout(50, TimeUnit.MILLISECONDS).get(1, TimeUnit.SECONDS);
+                fail("Expected a timeout");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof TimeoutException);
+            }
+
+            never.cancel(false);
+            assertTrue(never.toCompletionStage().toCompletableFuture().isCancelled()
+                       || never.toCompletionStage().toCompletableFuture().isCompletedExceptionally());
+        } finally {
+            stop(caller);
+        }
+    }
+
+    public void testPrimitiveScheduleDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return; // Can not measure the allocations on this JVM
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        int COUNT = 20000;
+        List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>(COUNT * 2);
+        List<Job<?>> jobs = new ArrayList<Job<?>>(COUNT);
+        AtomicLong serialGenerator = new AtomicLong();
+        // Warm up, such that the code has been compiled and the store has grown to its size
+        for (int ix = 0; ix < COUNT; ix++) {
+            futures.add(context.schedule(task, 3600 + ix, TimeUnit.SECONDS));
+            jobs.add(Job.create(task, null, context, 0, 0, serialGenerator));
+        }
+        jobs.clear();
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int ix = 0; ix < COUNT; ix++) {
+            jobs.add(Job.create(task, null, context, 0, 0, serialGenerator));
+        }
+        long bytesPerJobObject = (threadBean.getThreadAllocatedBytes(threadId) - before) / COUNT;
+
+        before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int ix = 0; ix < COUNT; ix++) {
+            futures.add(context.schedule(task, 3600 + ix, TimeUnit.SECONDS));
+        }
+        long bytesPerJob = (threadBean.getThreadAllocatedBytes(threadId) - before) / COUNT;
+
+        for (ScheduledFuture<?> future : futures) {
+            future.cancel(false);
+        }
+        System.out.println("Scheduling a job allocates " + bytesPerJob + " bytes, the job itself is " + bytesPerJobObject
+                           + " bytes");
+        // The job itself is the only allocation, with a little room for the growth of the store
+        assertTrue("Scheduling a job allocates " + bytesPerJob + " bytes", bytesPerJob < bytesPerJobObject + 16);
+    }
+
+    /**
+     * Stalls the scheduler in its first run, until 10.5 periods have passed since it was scheduled. Ending halfway a
+     * period keeps the number of missed periods clear of the timing of the scheduler.
+     */
+    private static class StallingTask implements Runnable {
+        static final long PERIOD = 50;
+
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final long scheduled = System.nanoTime();
+        volatile long stall;
+
+        @Override
+        public void run() {
+            if (runs.incrementAndGet() == 1) {
+                try {
+                    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled);
+                    Thread.sleep(Math.max(0, PERIOD * 21 / 2 - elapsed));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                stall = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled);
+                stalled.countDown();
+            }
+        }
+
+        /**
+         * @return The number of periods after the first run that had passed by the time the stall ended
+         */
+        long missedRuns() {
+            return stall / PERIOD;
+        }
+    }
+
+    private static Job<?> runStalledJob(RuntimeContext context, StallingTask task, MissedRunPolicy policy)
+            throws Exception {
+        Job<?> job = (Job<?>) context.scheduleAtFixedRate(task, 0, StallingTask.PERIOD, TimeUnit.MILLISECONDS, policy);
+        assertTrue(task.stalled.await(5, TimeUnit.SECONDS));
+        // Leaves the scheduler time to handle the missed runs, but stops before the next period starts
+        Thread.sleep(StallingTask.PERIOD / 4);
+        job.cancel(false);
+        return job;
+    }
+
+    public void testMissedRunPolicy() throws Exception {
+        // Catching up runs all the missed periods right after the stall
+        StallingTask task = new StallingTask();
+        Job<?> job = runStalledJob(context, task, MissedRunPolicy.CATCH_UP);
+        assertEquals(1 + task.missedRuns(), task.runs.get());
+        assertEquals(0, job.getSkippedRuns());
+
+        // Coalescing runs the missed periods once right away
+        task = new StallingTask();
+        job = runStalledJob(context, task, MissedRunPolicy.COALESCE);
+        assertEquals(2, task.runs.get());
+        assertEquals(task.missedRuns() - 1, job.getSkippedRuns());
+
+        // Skipping continues at the next period
+        task = new StallingTask();
+        job = runStalledJob(context, task, MissedRunPolicy.SKIP);
+        assertEquals(1, task.runs.get());
+        assertEquals(task.missedRuns(), job.getSkippedRuns());
+    }
+
+    public void testPriorityLanes() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        context.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        // Otherwise the emergencies could overtake the blocking job itself
+        started.await();
+
+        final List<JobPriority> order = new Vector<JobPriority>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int ix = 0; ix < 45; ix++) {
+            JobPriority priority = ix < 5 ? JobPriority.MESSAGE : JobPriority.EMERGENCY;
+            futures.add(context.submitWithPriority(new PriorityTask(order, priority), priority));
+        }
+        blocked.countDown();
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        // The emergencies go first, but the messages get a turn after being passed over too often
+        assertEquals(JobPriority.EMERGENCY, order.get(0));
+        assertEquals(AbstractScheduler.STARVATION_LIMIT, order.indexOf(JobPriority.MESSAGE));
+        assertEquals(JobPriority.MESSAGE, order.get(order.size() - 1));
+
+        // The futures are done before the scheduler has counted the last jobs
+        SchedulerMetrics metrics = context.getMetrics();
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((metrics.getExecutedJobs(JobPriority.EMERGENCY) < 40 || metrics.getExecutedJobs(JobPriority.MESSAGE) < 5)
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(40, metrics.getExecutedJobs(JobPriority.EMERGENCY));
+        assertEquals(5, metrics.getExecutedJobs(JobPriority.MESSAGE));
+        assertEquals(40, metrics.getMaxReadyDepth(JobPriority.EMERGENCY));
+        assertEquals(0, context.getReadyDepth(JobPriority.EMERGENCY));
+    }
+
+    private static class PriorityTask implements Runnable {
+        private final List<JobPriority> order;
+        private final JobPriority priority;
+
+        public PriorityTask(List<JobPriority> order, JobPriority priority) {
+            this.order = order;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            order.add(priority);
+        }
+    }
+
+    private static long submitConcurrently(final RuntimeContext context, final boolean immediate) throws Exception {
+        int PRODUCERS = 16;
+        final int COUNT = 20000;
+        final AtomicInteger executed = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                executed.incrementAndGet();
+            }
+        };
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<Thread>(PRODUCERS);
+        for (int ix = 0; ix < PRODUCERS; ix++) {
+            Thread producer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int ix = 0; ix < COUNT; ix++) {
+                        if (immediate) {
+                            context.submit(task);
+                        } else {
+                            // A delay of 0 still goes through the lock and the job store
+                            context.schedule(task, 0, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                }
+            };
+            producer.start();
+            producers.add(producer);
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        long deadline = System.currentTimeMillis() + 30000;
+        while (executed.get() < PRODUCERS * COUNT && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        assertEquals(PRODUCERS * COUNT, executed.get());
+        return duration;
+    }
+
+    public void testConcurrentSubmission() throws Exception {
+        // Warm up both paths first
+        submitConcurrently(context, false);
+        submitConcurrently(context, true);
+
+        long locked = submitConcurrently(context, false);
+        long lockFree = submitConcurrently(context, true);
+        System.out.println("16 producers submitting 320000 jobs took " + lockFree + "ms, through the lock "
+                           + locked + "ms");
+        assertTrue("Submitting took " + lockFree + "ms", lockFree < 10000);
+    }
+
+    /**
+     * An observer that moves the submitted jobs to the ready lanes, while the scheduler is about to park, should not
+     * leave the scheduler sleeping with a job that is ready.
+     */
+    public void testObserverDoesNotLoseWakeup() throws Exception {
+        final AtomicBoolean observing = new AtomicBoolean(true);
+        Thread observer = new Thread() {
+            @Override
+            public void run() {
+                while (observing.get()) {
+                    context.getQueueDepth();
+                }
+            }
+        };
+        observer.start();
+        try {
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                }
+            };
+            // Without another job scheduled, a lost wakeup means the job is never executed
+            for (int ix = 0; ix < 5000; ix++) {
+                context.submit(task).get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            observing.set(false);
+            observer.join();
+        }
+    }
+
+    public void testMonotonicClock() throws Exception {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("clock", "monotonic");
+        RuntimeContext monotonicContext = createContext(properties);
+        try {
+            assertTrue(monotonicContext.isMonotonicClock());
+            // The current time is still the wall time
+            assertTrue(Math.abs(monotonicContext.currentTimeMillis() - System.currentTimeMillis()) < 1000);
+
+            long start = System.nanoTime();
+            monotonicContext.schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, 500, TimeUnit.MICROSECONDS).get(1, TimeUnit.SECONDS);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MICROSECONDS.toNanos(500));
+
+            // A period below a millisecond would be 0 on the millisecond clock
+            final AtomicInteger runs = new AtomicInteger();
+            start = System.nanoTime();
+            ScheduledFuture<?> future = monotonicContext.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            }, 0, 250, TimeUnit.MICROSECONDS);
+            Thread.sleep(100);
+            future.cancel(false);
+            // Runs at most once per period that has started, with a little margin for the clock of the scheduler
+            long periods = (System.nanoTime() - start) / TimeUnit.MICROSECONDS.toNanos(250) + 1;
+            assertTrue("Ran " + runs.get() + " times in " + periods + " periods",
+                       runs.get() >= 200 && runs.get() <= periods + 2);
+        } finally {
+            stop(monotonicContext);
+        }
+    }
+
+    private static Callable<Integer> task(final int value, final long sleep) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                Thread.sleep(sleep);
+                if (value < 0) {
+                    throw new IllegalStateException("Failed " + value);
+                }
+                return value;
+            }
+        };
+    }
+
+    public void testInvokeAllAndAny() throws Exception {
+        List<Future<Integer>> futures = context.invokeAll(Arrays.asList(task(1, 10), task(-2, 0), task(3, 0)));
+        assertEquals(3, futures.size());
+        assertEquals(1, (int) futures.get(0).get(0, TimeUnit.MILLISECONDS));
+        assertTrue(futures.get(1).isDone());
+        assertEquals(3, (int) futures.get(2).get(0, TimeUnit.MILLISECONDS));
+
+        // The timeout is the maximum time to wait, after which the unfinished tasks are cancelled
+        futures = context.invokeAll(Arrays.asList(task(1, 0), task(2, 200), task(3, 0)), 50, TimeUnit.MILLISECONDS);
+        assertEquals(1, (int) futures.get(0).get());
+        assertTrue(futures.get(2).isCancelled());
+
+        // The first task that succeeds wins, the others are cancelled
+        final AtomicInteger losers = new AtomicInteger();
+        Callable<Integer> loser = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return losers.incrementAndGet();
+            }
+        };
+        assertEquals(2, (int) context.invokeAny(Arrays.asList(task(-1, 0), task(2, 0), loser, loser)));
+        Thread.sleep(50);
+        assertEquals(0, losers.get());
+
+        try {
+            context.invokeAny(Arrays.asList(task(-1, 0), task(-2, 0)));
+            fail("All the tasks failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        try {
+            context.invokeAny(Arrays.asList(task(1, 200)), 50, TimeUnit.MILLISECONDS);
+            fail("The task took too long");
+        } catch (TimeoutException ex) {
+        }
+
+        // From a job of the context itself the tasks are run right away instead of waiting forever
+        Future<Integer> nested = context.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int sum = 0;
+                for (Future<Integer> future : context.invokeAll(Arrays.asList(task(1, 0), task(2, 0)))) {
+                    sum += future.get();
+                }
+                return sum + context.invokeAny(Arrays.asList(task(-1, 0), task(4, 0)));
+            }
+        });
+        assertEquals(7, (int) nested.get(1, TimeUnit.SECONDS));
+    }
+
+    public static class Allocator implements Runnable {
+        private final long end;
+        volatile Object sink;
+
+        public Allocator(long millis) {
+            end = System.nanoTime() + millis * 1000000;
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < end) {
+                sink = new byte[1024];
+            }
+        }
+    }
+
+    public void testResourceAccounting() throws Exception {
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("resourceAccounting", "true");
+        RuntimeContext enabled = createContext(properties);
+        try {
+            enabled.submit(new Allocator(50)).get();
+            enabled.submit(new OrderTester(new AtomicInteger(), 0)).get();
+            // The metrics are recorded right after the job has finished, so wait for the last one
+            Thread.sleep(100);
+
+            SchedulerMetrics metrics = enabled.getMetrics();
+            assertEquals(2, metrics.getUsage().getJobs());
+            ResourceUsage busy = metrics.getUsageBySource().get(Allocator.class.getName());
+            assertNotNull(busy);
+            assertEquals(1, busy.getJobs());
+            if (enabled.isResourceAccounting()) {
+                // A busy loop of 50ms uses at least some CPU time and allocates more than the idle job
+                assertTrue(busy.getCpuTime() > 10000000);
+                assertTrue(busy.getAllocatedBytes() > 1024 * 1024);
+                assertTrue(metrics.getUsage().getCpuTime() >= busy.getCpuTime());
+            }
+        } finally {
+            stop(enabled);
+        }
+
+        // It is disabled by default
+        assertFalse(context.isResourceAccounting());
+        context.submit(new Allocator(10)).get();
+        Thread.sleep(100);
+        assertEquals(1, context.getMetrics().getUsage().getJobs());
+        assertEquals(0, context.getMetrics().getUsage().getCpuTime());
+    }
+
+    private static Runnable record(final List<String> order, final String name, final long sleep) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        };
+    }
+
+    public void testEarliestDeadlineFirst() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        context.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+
+        List<String> order = new Vector<String>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        JobPriority message = JobPriority.MESSAGE;
+        futures.add(context.submitWithPriority(record(order, "a", 0), message));
+        futures.add(context.submitWithDeadline(record(order, "b", 0), message, 500, TimeUnit.MILLISECONDS));
+        futures.add(context.submitWithDeadline(record(order, "c", 0), message, 100, TimeUnit.MILLISECONDS));
+        futures.add(context.submitWithPriority(record(order, "d", 0), message));
+        futures.add(context.submitWithDeadline(record(order, "e", 0), message, 300, TimeUnit.MILLISECONDS));
+        futures.add(context.submitWithDeadline(record(order, "f", 0), message, 300, TimeUnit.MILLISECONDS));
+        // The lanes still go first, a deadline only orders the jobs of the same priority
+        futures.add(context.submitWithPriority(record(order, "g", 0), JobPriority.EMERGENCY));
+        blocked.countDown();
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(Arrays.asList("g", "c", "e", "f", "b", "a", "d"), order);
+
+        // A run that finishes too late still completes, but is counted as a miss
+        context.submitWithDeadline(record(order, "late", 50), message, 10, TimeUnit.MILLISECONDS).get();
+        context.submitWithDeadline(record(order, "early", 0), message, 1, TimeUnit.SECONDS).get();
+        Thread.sleep(100);
+        SchedulerMetrics metrics = context.getMetrics();
+        assertEquals(6, metrics.getDeadlineRuns(message));
+        assertEquals(1, metrics.getDeadlineMisses(message));
+        assertEquals(1, metrics.getDeadlineMisses());
+
+        // Each run of a periodic job gets its own deadline
+        ScheduledFuture<?> periodic = context.scheduleWithDeadline(record(order, "periodic", 0),
+                                                                   0,
+                                                                   20,
+                                                                   10,
+                                                                   TimeUnit.MILLISECONDS);
+        Thread.sleep(110);
+        periodic.cancel(false);
+        Thread.sleep(50);
+        metrics = context.getMetrics();
+        assertTrue(metrics.getDeadlineRuns(JobPriority.TIMER) >= 3);
+    }
 }
@@ -0,0 +1,195 @@
+package org.flexiblepower.simulation.test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.flexiblepower.runtime.context.RuntimeContext;
+import org.flexiblepower.scheduling.HeapJobStore;
+import org.flexiblepower.scheduling.Job;
+import org.flexiblepower.scheduling.JobStore;
+import org.flexiblepower.scheduling.TimingWheelJobStore;
+
+/**
+ * Compares the {@link TimingWheelJobStore} with the {@link HeapJobStore}, which both should return the same jobs in
+ * the same order at the same times.
+ */
+public class TimingWheelJobStoreTest extends TestCase {
+    // The number of ticks that are covered by one bucket on level 1, 2 and by the whole wheel
+    private static final long LEVEL_1 = 64;
+    private static final long LEVEL_2 = 64 * 64;
+    private static final long WHEEL = 64L * 64 * 64 * 64 * 64;
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    // Only needed for the toString of the jobs, it is never activated
+    private final RuntimeContext scheduler = new RuntimeContext();
+    private final AtomicLong serials = new AtomicLong();
+    // The job in the wheel for each job in the heap
+    private final Map<Job<?>, Job<?>> twins = new IdentityHashMap<Job<?>, Job<?>>();
+
+    private Job<?> job(long time) {
+        return Job.create(NOTHING, null, scheduler, time, 0, serials);
+    }
+
+    /**
+     * Adds a job at each of the given times to both stores. The serial numbers of both sets of jobs are in the same
+     * order.
+     */
+    private void add(JobStore wheel, JobStore heap, long... times) {
+        for (long time : times) {
+            Job<?> heapJob = job(time);
+            Job<?> wheelJob = job(time);
+            twins.put(heapJob, wheelJob);
+            heap.add(heapJob);
+            wheel.add(wheelJob);
+        }
+    }
+
+    /**
+     * Walks through all the due times of the jobs and checks that the wheel returns nothing before each due time and
+     * exactly the same jobs as the heap at that time.
+     */
+    private void assertSameOrder(JobStore wheel, JobStore heap) {
+        TreeSet<Long> times = new TreeSet<Long>();
+        for (Job<?> job : heap.getJobs()) {
+            times.add(job.getTimeOfNextRun());
+        }
+        assertEquals(heap.size(), wheel.size());
+
+        for (long time : times) {
+            assertTrue("Next job time after " + time, wheel.getNextJobTime() <= time);
+            assertNull(wheel.poll(time - 1));
+            while (true) {
+                Job<?> expected = heap.poll(time);
+                Job<?> actual = wheel.poll(time);
+                if (expected == null) {
+                    assertNull(actual);
+                    break;
+                }
+                assertSame("Job at " + time, twins.get(expected), actual);
+            }
+        }
+        assertTrue(wheel.isEmpty());
+        assertEquals(Long.MAX_VALUE, wheel.getNextJobTime());
+    }
+
+    private void testRandomTimes(int resolutionShift) {
+        TimingWheelJobStore wheel = new TimingWheelJobStore(resolutionShift);
+        HeapJobStore heap = new HeapJobStore();
+        wheel.poll(0);
+
+        // The edges of the levels, beyond the wheel and some ticks that are shared by several jobs
+        long[] ticks = { 1, LEVEL_1 - 1, LEVEL_1, LEVEL_1 + 1, LEVEL_2 - 1, LEVEL_2, LEVEL_2 + 1, WHEEL - 1, WHEEL,
+                        3 * WHEEL + 7, 3 * WHEEL + 7, LEVEL_1, 1 };
+        for (long tick : ticks) {
+            add(wheel, heap, tick << resolutionShift);
+        }
+        Random random = new Random(42);
+        for (int ix = 0; ix < 2000; ix++) {
+            long tick = (long) (random.nextDouble() * (ix % 2 == 0 ? LEVEL_2 * 4 : WHEEL * 2));
+            add(wheel, heap, (tick << resolutionShift) + random.nextInt(1 << resolutionShift));
+        }
+
+        assertSameOrder(wheel, heap);
+    }
+
+    public void testOrderAcrossLevels() {
+        testRandomTimes(0);
+    }
+
+    public void testOrderWithinTicks() {
+        testRandomTimes(TimingWheelJobStore.NANOSECOND_RESOLUTION_SHIFT);
+    }
+
+    /**
+     * A job that was placed on a high level ends up in the ready queue through the lower levels.
+     */
+    public void testCascading() {
+        TimingWheelJobStore wheel = new TimingWheelJobStore();
+        wheel.poll(0);
+        Job<?> job = job(3 * LEVEL_2 + 5 * LEVEL_1 + 7);
+        wheel.add(job);
+
+        assertEquals(3 * LEVEL_2, wheel.getNextJobTime());
+        assertNull(wheel.poll(3 * LEVEL_2));
+        assertEquals(3 * LEVEL_2 + 5 * LEVEL_1, wheel.getNextJobTime());
+        assertNull(wheel.poll(3 * LEVEL_2 + 5 * LEVEL_1));
+        assertEquals(job.getTimeOfNextRun(), wheel.getNextJobTime());
+        assertNull(wheel.poll(job.getTimeOfNextRun() - 1));
+        assertSame(job, wheel.poll(job.getTimeOfNextRun()));
+        assertTrue(wheel.isEmpty());
+    }
+
+    public void testRemoveAndReschedule() {
+        TimingWheelJobStore wheel = new TimingWheelJobStore();
+        HeapJobStore heap = new HeapJobStore();
+        wheel.poll(0);
+        add(wheel, heap, 10, LEVEL_2 + 10, WHEEL + 10);
+
+        List<Job<?>> jobs = wheel.getJobs();
+        assertEquals(3, jobs.size());
+        for (Job<?> job : jobs) {
+            if (job.getTimeOfNextRun() == LEVEL_2 + 10) {
+                assertTrue(wheel.remove(job));
+                assertFalse(wheel.remove(job));
+            } else if (job.getTimeOfNextRun() == WHEEL + 10) {
+                wheel.reschedule(job, 20);
+            }
+        }
+        for (Job<?> job : heap.getJobs()) {
+            if (job.getTimeOfNextRun() == LEVEL_2 + 10) {
+                heap.remove(job);
+            } else if (job.getTimeOfNextRun() == WHEEL + 10) {
+                heap.reschedule(job, 20);
+            }
+        }
+
+        assertEquals(2, wheel.size());
+        assertSameOrder(wheel, heap);
+    }
+
+    /**
+     * Jobs that are due at the same moment run in the order of submission, no matter on which level they were placed
+     * when they were added.
+     */
+    public void testSameTimeSerialOrder() {
+        TimingWheelJobStore wheel = new TimingWheelJobStore();
+        HeapJobStore heap = new HeapJobStore();
+        long time = 2 * LEVEL_2 + LEVEL_1 + 3;
+        List<Job<?>> jobs = new ArrayList<Job<?>>();
+        for (int ix = 0; ix < 4; ix++) {
+            Job<?> heapJob = job(time);
+            jobs.add(job(time));
+            twins.put(heapJob, jobs.get(ix));
+            heap.add(heapJob);
+        }
+
+        // Added while the time of the jobs is on level 2, on level 1, on level 0 and after it has been reached
+        wheel.poll(0);
+        wheel.add(jobs.get(2));
+        wheel.poll(2 * LEVEL_2);
+        wheel.add(jobs.get(0));
+        wheel.poll(2 * LEVEL_2 + LEVEL_1);
+        wheel.add(jobs.get(3));
+        assertSame(jobs.get(0), wheel.poll(time));
+        wheel.add(jobs.get(1));
+
+        assertSame(jobs.get(0), twins.get(heap.poll(time)));
+        for (int ix = 1; ix < 4; ix++) {
+            assertSame(jobs.get(ix), twins.get(heap.poll(time)));
+            assertSame(jobs.get(ix), wheel.poll(time));
+        }
+        assertNull(wheel.poll(time));
+    }
+}
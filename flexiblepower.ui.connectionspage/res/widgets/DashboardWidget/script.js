@@ -108,9 +108,15 @@ jsPlumb.ready(function() {
 					var connection = data.activeConnections[ix];
 					
 					var match = connection.match(/^(.*:[a-z]*)-(.*:[a-z]*)$/);
+					var overlays = [];
+					if(data.overflows && data.overflows[connection]) {
+						// Show how many messages have been dropped because the connection was full
+						overlays.push([ "Label", { label: data.overflows[connection] + " dropped", cssClass: "connectionLabel" } ]);
+					}
 					instance.connect({
 						source: instance.getEndpoint(match[1]), 
 						target: instance.getEndpoint(match[2]),
+						overlays: overlays,
 					});
 				}
 				
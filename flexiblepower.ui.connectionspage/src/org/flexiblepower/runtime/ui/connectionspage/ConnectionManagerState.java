@@ -4,13 +4,16 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.flexiblepower.messaging.ConnectionManager;
 import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
 import org.flexiblepower.messaging.ConnectionManager.ManagedEndpoint;
 import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.runtime.messaging.api.BoundedConnection;
 import org.osgi.framework.BundleContext;
 
 public class ConnectionManagerState {
@@ -20,6 +23,8 @@ public class ConnectionManagerState {
 
     private final Set<EndpointState> endpoints;
     private final Set<String> activeConnections;
+    // The number of dropped or refused messages of the active connections that have overflowed
+    private final Map<String, Long> overflows;
 
     public ConnectionManagerState(ConnectionManager connectionManager, BundleContext context) {
         endpoints = new TreeSet<EndpointState>();
@@ -28,17 +33,30 @@ public class ConnectionManagerState {
         }
 
         activeConnections = new TreeSet<String>();
+        overflows = new TreeMap<String, Long>();
         for (ManagedEndpoint ep : connectionManager.getEndpoints().values()) {
             for (EndpointPort port : ep.getPorts().values()) {
                 for (PotentialConnection conn : port.getPotentialConnections().values()) {
                     if (conn.isConnected()) {
                         activeConnections.add(conn.toString());
+                        long overflowCount = getOverflowCount(conn);
+                        if (overflowCount > 0) {
+                            overflows.put(conn.toString(), overflowCount);
+                        }
                     }
                 }
             }
         }
     }
 
+    /**
+     * @return The number of messages that have been dropped or refused by the connection, or 0 when it is not a
+     *         {@link BoundedConnection}
+     */
+    private static long getOverflowCount(PotentialConnection conn) {
+        return conn instanceof BoundedConnection ? ((BoundedConnection) conn).getOverflowCount() : 0;
+    }
+
     private Set<EndpointState> nextLayer(Set<EndpointState> lastLayer, Set<EndpointState> toLayout) {
         Set<EndpointState> nextLayer = new TreeSet<EndpointState>();
 
@@ -143,4 +161,8 @@ public class ConnectionManagerState {
     public Set<String> getActiveConnections() {
         return activeConnections;
     }
+
+    public Map<String, Long> getOverflows() {
+        return overflows;
+    }
 }